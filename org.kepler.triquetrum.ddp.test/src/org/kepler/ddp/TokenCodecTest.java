@@ -0,0 +1,259 @@
+/* Tests for TokenCodec.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.kepler.ddp.Utilities.TokenType;
+
+import ptolemy.data.ArrayToken;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.FloatToken;
+import ptolemy.data.IntMatrixToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.LongToken;
+import ptolemy.data.RecordToken;
+import ptolemy.data.ShortToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+import ptolemy.data.UnsignedByteToken;
+import ptolemy.data.type.BaseType;
+
+/** Tests for TokenCodec.
+ *
+ *  @version $Id$
+ */
+public class TokenCodecTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** The test tokens use every token type. */
+    @Test
+    public void testEveryTokenType() throws Exception {
+        final Set<TokenType> types = EnumSet.noneOf(TokenType.class);
+        for(Token token : _createTokens()) {
+            types.add(TokenCodec.getTokenType(token));
+        }
+        assertEquals(EnumSet.allOf(TokenType.class), types);
+    }
+
+    /** Tokens read from a DataInput are equal to the tokens written. */
+    @Test
+    public void testRoundTripDataInput() throws Exception {
+        final List<Token> tokens = _createTokens();
+        final DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(_write(tokens)));
+        TokenCodec.readHeader(input);
+        for(Token token : tokens) {
+            _assertRead(token, TokenCodec.read(input));
+        }
+        assertEquals(-1, input.read());
+    }
+
+    /** Tokens read from a heap ByteBuffer are equal to the tokens written. */
+    @Test
+    public void testRoundTripHeapBuffer() throws Exception {
+        final List<Token> tokens = _createTokens();
+        final ByteBuffer buffer = ByteBuffer.wrap(_write(tokens));
+        TokenCodec.readHeader(buffer);
+        for(Token token : tokens) {
+            _assertRead(token, TokenCodec.read(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    /** Tokens read from a direct ByteBuffer, which has no backing array,
+     *  are equal to the tokens written.
+     */
+    @Test
+    public void testRoundTripDirectBuffer() throws Exception {
+        final List<Token> tokens = _createTokens();
+        final byte[] bytes = _write(tokens);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        assertFalse(buffer.hasArray());
+        TokenCodec.readHeader(buffer);
+        for(Token token : tokens) {
+            _assertRead(token, TokenCodec.read(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    /** Tokens that cannot be encoded by type are written with Java
+     *  serialization.
+     */
+    @Test
+    public void testSerializedFallback() throws Exception {
+        // the element type of an empty array is not known from its elements.
+        assertEquals(TokenType.Serialized, TokenCodec.getTokenType(new ArrayToken(BaseType.INT)));
+
+        final Token matrix = new IntMatrixToken(new int[][] {{1, 2}, {3, 4}});
+        assertEquals(TokenType.Serialized, TokenCodec.getTokenType(matrix));
+        final List<Token> tokens = new ArrayList<Token>();
+        tokens.add(matrix);
+        tokens.add(new RecordToken(new String[] {"matrix"}, new Token[] {matrix}));
+        final ByteBuffer buffer = ByteBuffer.wrap(_write(tokens));
+        TokenCodec.readHeader(buffer);
+        for(Token token : tokens) {
+            _assertRead(token, TokenCodec.read(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    /** getEncodedLength() returns the number of bytes written by write(). */
+    @Test
+    public void testEncodedLength() throws Exception {
+        final List<Token> tokens = _createTokens();
+        // an unpaired surrogate is written as one replacement byte.
+        tokens.add(new StringToken("a\ud800b\udc00"));
+        for(Token token : tokens) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            TokenCodec.write(token, new DataOutputStream(bytes));
+            assertEquals(token.toString(), bytes.size(), TokenCodec.getEncodedLength(token));
+        }
+    }
+
+    /** A stream written with another version of the encoding is rejected. */
+    @Test
+    public void testUnknownVersion() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(TokenCodec.MAGIC | (TokenCodec.VERSION + 1));
+        try {
+            TokenCodec.readHeader(ByteBuffer.wrap(bytes.toByteArray()));
+            fail("Expected an exception for an unknown version.");
+        } catch(IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("version"));
+        }
+        try {
+            TokenCodec.readHeader(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("Expected an exception for an unknown version.");
+        } catch(IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("version"));
+        }
+    }
+
+    /** A stream without the header, or with an unknown token type, is rejected. */
+    @Test
+    public void testInvalidInput() throws Exception {
+        try {
+            TokenCodec.readHeader(ByteBuffer.wrap(new byte[] {'a', 'b', 'c', 1}));
+            fail("Expected an exception for a missing header.");
+        } catch(IOException e) {
+            // expected
+        }
+        try {
+            TokenCodec.read(ByteBuffer.wrap(new byte[] {(byte) TokenType.values().length}));
+            fail("Expected an exception for an unknown token type.");
+        } catch(IOException e) {
+            // expected
+        }
+        try {
+            // a string whose length is past the end of the buffer.
+            TokenCodec.read(ByteBuffer.wrap(new byte[] {(byte) TokenType.String.getValue(), 0, 0, 0, 5}));
+            fail("Expected an exception for a truncated token.");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Check that a token read is equal to the token written. */
+    private static void _assertRead(Token expected, Token actual) {
+        if(expected == Token.NIL) {
+            assertSame(Token.NIL, actual);
+        } else {
+            assertEquals(expected.getClass(), actual.getClass());
+            assertEquals(expected, actual);
+        }
+    }
+
+    /** Create tokens of every type, including nested records and arrays. */
+    private static List<Token> _createTokens() throws Exception {
+        final List<Token> retval = new ArrayList<Token>();
+        retval.add(new StringToken("ascii"));
+        retval.add(new StringToken(""));
+        retval.add(new StringToken("caf\u00e9 \u20ac \ud83d\ude00"));
+        retval.add(new IntToken(Integer.MIN_VALUE));
+        retval.add(new DoubleToken(-1.5));
+        retval.add(new LongToken(Long.MAX_VALUE));
+        retval.add(Token.NIL);
+        retval.add(BooleanToken.TRUE);
+        retval.add(BooleanToken.FALSE);
+        retval.add(new ShortToken((short) -2));
+        retval.add(new FloatToken(0.25f));
+        retval.add(new UnsignedByteToken((byte) 200));
+        retval.add(new IntMatrixToken(new int[][] {{1}}));
+
+        final RecordToken inner = new RecordToken(new String[] {"a", "b"},
+                new Token[] {new IntToken(1), new StringToken("x")});
+        final ArrayToken records = new ArrayToken(new Token[] {inner, inner});
+        final ArrayToken nested = new ArrayToken(new Token[] {
+                new ArrayToken(new Token[] {new LongToken(1), new LongToken(2)}),
+                new ArrayToken(new Token[] {new LongToken(3), new LongToken(4)})});
+        retval.add(records);
+        retval.add(nested);
+        retval.add(new RecordToken(new String[] {"record", "records", "nested", "label \u00e9"},
+                new Token[] {inner, records, nested, new DoubleToken(2)}));
+        return retval;
+    }
+
+    /** Write the header and tokens. */
+    private static byte[] _write(List<Token> tokens) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        TokenCodec.writeHeader(output);
+        for(Token token : tokens) {
+            TokenCodec.write(token, output);
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+}
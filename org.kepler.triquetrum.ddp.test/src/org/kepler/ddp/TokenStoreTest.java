@@ -0,0 +1,273 @@
+/* Tests for TokenStore.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ptolemy.data.IntToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+
+/** Tests for TokenStore.
+ *
+ *  @version $Id$
+ */
+public class TokenStoreTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public fields                      //////
+
+    /** The temporary directory for the spill files. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** Tokens read from a list are equal to the tokens added, and null
+     *  is stored as nil.
+     */
+    @Test
+    public void testAddAndGet() throws Exception {
+        final TokenStore store = new TokenStore(_LIMIT, folder.getRoot());
+        final List<Token> list = store.createListIfEnabled();
+        assertTrue(list instanceof TokenStore.TokenList);
+        list.add(new IntToken(1));
+        list.add(new StringToken("a"));
+        list.add(null);
+        assertEquals(3, list.size());
+        assertEquals(new IntToken(1), list.get(0));
+        assertEquals(new StringToken("a"), list.get(1));
+        assertSame(Token.NIL, list.get(2));
+        assertEquals(TokenStore.BLOCK_SIZE, store.getMemoryUsed());
+        try {
+            list.get(3);
+            fail("Expected an exception for an index past the end.");
+        } catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    /** A token larger than a block gets a buffer of its own. */
+    @Test
+    public void testLargeToken() throws Exception {
+        final TokenStore store = new TokenStore(_LIMIT, folder.getRoot());
+        final TokenStore.TokenList list = store.createList();
+        final StringToken large = new StringToken(_createString(TokenStore.BLOCK_SIZE + 1));
+        list.add(new IntToken(1));
+        list.add(large);
+        list.add(new IntToken(2));
+        assertEquals(large, list.get(1));
+        assertEquals(new IntToken(2), list.get(2));
+    }
+
+    /** Buffers beyond the memory limit are mapped from a spill file, which
+     *  is deleted when the list is freed.
+     */
+    @Test
+    public void testSpill() throws Exception {
+        final TokenStore store = new TokenStore(TokenStore.BLOCK_SIZE, folder.getRoot());
+        final TokenStore.TokenList list = store.createList();
+        final List<Token> expected = _addTokens(list, 4 * TokenStore.BLOCK_SIZE);
+        assertEquals(TokenStore.BLOCK_SIZE, store.getMemoryUsed());
+        assertEquals(1, _getSpillFiles().length);
+        assertEquals(expected, list);
+
+        list.free();
+        assertEquals(0, _getSpillFiles().length);
+    }
+
+    /** A disabled store creates lists on the heap. */
+    @Test
+    public void testDisabled() throws Exception {
+        final TokenStore store = new TokenStore(0, folder.getRoot());
+        assertFalse(store.isEnabled());
+        final List<Token> list = store.createListIfEnabled();
+        assertFalse(list instanceof TokenStore.TokenList);
+        list.add(new IntToken(1));
+        assertTrue(Arrays.equals(new Token[] {new IntToken(1)}, TokenStore.toArrayAndFree(list)));
+        assertEquals(0, store.getMemoryUsed());
+    }
+
+    /** A list cannot be used after it is freed. */
+    @Test
+    public void testFreedList() throws Exception {
+        final TokenStore store = new TokenStore(_LIMIT, folder.getRoot());
+        final TokenStore.TokenList list = store.createList();
+        list.add(new IntToken(1));
+        list.free();
+        // freeing twice does nothing.
+        list.free();
+        try {
+            list.get(0);
+            fail("Expected an exception for a freed list.");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+        try {
+            list.add(new IntToken(2));
+            fail("Expected an exception for a freed list.");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** The memory of a freed list is counted until its buffers are
+     *  garbage collected.
+     */
+    @Test(timeout = 60000)
+    public void testMemoryReleasedWhenCollected() throws Exception {
+        final TokenStore store = new TokenStore(_LIMIT, folder.getRoot());
+        TokenStore.TokenList list = store.createList();
+        _addTokens(list, 3 * TokenStore.BLOCK_SIZE);
+        final long used = store.getMemoryUsed();
+        assertTrue(used >= 3 * TokenStore.BLOCK_SIZE);
+
+        list.free();
+        list = null;
+        for(int i = 0; i < 100 && store.getMemoryUsed() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, store.getMemoryUsed());
+    }
+
+    /** toArrayAndFree() returns the tokens in order from every block and
+     *  frees the list.
+     */
+    @Test
+    public void testToArrayAndFree() throws Exception {
+        final TokenStore store = new TokenStore(2 * TokenStore.BLOCK_SIZE, folder.getRoot());
+        final TokenStore.TokenList list = store.createList();
+        final List<Token> expected = _addTokens(list, 3 * TokenStore.BLOCK_SIZE);
+        assertEquals(expected, Arrays.asList(TokenStore.toArrayAndFree(list)));
+        assertEquals(0, _getSpillFiles().length);
+        try {
+            list.get(0);
+            fail("Expected an exception for a freed list.");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** Tokens can be read by several threads at once. */
+    @Test(timeout = 60000)
+    public void testConcurrentReads() throws Exception {
+        final TokenStore store = new TokenStore(_LIMIT, folder.getRoot());
+        final TokenStore.TokenList list = store.createList();
+        for(int i = 0; i < 100000; i++) {
+            list.add(new IntToken(i));
+        }
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < list.size(); i++) {
+                            if(((IntToken) list.get(i)).intValue() != i) {
+                                throw new AssertionError("Wrong token at " + i);
+                            }
+                        }
+                    } catch(Throwable e) {
+                        synchronized(errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Add string tokens to a list until their encoded size is at least
+     *  a number of bytes.
+     *  @return the tokens added.
+     */
+    private static List<Token> _addTokens(TokenStore.TokenList list, long bytes) {
+        final List<Token> retval = new ArrayList<Token>();
+        final String value = _createString(1000);
+        long added = 0;
+        for(int i = 0; added < bytes; i++) {
+            final Token token = new StringToken(i + value);
+            list.add(token);
+            retval.add(token);
+            added += value.length();
+        }
+        return retval;
+    }
+
+    /** Create a string of a length. */
+    private static String _createString(int length) {
+        final char[] chars = new char[length];
+        for(int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + i % 26);
+        }
+        return new String(chars);
+    }
+
+    /** Get the spill files in the temporary directory. */
+    private File[] _getSpillFiles() {
+        return folder.getRoot().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".spill");
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The memory limit of the stores that do not spill. */
+    private static final long _LIMIT = 64L * TokenStore.BLOCK_SIZE;
+}
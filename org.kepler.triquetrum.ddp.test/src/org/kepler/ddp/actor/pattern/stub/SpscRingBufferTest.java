@@ -0,0 +1,146 @@
+/* Tests for SpscRingBuffer.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.actor.pattern.stub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/** Tests for SpscRingBuffer.
+ *
+ *  @version $Id$
+ */
+public class SpscRingBufferTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** The capacity is not rounded up to a power of two. */
+    @Test
+    public void testCapacityIsExact() {
+        assertEquals(3, new SpscRingBuffer<Integer>(3).capacity());
+        assertEquals(1, new SpscRingBuffer<Integer>(1).capacity());
+        assertEquals(16, new SpscRingBuffer<Integer>(16).capacity());
+    }
+
+    /** A producer blocks when the buffer holds capacity elements, and
+     *  continues when the consumer takes one.
+     */
+    @Test(timeout = 10000)
+    public void testProducerBlocksWhenFull() throws Exception {
+        for(SpscRingBuffer.WaitStrategy strategy : SpscRingBuffer.WaitStrategy.values()) {
+            final SpscRingBuffer<Integer> buffer = new SpscRingBuffer<Integer>(3, strategy);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+            final Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < 3; i++) {
+                            buffer.put(i);
+                        }
+                        started.countDown();
+                        // the buffer is full, so this waits for the consumer.
+                        buffer.put(3);
+                        done.countDown();
+                    } catch(Throwable t) {
+                        error.set(t);
+                    }
+                }
+            });
+            producer.start();
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertFalse(strategy + ": put() did not block when the buffer was full.",
+                    done.await(200, TimeUnit.MILLISECONDS));
+            assertEquals(3, buffer.size());
+
+            assertEquals(Integer.valueOf(0), buffer.take());
+            assertTrue(strategy + ": put() did not continue after take().",
+                    done.await(5, TimeUnit.SECONDS));
+            producer.join();
+            assertEquals(null, error.get());
+
+            assertEquals(3, buffer.size());
+            for(int i = 1; i < 4; i++) {
+                assertEquals(Integer.valueOf(i), buffer.take());
+            }
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    /** offer() returns false instead of waiting when the buffer is full. */
+    @Test(timeout = 10000)
+    public void testOfferDoesNotBlockWhenFull() throws Exception {
+        final SpscRingBuffer<Integer> buffer = new SpscRingBuffer<Integer>(2);
+        assertTrue(buffer.offer(0));
+        assertTrue(buffer.offer(1));
+        assertFalse(buffer.offer(2));
+        assertEquals(2, buffer.size());
+        assertEquals(Integer.valueOf(0), buffer.take());
+        assertTrue(buffer.offer(2));
+        assertEquals(Integer.valueOf(1), buffer.take());
+        assertEquals(Integer.valueOf(2), buffer.take());
+        assertTrue(buffer.isEmpty());
+    }
+
+    /** A producer blocked on a full buffer can be interrupted. */
+    @Test(timeout = 10000)
+    public void testBlockedProducerIsInterrupted() throws Exception {
+        final SpscRingBuffer<Integer> buffer = new SpscRingBuffer<Integer>(2);
+        buffer.put(0);
+        buffer.put(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.put(2);
+                } catch(Throwable t) {
+                    error.set(t);
+                }
+            }
+        });
+        producer.start();
+        Thread.sleep(100);
+        producer.interrupt();
+        producer.join();
+        assertTrue(error.get() instanceof InterruptedException);
+        assertEquals(2, buffer.size());
+    }
+}
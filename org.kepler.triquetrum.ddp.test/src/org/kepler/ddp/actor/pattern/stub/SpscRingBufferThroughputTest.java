@@ -0,0 +1,232 @@
+/* Throughput tests for SpscRingBuffer.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.actor.pattern.stub;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/** Throughput tests for SpscRingBuffer. Each test hands the same records
+ *  from a producer thread to a consumer thread, checks that every record
+ *  arrives in order, and prints the number of records per second. The
+ *  paired LinkedBlockingQueues are how the stub actors handed over keys
+ *  and values before SpscRingBuffer, and are the baseline.
+ *
+ *  <p>These are not a substitute for a microbenchmark harness: there is
+ *  no warm-up control or forking, so the numbers are only comparable
+ *  within one run.</p>
+ *
+ *  @version $Id$
+ */
+public class SpscRingBufferThroughputTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** Records handed over as a key and a value in two linked queues. */
+    @Test(timeout = 120000)
+    public void testPairedLinkedQueues() throws Exception {
+        final BlockingQueue<Long> keys = new LinkedBlockingQueue<Long>();
+        final BlockingQueue<Long> values = new LinkedBlockingQueue<Long>();
+        _report("paired LinkedBlockingQueues", _transfer(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(long i = 0; i < _NUM_RECORDS; i++) {
+                        keys.put(i);
+                        values.put(-i);
+                    }
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, new Consumer() {
+            @Override
+            public long consume() throws InterruptedException {
+                long sum = 0;
+                for(long i = 0; i < _NUM_RECORDS; i++) {
+                    final long key = keys.take();
+                    final long value = values.take();
+                    _check(i, key, value);
+                    sum += key;
+                }
+                return sum;
+            }
+        }));
+    }
+
+    /** Records handed over one key-value pair per slot. */
+    @Test(timeout = 120000)
+    public void testRingBufferPairs() throws Exception {
+        for(final SpscRingBuffer.WaitStrategy strategy : _STRATEGIES) {
+            final SpscRingBuffer<long[]> buffer =
+                    new SpscRingBuffer<long[]>(StubSourceActor.BATCH_LIST_CAPACITY * _BATCH_SIZE, strategy);
+            _report("SpscRingBuffer pairs, " + strategy, _transfer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(long i = 0; i < _NUM_RECORDS; i++) {
+                            buffer.put(new long[] {i, -i});
+                        }
+                    } catch(InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, new Consumer() {
+                @Override
+                public long consume() throws InterruptedException {
+                    long sum = 0;
+                    for(long i = 0; i < _NUM_RECORDS; i++) {
+                        final long[] pair = buffer.take();
+                        _check(i, pair[0], pair[1]);
+                        sum += pair[0];
+                    }
+                    return sum;
+                }
+            }));
+        }
+    }
+
+    /** Records handed over in batches, one batch per slot, as the stub
+     *  source actor does.
+     */
+    @Test(timeout = 120000)
+    public void testRingBufferBatches() throws Exception {
+        for(final SpscRingBuffer.WaitStrategy strategy : _STRATEGIES) {
+            final SpscRingBuffer<long[][]> buffer =
+                    new SpscRingBuffer<long[][]>(StubSourceActor.BATCH_LIST_CAPACITY, strategy);
+            _report("SpscRingBuffer batches, " + strategy, _transfer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(long i = 0; i < _NUM_RECORDS; i += _BATCH_SIZE) {
+                            final int length = (int) Math.min(_BATCH_SIZE, _NUM_RECORDS - i);
+                            final long[][] batch = new long[2][length];
+                            for(int j = 0; j < length; j++) {
+                                batch[0][j] = i + j;
+                                batch[1][j] = -(i + j);
+                            }
+                            buffer.put(batch);
+                        }
+                    } catch(InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, new Consumer() {
+                @Override
+                public long consume() throws InterruptedException {
+                    long sum = 0;
+                    long i = 0;
+                    while(i < _NUM_RECORDS) {
+                        final long[][] batch = buffer.take();
+                        for(int j = 0; j < batch[0].length; j++, i++) {
+                            _check(i, batch[0][j], batch[1][j]);
+                            sum += batch[0][j];
+                        }
+                    }
+                    return sum;
+                }
+            }));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Check that a record is the expected one. */
+    private static void _check(long expected, long key, long value) {
+        if(key != expected || value != -expected) {
+            throw new AssertionError("Expected record " + expected + " but got " + key + ", " + value);
+        }
+    }
+
+    /** Print the throughput of a transfer. */
+    private static void _report(String name, long nanos) {
+        System.out.println(String.format("%-40s %,15d records/s", name,
+                (long) (_NUM_RECORDS * 1e9 / nanos)));
+    }
+
+    /** Run a producer in a new thread and a consumer in this thread, and
+     *  check that the consumer received every record.
+     *  @return the number of nanoseconds the transfer took.
+     */
+    private static long _transfer(Runnable producer, Consumer consumer) throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicLong start = new AtomicLong();
+        final Thread thread = new Thread(producer);
+        thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                error.set(e);
+            }
+        });
+        start.set(System.nanoTime());
+        thread.start();
+        final long sum = consumer.consume();
+        final long nanos = System.nanoTime() - start.get();
+        thread.join();
+        assertEquals(null, error.get());
+        assertEquals(_NUM_RECORDS * (_NUM_RECORDS - 1) / 2, sum);
+        return nanos;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private inner classes              //////
+
+    /** Takes the records in the consumer thread. */
+    private interface Consumer {
+
+        /** Take all the records.
+         *  @return the sum of the keys.
+         */
+        long consume() throws InterruptedException;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The number of records in a batch, as in the Local engine. */
+    private static final int _BATCH_SIZE = 1024;
+
+    /** The number of records to transfer. */
+    private static final long _NUM_RECORDS = 2000000L;
+
+    /** The wait strategies to test. SPIN is not included since it needs
+     *  a core for each thread, which a test machine may not have.
+     */
+    private static final SpscRingBuffer.WaitStrategy[] _STRATEGIES =
+            new SpscRingBuffer.WaitStrategy[] {
+                SpscRingBuffer.WaitStrategy.YIELD, SpscRingBuffer.WaitStrategy.PARK};
+}
@@ -0,0 +1,161 @@
+/* Tests for StubSinkActor.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.actor.pattern.stub;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ptolemy.data.RecordToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+
+/** Tests for StubSinkActor.
+ *
+ *  @version $Id$
+ */
+public class StubSinkActorTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** The key of a line without a tab is the whole line. */
+    @Test
+    public void testParseLineWithoutTab() throws Exception {
+        final Token[] tokens = StubSinkActor._parseLines("abc");
+        assertEquals(1, tokens.length);
+        _assertRecord("abc", "abc", tokens[0]);
+    }
+
+    /** The key of a line that starts with a tab is empty. */
+    @Test
+    public void testParseLineWithLeadingTab() throws Exception {
+        final Token[] tokens = StubSinkActor._parseLines("\tabc");
+        assertEquals(1, tokens.length);
+        _assertRecord("", "\tabc", tokens[0]);
+    }
+
+    /** The key of a line that ends with a tab is the line without the tab. */
+    @Test
+    public void testParseLineWithTrailingTab() throws Exception {
+        final Token[] tokens = StubSinkActor._parseLines("abc\t");
+        assertEquals(1, tokens.length);
+        _assertRecord("abc", "abc\t", tokens[0]);
+    }
+
+    /** The key is the part before the first tab. */
+    @Test
+    public void testParseLineWithTabs() throws Exception {
+        final Token[] tokens = StubSinkActor._parseLines("a\tb\tc");
+        assertEquals(1, tokens.length);
+        _assertRecord("a", "a\tb\tc", tokens[0]);
+    }
+
+    /** An empty line between lines is a record with an empty key and
+     *  value, and trailing empty lines are ignored, as with String.split().
+     */
+    @Test
+    public void testParseEmptyLines() throws Exception {
+        final Token[] tokens = StubSinkActor._parseLines("a\t1\n\nb\t2\n\n\n");
+        assertEquals(3, tokens.length);
+        _assertRecord("a", "a\t1", tokens[0]);
+        _assertRecord("", "", tokens[1]);
+        _assertRecord("b", "b\t2", tokens[2]);
+    }
+
+    /** The records are the same as those from splitting the text into
+     *  lines. Prints the time taken by each.
+     */
+    @Test(timeout = 120000)
+    public void testParseLinesBenchmark() throws Exception {
+        final StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < _NUM_LINES; i++) {
+            builder.append("key").append(i).append('\t').append("value").append(i).append('\n');
+        }
+        final String text = builder.toString();
+
+        Token[] expected = null;
+        Token[] actual = null;
+        long splitNanos = Long.MAX_VALUE;
+        long parseNanos = Long.MAX_VALUE;
+        for(int i = 0; i < _NUM_RUNS; i++) {
+            long start = System.nanoTime();
+            expected = _splitLines(text);
+            splitNanos = Math.min(splitNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            actual = StubSinkActor._parseLines(text);
+            parseNanos = Math.min(parseNanos, System.nanoTime() - start);
+        }
+
+        assertEquals(expected.length, actual.length);
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+        System.out.println(String.format("%,d lines: split() %,d us, _parseLines() %,d us",
+                _NUM_LINES, splitNanos / 1000, parseNanos / 1000));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Assert that a token is a record with a key and value. */
+    private static void _assertRecord(String key, String value, Token token) {
+        final RecordToken record = (RecordToken) token;
+        assertEquals(new StringToken(key), record.get("key"));
+        assertEquals(new StringToken(value), record.get("value"));
+    }
+
+    /** Convert lines of text into records by splitting the text into
+     *  an array of lines, as StubSinkActor did before _parseLines().
+     */
+    private static Token[] _splitLines(String text) throws Exception {
+        final String[] lines = text.split("\n");
+        final Token[] tokens = new Token[lines.length];
+        for(int i = 0; i < lines.length; i++) {
+            final String line = lines[i];
+            final int tab = line.indexOf('\t');
+            tokens[i] = new RecordToken(new String[] {"key", "value"},
+                    new Token[] {new StringToken(tab < 0 ? line : line.substring(0, tab)),
+                    new StringToken(line)});
+        }
+        return tokens;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The number of lines to parse in the benchmark. */
+    private static final int _NUM_LINES = 200000;
+
+    /** The number of times to parse the lines in the benchmark. The
+     *  fastest time of each is printed.
+     */
+    private static final int _NUM_RUNS = 20;
+}
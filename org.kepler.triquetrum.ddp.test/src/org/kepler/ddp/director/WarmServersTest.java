@@ -0,0 +1,146 @@
+/* Tests for WarmServers.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Tests for WarmServers.
+ *
+ *  @version $Id$
+ */
+public class WarmServersTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** Remove the servers registered by a test. */
+    @After
+    public void tearDown() {
+        WarmServers.remove(_KEY);
+    }
+
+    /** A server that is not kept running is stopped by its last holder. */
+    @Test
+    public void testStopWhenLastHolderReleases() throws Exception {
+        final AtomicInteger stops = new AtomicInteger();
+        WarmServers.add(_KEY, _LOCK, _createStopper(stops));
+        assertTrue(WarmServers.acquire(_KEY));
+        assertEquals(2, WarmServers.getHolders(_KEY));
+
+        assertFalse(WarmServers.release(_KEY, false, 0));
+        assertTrue(WarmServers.contains(_KEY));
+        assertTrue(WarmServers.release(_KEY, false, 0));
+        assertFalse(WarmServers.contains(_KEY));
+        assertFalse(WarmServers.acquire(_KEY));
+        // the caller stops the server.
+        assertEquals(0, stops.get());
+    }
+
+    /** The idle timeout of a server kept running only starts when the
+     *  server has no holders.
+     */
+    @Test(timeout = 10000)
+    public void testIdleStopWaitsForHolders() throws Exception {
+        final AtomicInteger stops = new AtomicInteger();
+        WarmServers.add(_KEY, _LOCK, _createStopper(stops));
+        assertTrue(WarmServers.acquire(_KEY));
+
+        // the first holder keeps the server running, the second still uses it.
+        assertFalse(WarmServers.release(_KEY, true, _IDLE_TIMEOUT));
+        Thread.sleep(4 * _IDLE_TIMEOUT);
+        assertEquals(0, stops.get());
+        assertEquals(1, WarmServers.getHolders(_KEY));
+
+        // the second holder does not keep the server running, but the
+        // first asked to, so the server is stopped when idle.
+        assertFalse(WarmServers.release(_KEY, false, 0));
+        while(WarmServers.contains(_KEY)) {
+            Thread.sleep(_IDLE_TIMEOUT);
+        }
+        Thread.sleep(_IDLE_TIMEOUT);
+        assertEquals(1, stops.get());
+    }
+
+    /** Acquiring an idle server cancels its idle timeout. */
+    @Test
+    public void testAcquireCancelsIdleStop() throws Exception {
+        final AtomicInteger stops = new AtomicInteger();
+        WarmServers.add(_KEY, _LOCK, _createStopper(stops));
+        assertFalse(WarmServers.release(_KEY, true, _IDLE_TIMEOUT));
+        assertTrue(WarmServers.acquire(_KEY));
+        Thread.sleep(4 * _IDLE_TIMEOUT);
+        assertEquals(0, stops.get());
+        assertTrue(WarmServers.contains(_KEY));
+    }
+
+    /** A server kept running without an idle timeout is not stopped. */
+    @Test
+    public void testNoIdleTimeout() throws Exception {
+        final AtomicInteger stops = new AtomicInteger();
+        WarmServers.add(_KEY, _LOCK, _createStopper(stops));
+        assertFalse(WarmServers.release(_KEY, true, 0));
+        Thread.sleep(4 * _IDLE_TIMEOUT);
+        assertEquals(0, stops.get());
+        assertTrue(WarmServers.contains(_KEY));
+        assertEquals(0, WarmServers.getHolders(_KEY));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Create a ServerStopper that counts the number of times it is called. */
+    private static WarmServers.ServerStopper _createStopper(final AtomicInteger stops) {
+        return new WarmServers.ServerStopper() {
+            @Override
+            public void stop() {
+                stops.incrementAndGet();
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The idle timeout in milliseconds. */
+    private static final long _IDLE_TIMEOUT = 50;
+
+    /** The key of the server. */
+    private static final String _KEY = "Test:localhost/127.0.0.1:12345";
+
+    /** The lock held while stopping an idle server. */
+    private static final Object _LOCK = new Object();
+}
@@ -0,0 +1,237 @@
+/* Tests for ResultCache.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kepler.ddp.TokenCodec;
+import org.kepler.ddp.actor.pattern.DDPDataSink;
+import org.kepler.ddp.actor.pattern.DDPDataSource;
+import org.kepler.ddp.director.DDPDirector;
+
+import ptolemy.actor.Manager;
+import ptolemy.actor.TypedCompositeActor;
+import ptolemy.data.IntToken;
+import ptolemy.data.StringToken;
+import ptolemy.kernel.util.Settable;
+import ptolemy.kernel.util.Workspace;
+
+/** Tests for ResultCache.
+ *
+ *  @version $Id$
+ */
+public class ResultCacheTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public fields                      //////
+
+    /** The temporary directory for the inputs, outputs, and cache. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** An entry can be read after it is added. */
+    @Test
+    public void testPutAndGet() throws Exception {
+        final ResultCache cache = new ResultCache(folder.newFolder("cache"));
+        final String fingerprint = _fingerprint("a");
+        assertNull(cache.get(fingerprint));
+
+        cache.put(fingerprint, Arrays.asList(
+                new KeyValuePair(new StringToken("a"), new IntToken(1)),
+                new KeyValuePair(new StringToken("b"), new IntToken(2))));
+        final List<KeyValuePair> pairs = cache.get(fingerprint);
+        assertEquals(2, pairs.size());
+        assertEquals(new StringToken("b"), pairs.get(1).getKey());
+        assertEquals(new IntToken(2), pairs.get(1).getValue());
+    }
+
+    /** An entry written in an older format is a miss, and is deleted. */
+    @Test
+    public void testOldFormatEntryIsMiss() throws Exception {
+        final File directory = folder.newFolder("cache");
+        final ResultCache cache = new ResultCache(directory);
+        final String fingerprint = _fingerprint("a");
+        cache.put(fingerprint, Arrays.asList(
+                new KeyValuePair(new StringToken("a"), new IntToken(1))));
+        final File entry = _getEntries(directory)[0];
+        _writeOldFormatEntry(entry);
+
+        assertNull(cache.get(fingerprint));
+        assertFalse(entry.exists());
+    }
+
+    /** When the cache exceeds its maximum size, the least recently used
+     *  entries are evicted, and the entry just added is kept.
+     */
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        final File directory = folder.newFolder("cache");
+        final List<KeyValuePair> pairs = Arrays.asList(
+                new KeyValuePair(new StringToken("a"), new IntToken(1)));
+        final ResultCache unlimited = new ResultCache(directory);
+        unlimited.put(_fingerprint("a"), pairs);
+        final long entrySize = _getEntries(directory)[0].length();
+
+        final ResultCache cache = new ResultCache(directory, 2 * entrySize);
+        cache.put(_fingerprint("b"), pairs);
+        final long now = System.currentTimeMillis();
+        _setLastModified(directory, "a", now - 20000);
+        _setLastModified(directory, "b", now - 10000);
+        assertEquals(2, _getEntries(directory).length);
+
+        // reading a marks it as used, so b is evicted.
+        assertNotNull(cache.get(_fingerprint("a")));
+        cache.put(_fingerprint("c"), pairs);
+        assertEquals(2, _getEntries(directory).length);
+        assertNotNull(cache.get(_fingerprint("a")));
+        assertNull(cache.get(_fingerprint("b")));
+        assertNotNull(cache.get(_fingerprint("c")));
+
+        // an entry larger than the maximum size is kept until the next one is added.
+        final ResultCache small = new ResultCache(directory, 1);
+        small.put(_fingerprint("d"), pairs);
+        assertEquals(1, _getEntries(directory).length);
+        assertNotNull(small.get(_fingerprint("d")));
+    }
+
+    /** A job whose result cache entry was written in an older format
+     *  computes the result again and replaces the entry.
+     */
+    @Test(timeout = 60000)
+    public void testJobWithOldFormatEntry() throws Exception {
+        final File input = folder.newFile("input.txt");
+        Files.write(input.toPath(), Arrays.asList("a", "b", "c"), StandardCharsets.UTF_8);
+        final File output = new File(folder.getRoot(), "output.txt");
+        final File directory = folder.newFolder("cache");
+        final TypedCompositeActor model = _createModel(input, output, directory);
+
+        _execute(model);
+        final List<String> expected = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+        assertEquals(3, expected.size());
+        final File[] entries = _getEntries(directory);
+        assertEquals(1, entries.length);
+
+        _writeOldFormatEntry(entries[0]);
+        assertTrue(output.delete());
+
+        _execute(model);
+        assertEquals(expected, Files.readAllLines(output.toPath(), StandardCharsets.UTF_8));
+        final String name = entries[0].getName();
+        assertNotNull(new ResultCache(directory).get(name.substring(0, name.length() - _SUFFIX.length())));
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Create a model that copies the lines of a file to another file
+     *  with the Local engine and a result cache.
+     */
+    private static TypedCompositeActor _createModel(File input, File output, File directory)
+            throws Exception {
+        final TypedCompositeActor model = new TypedCompositeActor(new Workspace());
+        model.setName("model");
+        final DDPDirector director = new DDPDirector(model, "DDPDirector");
+        director.engine.setToken(new StringToken(LocalEngine.ENGINE_NAME));
+        ((Settable) director.getAttribute(LocalEngine.RESULT_CACHE_DIRECTORY_NAME))
+                .setExpression(directory.getAbsolutePath());
+
+        final DDPDataSource source = new DDPDataSource(model, "DDPDataSource");
+        source.path.setExpression(input.getAbsolutePath());
+        final DDPDataSink sink = new DDPDataSink(model, "DDPDataSink");
+        sink.formatType.setExpression("LineOutputFormat");
+        sink.path.setExpression(output.getAbsolutePath());
+        model.connect(source.out, sink.in);
+        return model;
+    }
+
+    /** Execute a model. */
+    private static void _execute(TypedCompositeActor model) throws Exception {
+        final Manager manager = new Manager(model.workspace(), "manager");
+        model.setManager(manager);
+        manager.execute();
+    }
+
+    /** Get a fingerprint for a string. */
+    private static String _fingerprint(String value) throws Exception {
+        final ResultCache.Fingerprint fingerprint = new ResultCache.Fingerprint();
+        fingerprint.add(value);
+        return fingerprint.getValue();
+    }
+
+    /** Get the entries in a cache directory. */
+    private static File[] _getEntries(File directory) {
+        return directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(_SUFFIX);
+            }
+        });
+    }
+
+    /** Set the modification time of the entry for a fingerprint. */
+    private static void _setLastModified(File directory, String value, long time) throws Exception {
+        assertTrue(new File(directory, _fingerprint(value) + _SUFFIX).setLastModified(time));
+    }
+
+    /** Replace an entry with one written by an older version of TokenCodec. */
+    private static void _writeOldFormatEntry(File entry) throws IOException {
+        try(DataOutputStream output = new DataOutputStream(new FileOutputStream(entry))) {
+            output.writeInt(TokenCodec.MAGIC | (TokenCodec.VERSION - 1));
+            output.writeInt(1);
+            output.writeUTF("old");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The suffix of the cache entry files. */
+    private static final String _SUFFIX = ".result";
+}
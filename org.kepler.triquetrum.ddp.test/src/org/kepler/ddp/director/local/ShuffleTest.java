@@ -0,0 +1,289 @@
+/* Tests for Shuffle.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kepler.ddp.TokenCodec;
+
+import ptolemy.data.IntToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+
+/** Tests for Shuffle.
+ *
+ *  @version $Id$
+ */
+public class ShuffleTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public fields                      //////
+
+    /** The temporary directory for the spill files. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** Pairs within the budget are not spilled. */
+    @Test
+    public void testNoSpillWithinBudget() throws Exception {
+        final List<KeyValuePair> pairs = _createPairs(1000, 10, 1);
+        final Shuffle shuffle = new Shuffle(3, _getEncodedLength(pairs),
+                folder.newFolder("spill"));
+        try {
+            shuffle.addAll(pairs);
+            assertEquals(0, shuffle.getNumSpilledPairs());
+            _assertPartitionsInOrder(shuffle, pairs);
+        } finally {
+            shuffle.close();
+        }
+    }
+
+    /** The budget is the encoded size of the pairs, not the number of
+     *  pairs, so the same number of pairs with larger values is spilled.
+     */
+    @Test
+    public void testBudgetIsEncodedSize() throws Exception {
+        final List<KeyValuePair> small = _createPairs(100, 10, 1);
+        final List<KeyValuePair> large = _createPairs(100, 10, 100);
+        final long budget = _getEncodedLength(small);
+        assertTrue(_getEncodedLength(large) > budget);
+
+        final Shuffle smallShuffle = new Shuffle(1, budget, folder.newFolder("small"));
+        final Shuffle largeShuffle = new Shuffle(1, budget, folder.newFolder("large"));
+        try {
+            smallShuffle.addAll(small);
+            largeShuffle.addAll(large);
+            assertEquals(0, smallShuffle.getNumSpilledPairs());
+            assertTrue(largeShuffle.getNumSpilledPairs() > 0);
+        } finally {
+            smallShuffle.close();
+            largeShuffle.close();
+        }
+    }
+
+    /** Spilled pairs are read back in the order they were added,
+     *  followed by the buffered pairs.
+     */
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        final List<KeyValuePair> pairs = _createPairs(10000, 100, 1);
+        // spill several times for each partition.
+        final Shuffle shuffle = new Shuffle(3, _getEncodedLength(pairs) / 20,
+                folder.newFolder("spill"));
+        try {
+            shuffle.addAll(pairs);
+            assertTrue(shuffle.getNumSpilledPairs() > 0);
+            assertTrue(shuffle.getNumSpilledPairs() < pairs.size());
+            assertEquals(pairs.size(), shuffle.getNumPairs());
+            _assertPartitionsInOrder(shuffle, pairs);
+        } finally {
+            shuffle.close();
+        }
+    }
+
+    /** With a key comparator, each partition is read sorted by key as
+     *  a merge of the spilled runs and the buffer, and pairs with equal
+     *  keys are read in the order they were added.
+     */
+    @Test
+    public void testSortedMerge() throws Exception {
+        final List<KeyValuePair> pairs = _createPairs(10000, 100, 1);
+        final Shuffle shuffle = new Shuffle(3, _getEncodedLength(pairs) / 20,
+                folder.newFolder("spill"), new TokenComparator());
+        try {
+            shuffle.addAll(pairs);
+            assertTrue(shuffle.getNumSpilledPairs() > 0);
+
+            int numRead = 0;
+            for(int i = 0; i < shuffle.getNumPartitions(); i++) {
+                final Shuffle.PartitionReader reader = shuffle.open(i);
+                KeyValuePair previous = null;
+                KeyValuePair pair;
+                while((pair = reader.next()) != null) {
+                    assertEquals(i, Shuffle.partition(pair.getKey(), shuffle.getNumPartitions()));
+                    if(previous != null) {
+                        final int key = ((IntToken) pair.getKey()).intValue();
+                        final int previousKey = ((IntToken) previous.getKey()).intValue();
+                        assertTrue(previousKey <= key);
+                        if(previousKey == key) {
+                            assertTrue(_getSequence(previous) < _getSequence(pair));
+                        }
+                    }
+                    previous = pair;
+                    numRead++;
+                }
+            }
+            assertEquals(pairs.size(), numRead);
+        } finally {
+            shuffle.close();
+        }
+    }
+
+    /** A Partitioner consistent with the key comparator puts keys that
+     *  the comparator treats as equal in the same partition, although
+     *  their hash codes differ.
+     */
+    @Test
+    public void testPartitioner() throws Exception {
+        final List<KeyValuePair> pairs = new ArrayList<KeyValuePair>();
+        for(int i = 0; i < 1000; i++) {
+            pairs.add(new KeyValuePair(new StringToken((char) ('a' + i % 5) + "-" + i),
+                    new IntToken(i)));
+        }
+        final PrefixComparator comparator = new PrefixComparator();
+        final Shuffle shuffle = new Shuffle(3, _getEncodedLength(pairs) / 10,
+                folder.newFolder("spill"), comparator, comparator);
+        try {
+            shuffle.addAll(pairs);
+            assertTrue(shuffle.getNumSpilledPairs() > 0);
+
+            final Set<Character> prefixes = new HashSet<Character>();
+            int numRead = 0;
+            for(int i = 0; i < shuffle.getNumPartitions(); i++) {
+                final Shuffle.PartitionReader reader = shuffle.open(i);
+                KeyValuePair previous = null;
+                KeyValuePair pair;
+                while((pair = reader.next()) != null) {
+                    final char prefix = ((StringToken) pair.getKey()).stringValue().charAt(0);
+                    assertEquals(i, comparator.partition(pair.getKey(), shuffle.getNumPartitions()));
+                    if(previous == null || comparator.compare(previous.getKey(), pair.getKey()) != 0) {
+                        // each group is read once, from one partition.
+                        assertTrue(prefixes.add(prefix));
+                    } else {
+                        // equal keys are in the order they were added.
+                        assertTrue(((IntToken) previous.getValue()).intValue() <
+                                ((IntToken) pair.getValue()).intValue());
+                    }
+                    previous = pair;
+                    numRead++;
+                }
+            }
+            assertEquals(5, prefixes.size());
+            assertEquals(pairs.size(), numRead);
+        } finally {
+            shuffle.close();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public inner classes               //////
+
+    /** A grouping comparator that compares the first character of string
+     *  keys, and partitions the keys by the first character.
+     */
+    public static class PrefixComparator implements Comparator<Token>, Shuffle.Partitioner {
+
+        /** Compare the first characters of two keys. */
+        @Override
+        public int compare(Token token1, Token token2) {
+            return Character.compare(((StringToken) token1).stringValue().charAt(0),
+                    ((StringToken) token2).stringValue().charAt(0));
+        }
+
+        /** Get the partition for the first character of a key. */
+        @Override
+        public int partition(Token key, int numPartitions) {
+            return ((StringToken) key).stringValue().charAt(0) % numPartitions;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Assert that each partition contains the pairs for its keys in the
+     *  order they were added.
+     */
+    private static void _assertPartitionsInOrder(Shuffle shuffle, List<KeyValuePair> pairs)
+            throws Exception {
+        final int numPartitions = shuffle.getNumPartitions();
+        for(int i = 0; i < numPartitions; i++) {
+            final Shuffle.PartitionReader reader = shuffle.open(i);
+            for(KeyValuePair pair : pairs) {
+                if(Shuffle.partition(pair.getKey(), numPartitions) == i) {
+                    final KeyValuePair read = reader.next();
+                    assertEquals(pair.getKey(), read.getKey());
+                    assertEquals(pair.getValue(), read.getValue());
+                }
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    /** Create pairs with random int keys and string values that start
+     *  with the position of the pair.
+     *  @param numPairs the number of pairs.
+     *  @param numKeys the number of different keys.
+     *  @param valueLength the number of characters added to each value.
+     */
+    private static List<KeyValuePair> _createPairs(int numPairs, int numKeys, int valueLength) {
+        final Random random = new Random(1);
+        final StringBuilder padding = new StringBuilder();
+        for(int i = 0; i < valueLength; i++) {
+            padding.append('x');
+        }
+        final List<KeyValuePair> pairs = new ArrayList<KeyValuePair>(numPairs);
+        for(int i = 0; i < numPairs; i++) {
+            pairs.add(new KeyValuePair(new IntToken(random.nextInt(numKeys)),
+                    new StringToken(i + ":" + padding)));
+        }
+        return pairs;
+    }
+
+    /** Get the total encoded size of pairs. */
+    private static long _getEncodedLength(List<KeyValuePair> pairs) throws Exception {
+        long retval = 0;
+        for(KeyValuePair pair : pairs) {
+            retval += TokenCodec.getEncodedLength(pair.getKey()) +
+                    TokenCodec.getEncodedLength(pair.getValue());
+        }
+        return retval;
+    }
+
+    /** Get the position of a pair created by _createPairs(). */
+    private static int _getSequence(KeyValuePair pair) {
+        final String value = ((StringToken) pair.getValue()).stringValue();
+        return Integer.parseInt(value.substring(0, value.indexOf(':')));
+    }
+}
@@ -0,0 +1,275 @@
+/* Tests for SubWorkflowRunner.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kepler.ddp.actor.pattern.DDPDataSink;
+import org.kepler.ddp.actor.pattern.DDPDataSource;
+import org.kepler.ddp.actor.pattern.Map;
+import org.kepler.ddp.actor.pattern.stub.MapInput;
+import org.kepler.ddp.actor.pattern.stub.StubSinkActor;
+import org.kepler.ddp.director.DDPDirector;
+
+import ptolemy.actor.Manager;
+import ptolemy.actor.TypedAtomicActor;
+import ptolemy.actor.TypedCompositeActor;
+import ptolemy.actor.TypedIOPort;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.StringToken;
+import ptolemy.domains.sdf.kernel.SDFDirector;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.SingletonAttribute;
+import ptolemy.kernel.util.Workspace;
+
+/** Tests for SubWorkflowRunner. Each test executes a model with the
+ *  Local engine that reads lines from a file, passes each through a
+ *  Map sub-workflow, and writes them to another file.
+ *
+ *  @version $Id$
+ */
+public class SubWorkflowRunnerTest {
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public fields                      //////
+
+    /** The temporary directory for the inputs and outputs. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public methods                     //////
+
+    /** Reset the lifecycle counts. */
+    @Before
+    public void setUp() {
+        LifecycleCounter.fired.set(0);
+        LifecycleCounter.initialized.set(0);
+        LifecycleCounter.wrappedUp.set(0);
+    }
+
+    /** By default, the full lifecycle is executed for each input, so
+     *  the sub-workflow is wrapped up each time it is initialized.
+     */
+    @Test(timeout = 60000)
+    public void testFullLifecycleIsDefault() throws Exception {
+        final TypedCompositeActor model = _createModel();
+        _getMap(model).runWorkflowLifecyclePerInput.setToken(BooleanToken.TRUE);
+        _execute(model);
+        assertTrue(LifecycleCounter.initialized.get() >= _INPUT_LINES.size());
+        assertEquals(LifecycleCounter.initialized.get(), LifecycleCounter.wrappedUp.get());
+    }
+
+    /** With lightLifecycleReset, the sub-workflow is initialized for
+     *  each input but only wrapped up after the last one.
+     */
+    @Test(timeout = 60000)
+    public void testLightLifecycleReset() throws Exception {
+        final TypedCompositeActor model = _createModel();
+        final Map map = _getMap(model);
+        map.runWorkflowLifecyclePerInput.setToken(BooleanToken.TRUE);
+        map.lightLifecycleReset.setToken(BooleanToken.TRUE);
+        _execute(model);
+        assertTrue(LifecycleCounter.initialized.get() >= _INPUT_LINES.size());
+        assertTrue(LifecycleCounter.wrappedUp.get() < LifecycleCounter.initialized.get());
+    }
+
+    /** An actor containing the _fullLifecyclePerInput attribute makes
+     *  the sub-workflow execute the full lifecycle for each input even
+     *  with lightLifecycleReset.
+     */
+    @Test(timeout = 60000)
+    public void testFullLifecycleAttribute() throws Exception {
+        final TypedCompositeActor model = _createModel();
+        final Map map = _getMap(model);
+        map.runWorkflowLifecyclePerInput.setToken(BooleanToken.TRUE);
+        map.lightLifecycleReset.setToken(BooleanToken.TRUE);
+        new SingletonAttribute(map.getEntity("counter"),
+                SubWorkflowRunner.FULL_LIFECYCLE_ATTRIBUTE_NAME);
+        _execute(model);
+        assertTrue(LifecycleCounter.initialized.get() >= _INPUT_LINES.size());
+        assertEquals(LifecycleCounter.initialized.get(), LifecycleCounter.wrappedUp.get());
+    }
+
+    /** A sub-workflow iterated in the task thread is fired once for each
+     *  input and is only initialized and wrapped up once.
+     */
+    @Test(timeout = 60000)
+    public void testRunInTaskThread() throws Exception {
+        final TypedCompositeActor model = _createModel();
+        ((DDPDirector) model.getDirector()).runSubWorkflowsInTaskThreads.setToken(BooleanToken.TRUE);
+        _execute(model);
+        assertEquals(_INPUT_LINES.size(), LifecycleCounter.fired.get());
+        assertEquals(LifecycleCounter.initialized.get(), LifecycleCounter.wrappedUp.get());
+        assertTrue(LifecycleCounter.initialized.get() < _INPUT_LINES.size());
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public inner classes               //////
+
+    /** An actor that sends its input to its output and counts the
+     *  number of times it is fired, initialized, and wrapped up.
+     */
+    public static class LifecycleCounter extends TypedAtomicActor {
+
+        /** Construct a new LifecycleCounter in a container with a given name. */
+        public LifecycleCounter(CompositeEntity container, String name)
+                throws IllegalActionException, NameDuplicationException {
+            super(container, name);
+            input = new TypedIOPort(this, "input", true, false);
+            output = new TypedIOPort(this, "output", false, true);
+            output.setTypeAtLeast(input);
+        }
+
+        /** Send the input to the output. */
+        @Override
+        public void fire() throws IllegalActionException {
+            super.fire();
+            fired.incrementAndGet();
+            output.send(0, input.get(0));
+        }
+
+        /** Count the initialization. */
+        @Override
+        public void initialize() throws IllegalActionException {
+            super.initialize();
+            initialized.incrementAndGet();
+        }
+
+        /** Count the wrapup. */
+        @Override
+        public void wrapup() throws IllegalActionException {
+            wrappedUp.incrementAndGet();
+            super.wrapup();
+        }
+
+        /** The input port. */
+        public TypedIOPort input;
+
+        /** The output port. */
+        public TypedIOPort output;
+
+        /** The number of times any LifecycleCounter was fired. */
+        public static final AtomicInteger fired = new AtomicInteger();
+
+        /** The number of times any LifecycleCounter was initialized. */
+        public static final AtomicInteger initialized = new AtomicInteger();
+
+        /** The number of times any LifecycleCounter was wrapped up. */
+        public static final AtomicInteger wrappedUp = new AtomicInteger();
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Create a model that reads the input lines from a file, passes
+     *  them through a Map with one degree of parallelism, and writes
+     *  them to a file. The Map contains a LifecycleCounter named counter.
+     */
+    private TypedCompositeActor _createModel() throws Exception {
+        final File input = folder.newFile("input.txt");
+        Files.write(input.toPath(), _INPUT_LINES, StandardCharsets.UTF_8);
+        _output = new File(folder.getRoot(), "output.txt");
+
+        final TypedCompositeActor model = new TypedCompositeActor(new Workspace());
+        model.setName("model");
+        final DDPDirector director = new DDPDirector(model, "DDPDirector");
+        director.engine.setToken(new StringToken(LocalEngine.ENGINE_NAME));
+        director.degreeOfParallelism.setToken(new IntToken(1));
+
+        final DDPDataSource source = new DDPDataSource(model, "DDPDataSource");
+        source.path.setExpression(input.getAbsolutePath());
+        final DDPDataSink sink = new DDPDataSink(model, "DDPDataSink");
+        sink.formatType.setExpression("LineOutputFormat");
+        sink.path.setExpression(_output.getAbsolutePath());
+
+        final Map map = new Map(model, "Map");
+        new SDFDirector(map, "SDFDirector");
+        final MapInput mapInput = new MapInput(map, "MapInput");
+        final LifecycleCounter counter = new LifecycleCounter(map, "counter");
+        final StubSinkActor mapOutput = new StubSinkActor(map, "MapOutput");
+        map.connect(map.in, mapInput.in);
+        map.connect(mapInput.value, counter.input);
+        map.connect(counter.output, mapOutput.lines);
+        map.connect(mapOutput.out, map.out);
+
+        model.connect(source.out, map.in);
+        model.connect(map.out, sink.in);
+        return model;
+    }
+
+    /** Execute a model and check that each input line was written to
+     *  the output file as the key and value.
+     */
+    private void _execute(TypedCompositeActor model) throws Exception {
+        final Manager manager = new Manager(model.workspace(), "manager");
+        model.setManager(manager);
+        manager.execute();
+
+        final List<String> expected = new ArrayList<String>();
+        for(String line : _INPUT_LINES) {
+            expected.add(line + "\t" + line);
+        }
+        final List<String> lines = Files.readAllLines(_output.toPath(), StandardCharsets.UTF_8);
+        Collections.sort(lines);
+        assertEquals(expected, lines);
+    }
+
+    /** Get the Map actor in a model created by _createModel(). */
+    private static Map _getMap(TypedCompositeActor model) {
+        return (Map) model.getEntity("Map");
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The lines in the input file, in sorted order. */
+    private static final List<String> _INPUT_LINES = Arrays.asList("a", "b", "c");
+
+    /** The output file of the model created by _createModel(). */
+    private File _output;
+}
@@ -0,0 +1,479 @@
+/* A binary encoding of tokens.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.kepler.ddp.Utilities.TokenType;
+
+import ptolemy.data.ArrayToken;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.FloatToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.LongToken;
+import ptolemy.data.RecordToken;
+import ptolemy.data.ShortToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+import ptolemy.data.UnsignedByteToken;
+import ptolemy.kernel.util.IllegalActionException;
+
+/** A compact binary encoding of tokens. Each token is written as the
+ *  TokenType of the token followed by its value:
+ *
+ *  <ul>
+ *  <li>Int, Long, Short, Float, Double, UnsignedByte and Boolean tokens
+ *  are written as their big-endian value.</li>
+ *  <li>String tokens are written as the number of bytes and the UTF-8 bytes.</li>
+ *  <li>Record tokens are written as the number of fields, and then the
+ *  label and the token for each field.</li>
+ *  <li>Array tokens are written as the number of elements and the elements.</li>
+ *  <li>Token.NIL is written as the type alone.</li>
+ *  <li>Other tokens, e.g., matrices and empty arrays, are written with
+ *  Java serialization.</li>
+ *  </ul>
+ *
+ *  <p>A stream of tokens should start with the header written by
+ *  writeHeader(), so that a reader can check the version of the encoding.
+ *  Tokens can be read directly from a ByteBuffer, e.g., a memory-mapped
+ *  file, without copying the bytes.</p>
+ *
+ *  @version $Id$
+ */
+public final class TokenCodec {
+
+    /** This class cannot be instantiated. */
+    private TokenCodec() {
+    }
+
+    /** Get the number of bytes written by write() for a token, without
+     *  writing it. Tokens written with Java serialization are serialized
+     *  to count their bytes.
+     */
+    public static long getEncodedLength(Token token) throws IOException {
+        final TokenType type = getTokenType(token);
+        // the type
+        long retval = 1;
+        switch(type) {
+        case String:
+            retval += _getEncodedLength(((StringToken) token).stringValue());
+            break;
+        case Int:
+        case Float:
+            retval += 4;
+            break;
+        case Double:
+        case Long:
+            retval += 8;
+            break;
+        case Nil:
+            break;
+        case Record: {
+            final RecordToken record = (RecordToken) token;
+            retval += 4;
+            for(String label : record.labelSet()) {
+                retval += _getEncodedLength(label) + getEncodedLength(record.get(label));
+            }
+            break;
+        }
+        case Boolean:
+        case UnsignedByte:
+            retval += 1;
+            break;
+        case Array: {
+            final ArrayToken array = (ArrayToken) token;
+            retval += 4;
+            final int length = array.length();
+            for(int i = 0; i < length; i++) {
+                retval += getEncodedLength(array.getElement(i));
+            }
+            break;
+        }
+        case Short:
+            retval += 2;
+            break;
+        case Serialized:
+            retval += 4 + _serialize(token).length;
+            break;
+        default:
+            throw new IOException("Unsupported token type: " + type);
+        }
+        return retval;
+    }
+
+    /** Get the TokenType used to encode a token. */
+    public static TokenType getTokenType(Token token) {
+        final Class<?> tokenClass = token.getClass();
+        if(token.isNil()) {
+            // nil tokens of other classes are not the same as Token.NIL.
+            return tokenClass == Token.class ? TokenType.Nil : TokenType.Serialized;
+        } else if(tokenClass == StringToken.class) {
+            return TokenType.String;
+        } else if(tokenClass == IntToken.class) {
+            return TokenType.Int;
+        } else if(tokenClass == DoubleToken.class) {
+            return TokenType.Double;
+        } else if(tokenClass == LongToken.class) {
+            return TokenType.Long;
+        } else if(tokenClass == RecordToken.class) {
+            return TokenType.Record;
+        } else if(tokenClass == BooleanToken.class) {
+            return TokenType.Boolean;
+        } else if(tokenClass == ArrayToken.class) {
+            final ArrayToken array = (ArrayToken) token;
+            // the element type of an empty array, or of an array more general
+            // than its elements, is not known from the elements.
+            if(array.length() > 0 &&
+                    array.getElementType().equals(array.getElement(0).getType())) {
+                return TokenType.Array;
+            }
+            return TokenType.Serialized;
+        } else if(tokenClass == ShortToken.class) {
+            return TokenType.Short;
+        } else if(tokenClass == FloatToken.class) {
+            return TokenType.Float;
+        } else if(tokenClass == UnsignedByteToken.class) {
+            return TokenType.UnsignedByte;
+        }
+        return TokenType.Serialized;
+    }
+
+    /** Read a token from a ByteBuffer. The position of the buffer is
+     *  advanced past the token.
+     */
+    public static Token read(ByteBuffer buffer) throws IOException {
+        try {
+            final TokenType type = _getTokenType(buffer.get());
+            switch(type) {
+            case String:
+                return new StringToken(_readString(buffer));
+            case Int:
+                return new IntToken(buffer.getInt());
+            case Double:
+                return new DoubleToken(buffer.getDouble());
+            case Long:
+                return new LongToken(buffer.getLong());
+            case Nil:
+                return Token.NIL;
+            case Record: {
+                final int size = _readLength(buffer.getInt());
+                final String[] labels = new String[size];
+                final Token[] values = new Token[size];
+                for(int i = 0; i < size; i++) {
+                    labels[i] = _readString(buffer);
+                    values[i] = read(buffer);
+                }
+                return new RecordToken(labels, values);
+            }
+            case Boolean:
+                return BooleanToken.getInstance(buffer.get() != 0);
+            case Array: {
+                final Token[] elements = new Token[_readLength(buffer.getInt())];
+                for(int i = 0; i < elements.length; i++) {
+                    elements[i] = read(buffer);
+                }
+                return new ArrayToken(elements);
+            }
+            case Short:
+                return new ShortToken(buffer.getShort());
+            case Float:
+                return new FloatToken(buffer.getFloat());
+            case UnsignedByte:
+                return new UnsignedByteToken(buffer.get());
+            case Serialized: {
+                final byte[] bytes = new byte[_readLength(buffer.getInt())];
+                buffer.get(bytes);
+                return _deserialize(bytes);
+            }
+            default:
+                throw new IOException("Unsupported token type: " + type);
+            }
+        } catch(BufferUnderflowException e) {
+            throw new IOException("Unexpected end of encoded token.", e);
+        } catch(IllegalActionException e) {
+            throw new IOException("Error creating token: " + e.getMessage(), e);
+        }
+    }
+
+    /** Read a token from a DataInput. */
+    public static Token read(DataInput input) throws IOException {
+        try {
+            final TokenType type = _getTokenType(input.readByte());
+            switch(type) {
+            case String:
+                return new StringToken(_readString(input));
+            case Int:
+                return new IntToken(input.readInt());
+            case Double:
+                return new DoubleToken(input.readDouble());
+            case Long:
+                return new LongToken(input.readLong());
+            case Nil:
+                return Token.NIL;
+            case Record: {
+                final int size = _readLength(input.readInt());
+                final String[] labels = new String[size];
+                final Token[] values = new Token[size];
+                for(int i = 0; i < size; i++) {
+                    labels[i] = _readString(input);
+                    values[i] = read(input);
+                }
+                return new RecordToken(labels, values);
+            }
+            case Boolean:
+                return BooleanToken.getInstance(input.readBoolean());
+            case Array: {
+                final Token[] elements = new Token[_readLength(input.readInt())];
+                for(int i = 0; i < elements.length; i++) {
+                    elements[i] = read(input);
+                }
+                return new ArrayToken(elements);
+            }
+            case Short:
+                return new ShortToken(input.readShort());
+            case Float:
+                return new FloatToken(input.readFloat());
+            case UnsignedByte:
+                return new UnsignedByteToken(input.readByte());
+            case Serialized: {
+                final byte[] bytes = new byte[_readLength(input.readInt())];
+                input.readFully(bytes);
+                return _deserialize(bytes);
+            }
+            default:
+                throw new IOException("Unsupported token type: " + type);
+            }
+        } catch(IllegalActionException e) {
+            throw new IOException("Error creating token: " + e.getMessage(), e);
+        }
+    }
+
+    /** Read and check the header of a stream of tokens from a ByteBuffer. */
+    public static void readHeader(ByteBuffer buffer) throws IOException {
+        try {
+            _checkHeader(buffer.getInt());
+        } catch(BufferUnderflowException e) {
+            throw new IOException("Missing token stream header.", e);
+        }
+    }
+
+    /** Read and check the header of a stream of tokens from a DataInput. */
+    public static void readHeader(DataInput input) throws IOException {
+        _checkHeader(input.readInt());
+    }
+
+    /** Write a token. */
+    public static void write(Token token, DataOutput output) throws IOException {
+        final TokenType type = getTokenType(token);
+        output.writeByte(type.getValue());
+        switch(type) {
+        case String:
+            _writeString(((StringToken) token).stringValue(), output);
+            break;
+        case Int:
+            output.writeInt(((IntToken) token).intValue());
+            break;
+        case Double:
+            output.writeDouble(((DoubleToken) token).doubleValue());
+            break;
+        case Long:
+            output.writeLong(((LongToken) token).longValue());
+            break;
+        case Nil:
+            break;
+        case Record: {
+            final RecordToken record = (RecordToken) token;
+            final Set<String> labels = record.labelSet();
+            output.writeInt(labels.size());
+            for(String label : labels) {
+                _writeString(label, output);
+                write(record.get(label), output);
+            }
+            break;
+        }
+        case Boolean:
+            output.writeBoolean(((BooleanToken) token).booleanValue());
+            break;
+        case Array: {
+            final ArrayToken array = (ArrayToken) token;
+            final int length = array.length();
+            output.writeInt(length);
+            for(int i = 0; i < length; i++) {
+                write(array.getElement(i), output);
+            }
+            break;
+        }
+        case Short:
+            output.writeShort(((ShortToken) token).shortValue());
+            break;
+        case Float:
+            output.writeFloat(((FloatToken) token).floatValue());
+            break;
+        case UnsignedByte:
+            output.writeByte(((UnsignedByteToken) token).byteValue());
+            break;
+        case Serialized: {
+            final byte[] bytes = _serialize(token);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+            break;
+        }
+        default:
+            throw new IOException("Unsupported token type: " + type);
+        }
+    }
+
+    /** Write the header of a stream of tokens. */
+    public static void writeHeader(DataOutput output) throws IOException {
+        output.writeInt(MAGIC | VERSION);
+    }
+
+    /** The first three bytes of the header: "KTC". */
+    public static final int MAGIC = 0x4B544300;
+
+    /** The version of the encoding, the last byte of the header. */
+    public static final int VERSION = 1;
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Check the header of a stream of tokens. */
+    private static void _checkHeader(int header) throws IOException {
+        if((header & 0xffffff00) != MAGIC) {
+            throw new IOException("Not an encoded token stream.");
+        }
+        if((header & 0xff) != VERSION) {
+            throw new IOException("Unsupported token encoding version " + (header & 0xff));
+        }
+    }
+
+    /** Deserialize a token written with Java serialization. */
+    private static Token _deserialize(byte[] bytes) throws IOException {
+        try(ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Token) input.readObject();
+        } catch(ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Error deserializing token.", e);
+        }
+    }
+
+    /** Get the number of bytes written by _writeString() for a string. */
+    private static long _getEncodedLength(String string) {
+        long retval = 4;
+        final int length = string.length();
+        for(int i = 0; i < length; i++) {
+            final char c = string.charAt(i);
+            if(c < 0x80) {
+                retval++;
+            } else if(c < 0x800) {
+                retval += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < length &&
+                    Character.isLowSurrogate(string.charAt(i + 1))) {
+                retval += 4;
+                i++;
+            } else {
+                // an unpaired surrogate is encoded as one replacement byte.
+                retval += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return retval;
+    }
+
+    /** Get the TokenType for an encoded type. */
+    private static TokenType _getTokenType(byte value) throws IOException {
+        try {
+            return TokenType.getInstance(value & 0xff);
+        } catch(IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /** Check a length read from an encoded token. */
+    private static int _readLength(int length) throws IOException {
+        if(length < 0) {
+            throw new IOException("Invalid length in encoded token: " + length);
+        }
+        return length;
+    }
+
+    /** Read a string from a ByteBuffer. The bytes are decoded in place if
+     *  the buffer has a backing array.
+     */
+    private static String _readString(ByteBuffer buffer) throws IOException {
+        final int length = _readLength(buffer.getInt());
+        if(buffer.hasArray()) {
+            final int position = buffer.position();
+            if(length > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            buffer.position(position + length);
+            return new String(buffer.array(), buffer.arrayOffset() + position,
+                    length, StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Read a string from a DataInput. */
+    private static String _readString(DataInput input) throws IOException {
+        final byte[] bytes = new byte[_readLength(input.readInt())];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Serialize a token with Java serialization. */
+    private static byte[] _serialize(Token token) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream objectOutput = new ObjectOutputStream(bytes)) {
+            objectOutput.writeObject(token);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Write a string as the number of UTF-8 bytes and the bytes. Unlike
+     *  DataOutput.writeUTF(), the string may be longer than 64K bytes.
+     */
+    private static void _writeString(String string, DataOutput output) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
@@ -0,0 +1,404 @@
+/* Off-heap storage for lists of tokens.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ptolemy.data.Token;
+
+/** Off-heap storage for lists of tokens that are held for the length of a
+ *  job, e.g., the data of DDPDataSource and DDPDataSink actors. Tokens are
+ *  encoded with TokenCodec into direct buffers outside the Java heap, so
+ *  they are not traced by the garbage collector. When the buffers for all
+ *  the lists reach the memory limit, new buffers are memory-mapped from
+ *  spill files, and the operating system pages them to disk as needed.
+ *  A token is decoded each time it is read.
+ *
+ *  <p>Each DDP engine owns a store created with the memory limit of its
+ *  director, so the limit applies to the lists of that engine only. The
+ *  store is disabled if the memory limit is 0.</p>
+ *
+ *  <p>The memory of a direct buffer is only released when the buffer is
+ *  garbage collected, so the buffers of a freed list count toward the
+ *  memory limit until then. Until they are collected, new buffers may be
+ *  mapped from spill files even though the lists in use are within the
+ *  limit.</p>
+ *
+ *  @version $Id$
+ */
+public class TokenStore {
+
+    /** Create a new TokenStore.
+     *  @param memoryLimit the maximum number of bytes in direct buffers
+     *  for all the lists in the store. If 0, the store is disabled.
+     *  @param spillDirectory the directory for the spill files. If null,
+     *  the default temporary-file directory is used.
+     */
+    public TokenStore(long memoryLimit, File spillDirectory) {
+        if(memoryLimit < 0) {
+            throw new IllegalArgumentException("Memory limit cannot be negative: " + memoryLimit);
+        }
+        _memoryLimit = memoryLimit;
+        _spillDirectory = spillDirectory;
+    }
+
+    /** Create a new, empty list in the store. */
+    public TokenList createList() {
+        return new TokenList(this);
+    }
+
+    /** Create a list of tokens: a TokenList if the store is enabled,
+     *  otherwise an ArrayList.
+     */
+    public List<Token> createListIfEnabled() {
+        if(isEnabled()) {
+            return createList();
+        }
+        return new ArrayList<Token>();
+    }
+
+    /** Release the memory of a list if it is a TokenList. */
+    public static void free(List<Token> list) {
+        if(list instanceof TokenList) {
+            ((TokenList) list).free();
+        }
+    }
+
+    /** Get the tokens of a list as an array, and release the memory of
+     *  the list if it is a TokenList. Each buffer of a TokenList is
+     *  released once its tokens are decoded, so that the encoded and
+     *  decoded tokens are not all held at the same time.
+     */
+    public static Token[] toArrayAndFree(List<Token> list) {
+        if(list instanceof TokenList) {
+            return ((TokenList) list).toArrayAndFree();
+        }
+        return list.toArray(new Token[list.size()]);
+    }
+
+    /** Get the number of bytes in direct buffers for all the lists in the
+     *  store, including the buffers of freed lists that have not been
+     *  garbage collected.
+     */
+    public long getMemoryUsed() {
+        _reclaimCollectedBuffers();
+        return _memoryUsed.get();
+    }
+
+    /** Returns true if the store is enabled. */
+    public boolean isEnabled() {
+        return _memoryLimit > 0;
+    }
+
+    /** The size of the buffers allocated for the lists. Larger tokens
+     *  are put in a buffer of their own.
+     */
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         inner classes                     ////
+
+    /** An append-only list of tokens in the store. Tokens can be added
+     *  by one thread at a time, and read concurrently by any number of
+     *  threads. The list cannot be used after free() is called.
+     */
+    public static class TokenList extends AbstractList<Token> implements RandomAccess {
+
+        /** Create a new TokenList.
+         *  @param store the store containing the list.
+         */
+        private TokenList(TokenStore store) {
+            _store = store;
+        }
+
+        /** Add a token to the end of the list.
+         *  @return true
+         */
+        @Override
+        public synchronized boolean add(Token token) {
+            _checkNotFreed();
+            _encoded.reset();
+            try {
+                TokenCodec.write(token == null ? Token.NIL : token, _encodedOutput);
+            } catch(IOException e) {
+                throw new RuntimeException("Error encoding token: " + token, e);
+            }
+            final int length = _encoded.size();
+
+            if(_current == null || _current.remaining() < length) {
+                _current = _allocate(Math.max(BLOCK_SIZE, length));
+                _blocks.add(_current);
+            }
+
+            if(_size == _positions.length) {
+                _positions = Arrays.copyOf(_positions, _positions.length * 2);
+            }
+            _positions[_size] = ((long) (_blocks.size() - 1) << 32) | _current.position();
+            _encoded.writeTo(_current);
+            _size++;
+            modCount++;
+            return true;
+        }
+
+        /** Release the memory and spill file of the list. The direct
+         *  buffers are no longer referenced by the list, and are removed
+         *  from the memory used by the store when they are garbage
+         *  collected.
+         */
+        public synchronized void free() {
+            if(_blocks == null) {
+                return;
+            }
+            _blocks = null;
+            _current = null;
+            _positions = null;
+            _size = 0;
+            if(_channel != null) {
+                try {
+                    _channel.close();
+                } catch(IOException e) {
+                    // ignore since the file is deleted.
+                }
+                _channel = null;
+                // NOTE: the file cannot be deleted on some platforms while
+                // mapped buffers are reachable.
+                if(!_spillFile.delete()) {
+                    _spillFile.deleteOnExit();
+                }
+            }
+        }
+
+        /** Read a token in the list. The token is decoded from the store. */
+        @Override
+        public Token get(int index) {
+            final ByteBuffer buffer;
+            synchronized(this) {
+                _checkNotFreed();
+                if(index < 0 || index >= _size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", size: " + _size);
+                }
+                final long position = _positions[index];
+                // use a duplicate so that concurrent readers do not share a position.
+                buffer = _blocks.get((int) (position >>> 32)).duplicate();
+                buffer.position((int) position);
+            }
+            try {
+                return TokenCodec.read(buffer);
+            } catch(IOException e) {
+                throw new RuntimeException("Error decoding token " + index + ".", e);
+            }
+        }
+
+        /** Get the number of tokens in the list. */
+        @Override
+        public synchronized int size() {
+            return _size;
+        }
+
+        /** Get the tokens as an array and free the list. Each buffer is
+         *  released once its tokens are decoded.
+         */
+        public synchronized Token[] toArrayAndFree() {
+            _checkNotFreed();
+            final Token[] retval = new Token[_size];
+            int block = -1;
+            ByteBuffer buffer = null;
+            for(int i = 0; i < _size; i++) {
+                final long position = _positions[i];
+                // tokens are appended, so the blocks are read in order.
+                final int tokenBlock = (int) (position >>> 32);
+                if(tokenBlock != block) {
+                    if(block >= 0) {
+                        _blocks.set(block, null);
+                    }
+                    block = tokenBlock;
+                    buffer = _blocks.get(block).duplicate();
+                }
+                buffer.position((int) position);
+                try {
+                    retval[i] = TokenCodec.read(buffer);
+                } catch(IOException e) {
+                    throw new RuntimeException("Error decoding token " + i + ".", e);
+                }
+            }
+            free();
+            return retval;
+        }
+
+        ///////////////////////////////////////////////////////////////
+        ////                     private methods                   ////
+
+        /** Allocate a buffer for the list: a direct buffer if it is within
+         *  the memory limit, otherwise a region mapped from the spill file.
+         */
+        private ByteBuffer _allocate(int size) {
+            final File spillDirectory = _store._spillDirectory;
+            _store._reclaimCollectedBuffers();
+            if(_store._memoryUsed.addAndGet(size) <= _store._memoryLimit) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+                _store._directBuffers.add(new DirectBufferReference(buffer, _store._collectedBuffers));
+                return buffer;
+            }
+            _store._memoryUsed.addAndGet(-size);
+
+            try {
+                if(_channel == null) {
+                    if(spillDirectory != null && !spillDirectory.exists() && !spillDirectory.mkdirs()) {
+                        throw new IOException("Could not create directory " + spillDirectory);
+                    }
+                    _spillFile = File.createTempFile("tokens", ".spill", spillDirectory);
+                    _channel = new RandomAccessFile(_spillFile, "rw").getChannel();
+                }
+                return _channel.map(FileChannel.MapMode.READ_WRITE, _channel.size(), size);
+            } catch(IOException e) {
+                throw new RuntimeException("Error creating token spill file in " + spillDirectory, e);
+            }
+        }
+
+        /** Throw an exception if free() was called. */
+        private void _checkNotFreed() {
+            if(_blocks == null) {
+                throw new IllegalStateException("The token list was freed.");
+            }
+        }
+
+        ///////////////////////////////////////////////////////////////
+        ////                     private variables                 ////
+
+        /** The buffers containing the encoded tokens. */
+        private List<ByteBuffer> _blocks = new ArrayList<ByteBuffer>();
+
+        /** The channel for the spill file, or null if there is no spill file. */
+        private FileChannel _channel;
+
+        /** The buffer tokens are added to. */
+        private ByteBuffer _current;
+
+        /** The encoding of the token being added. */
+        private final EncodingBuffer _encoded = new EncodingBuffer();
+
+        /** Writes to _encoded. */
+        private final DataOutputStream _encodedOutput = new DataOutputStream(_encoded);
+
+        /** The position of each token: the index of the block in the upper
+         *  32 bits and the offset in the block in the lower 32 bits.
+         */
+        private long[] _positions = new long[16];
+
+        /** The number of tokens in the list. */
+        private int _size;
+
+        /** The spill file. */
+        private File _spillFile;
+
+        /** The store containing the list. */
+        private final TokenStore _store;
+    }
+
+    /** A reference to a direct buffer that is enqueued when the buffer
+     *  is garbage collected, i.e., when its memory is released.
+     */
+    private static class DirectBufferReference extends PhantomReference<ByteBuffer> {
+
+        /** Create a new DirectBufferReference. */
+        DirectBufferReference(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            capacity = buffer.capacity();
+        }
+
+        /** The number of bytes in the buffer. */
+        final int capacity;
+    }
+
+    /** A ByteArrayOutputStream that can be copied to a ByteBuffer. */
+    private static class EncodingBuffer extends ByteArrayOutputStream {
+
+        /** Copy the bytes to a buffer. */
+        void writeTo(ByteBuffer buffer) {
+            buffer.put(buf, 0, count);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Remove the direct buffers that were garbage collected from the
+     *  memory used.
+     */
+    private void _reclaimCollectedBuffers() {
+        Reference<? extends ByteBuffer> reference;
+        while((reference = _collectedBuffers.poll()) != null) {
+            if(_directBuffers.remove(reference)) {
+                _memoryUsed.addAndGet(-((DirectBufferReference) reference).capacity);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** The references to the direct buffers that were garbage collected. */
+    private final ReferenceQueue<ByteBuffer> _collectedBuffers = new ReferenceQueue<ByteBuffer>();
+
+    /** The references to the direct buffers that have not been collected.
+     *  The references must be reachable to be enqueued.
+     */
+    private final Set<DirectBufferReference> _directBuffers =
+            Collections.newSetFromMap(new ConcurrentHashMap<DirectBufferReference,Boolean>());
+
+    /** The maximum number of bytes in direct buffers. */
+    private final long _memoryLimit;
+
+    /** The number of bytes in direct buffers that have not been collected. */
+    private final AtomicLong _memoryUsed = new AtomicLong();
+
+    /** The directory for the spill files, or null for the default
+     *  temporary directory.
+     */
+    private final File _spillDirectory;
+}
@@ -30,11 +30,18 @@
 package org.kepler.ddp;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 
 import org.apache.commons.logging.Log;
@@ -57,12 +64,18 @@ import ptolemy.actor.injection.ActorModuleInitializer;
 import ptolemy.actor.injection.ActorModuleInitializer.Initializer;
 import ptolemy.actor.injection.PtolemyInjector;
 import ptolemy.actor.injection.PtolemyModule;
+import ptolemy.data.ArrayToken;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.DoubleToken;
+import ptolemy.data.FloatToken;
 import ptolemy.data.IntToken;
 import ptolemy.data.LongToken;
 import ptolemy.data.RecordToken;
+import ptolemy.data.ShortToken;
 import ptolemy.data.StringToken;
 import ptolemy.data.Token;
+import ptolemy.data.UnsignedByteToken;
+import ptolemy.data.type.ArrayType;
 import ptolemy.data.type.BaseType;
 import ptolemy.data.type.RecordType;
 import ptolemy.data.type.Type;
@@ -181,6 +194,12 @@ public class Utilities {
 
     /** Load the model for a stub from a Nephele Configuration. The 
      *  top-level ports and connected relations are removed.
+     *  
+     *  <p>If the model is not in the same JVM and display actors are not
+     *  redirected, the parsed model is kept in a cache of up to
+     *  MODEL_CACHE_SIZE models, keyed by the model name and a hash of the
+     *  MoML. Later calls for the same model return a clone of the cached
+     *  model instead of parsing the MoML again.</p>
      */
     public static synchronized CompositeActor getModel(String modelName,
             String modelString, String modelFile, boolean sameJVM, String redirectDir) {
@@ -194,11 +213,7 @@ public class Utilities {
         if(sameJVM) {
             
             CompositeActor originalModel = DDPEngine.getModel(modelName);
-            try {
-                model = (CompositeActor) originalModel.clone(new Workspace());
-            } catch (CloneNotSupportedException e) {
-                throw new RuntimeException("Error cloning subworkflow: " + e.getMessage());
-            }
+            model = _cloneModel(originalModel);
             
             Utilities.removeModelPorts(model);          
             
@@ -207,6 +222,19 @@ public class Utilities {
                         
         } else {
             
+            // display actors are redirected to a directory specific to the
+            // thread, so only cache models without redirection.
+            String cacheKey = null;
+            if(redirectDir.isEmpty()) {
+                cacheKey = _getModelCacheKey(modelName, modelString, modelFile);
+                if(cacheKey != null) {
+                    final CompositeActor cachedModel = _modelCache.get(cacheKey);
+                    if(cachedModel != null) {
+                        return _cloneModel(cachedModel);
+                    }
+                }
+            }
+            
             List<?> filters = MoMLParser.getMoMLFilters();
     
             Workspace workspace = new Workspace();
@@ -289,6 +317,12 @@ public class Utilities {
                 }
             }
 
+            // cache the parsed model and return a clone so that the cached
+            // model is never executed.
+            if(cacheKey != null) {
+                _modelCache.put(cacheKey, model);
+                model = _cloneModel(model);
+            }
         }
         
         return model;
@@ -365,6 +399,16 @@ public class Utilities {
                 return Token.NIL;
             } else if(type instanceof RecordType) {
                 return new RecordToken(tokenStr);
+            } else if(type == BaseType.BOOLEAN) {
+                return new BooleanToken(tokenStr);
+            } else if(type instanceof ArrayType) {
+                return new ArrayToken(tokenStr);
+            } else if(type == BaseType.SHORT) {
+                return new ShortToken(tokenStr);
+            } else if(type == BaseType.FLOAT) {
+                return new FloatToken(tokenStr);
+            } else if(type == BaseType.UNSIGNED_BYTE) {
+                return new UnsignedByteToken(tokenStr);
             } else {
                 throw new RuntimeException("Unknown type of token: " + type);
             }
@@ -390,6 +434,16 @@ public class Utilities {
                     return Token.NIL;
                 case Record:
                     return new RecordToken(tokenStr);
+                case Boolean:
+                    return new BooleanToken(tokenStr);
+                case Array:
+                    return new ArrayToken(tokenStr);
+                case Short:
+                    return new ShortToken(tokenStr);
+                case Float:
+                    return new FloatToken(tokenStr);
+                case UnsignedByte:
+                    return new UnsignedByteToken(tokenStr);
                 default:
                     throw new RuntimeException("Unknown type of token: " + type);
             }
@@ -415,6 +469,16 @@ public class Utilities {
             return TokenType.Nil;
         } else if(type instanceof RecordType) {
             return TokenType.Record;
+        } else if(type == BaseType.BOOLEAN) {
+            return TokenType.Boolean;
+        } else if(type instanceof ArrayType) {
+            return TokenType.Array;
+        } else if(type == BaseType.SHORT) {
+            return TokenType.Short;
+        } else if(type == BaseType.FLOAT) {
+            return TokenType.Float;
+        } else if(type == BaseType.UNSIGNED_BYTE) {
+            return TokenType.UnsignedByte;
         } else {
             throw new RuntimeException("Serialization of Ptolemy type " +
                 type.toString() + " is unsupported.");
@@ -659,23 +723,92 @@ public class Utilities {
     /** The name of the configuration parameter specifying the name of the script engine factory. */
     public static final String CONFIGURATION_KEPLER_SCRIPT_ENGINE_FACTORY_NAME = "Kepler::scriptEngineFactoryName";   
     
-    /** Enumeration of types of token that can be serialized to/from strings. */
+    /** The maximum number of parsed models cached by getModel(). */
+    public static final int MODEL_CACHE_SIZE = 16;
+    
+    /** Enumeration of types of token that can be serialized to/from strings
+     *  and by TokenCodec. The value of each type is part of the serialized
+     *  form, so new types must be added at the end.
+     */
     public enum TokenType {
         String,
         Int,
         Double,
         Long,
         Nil,
-        Record;
+        Record,
+        Boolean,
+        Array,
+        Short,
+        Float,
+        UnsignedByte,
+        /** Any other token, written with Java serialization. Only
+         *  supported by TokenCodec.
+         */
+        Serialized;
         
+        /** Get the TokenType for a value returned by getValue(). */
         public static TokenType getInstance(int value) {
-            // FIXME add error checking
-            return values()[value];
+            if(value < 0 || value >= _VALUES.length) {
+                throw new IllegalArgumentException("Unknown token type: " + value);
+            }
+            return _VALUES[value];
         }
         
+        /** Get the value of the type in the serialized form. */
         public int getValue() {
             return ordinal();
         }
+        
+        /** The types, by value. */
+        private static final TokenType[] _VALUES = values();
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Clone a model into a new workspace. */
+    private static CompositeActor _cloneModel(CompositeActor model) {
+        try {
+            return (CompositeActor) model.clone(new Workspace());
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException("Error cloning subworkflow: " + e.getMessage());
+        }
+    }
+
+    /** Get the key for a model in the model cache. The key is the
+     *  model name and the SHA-256 hash of the MoML. Returns null if
+     *  the MoML file cannot be read.
+     */
+    private static String _getModelCacheKey(String modelName, String modelString,
+            String modelFile) {
+        
+        final byte[] moml;
+        if(modelString != null) {
+            moml = modelString.getBytes(StandardCharsets.UTF_8);
+        } else if(modelFile != null) {
+            try {
+                moml = Files.readAllBytes(new File(modelFile).toPath());
+            } catch (IOException e) {
+                // the error is reported when the file is parsed.
+                return null;
+            }
+        } else {
+            return null;
+        }
+        
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(moml);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error computing hash of model: " + e.getMessage());
+        }
+        
+        final StringBuilder buf = new StringBuilder(modelName).append(':');
+        for(byte b : digest) {
+            buf.append(String.format("%02x", b));
+        }
+        return buf.toString();
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -684,4 +817,15 @@ public class Utilities {
     /** Logging. */
     private static final Log LOG = LogFactory.getLog(Utilities.class);
 
+    /** Parsed models, by model name and hash, in least-recently used order.
+     *  Access is synchronized by getModel().
+     */
+    private static final Map<String,CompositeActor> _modelCache =
+            new LinkedHashMap<String,CompositeActor>(MODEL_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,CompositeActor> eldest) {
+            return size() > MODEL_CACHE_SIZE;
+        }
+    };
+
 }
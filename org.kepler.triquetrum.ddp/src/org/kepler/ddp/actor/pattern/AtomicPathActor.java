@@ -32,6 +32,10 @@ package org.kepler.ddp.actor.pattern;
 import java.io.File;
 import java.net.URI;
 
+import org.kepler.ddp.TokenStore;
+import org.kepler.ddp.director.DDPDirector;
+
+import ptolemy.actor.Director;
 import ptolemy.actor.parameters.FilePortParameter;
 import ptolemy.data.StringToken;
 import ptolemy.kernel.CompositeEntity;
@@ -91,4 +95,18 @@ public class AtomicPathActor extends AtomicPatternActor {
     /** The path to read/write the data. */
     public FilePortParameter path;
 
+    ///////////////////////////////////////////////////////////////////
+    ////                         protected methods                 ////
+
+    /** Get the TokenStore of the DDPDirector executing this actor, or
+     *  null if the director is not a DDPDirector.
+     */
+    protected TokenStore _getTokenStore() {
+        final Director director = getDirector();
+        if(director instanceof DDPDirector) {
+            return ((DDPDirector) director).getTokenStore();
+        }
+        return null;
+    }
+
 }
@@ -40,6 +40,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.kepler.configuration.ConfigurationProperty;
+import org.kepler.ddp.TokenStore;
 
 import ptolemy.actor.TypedIOPort;
 import ptolemy.data.ArrayToken;
@@ -90,12 +91,34 @@ public class DDPDataSink extends AtomicPathActor {
         mergeMultiPartOutputs.setToken(BooleanToken.TRUE);
     }
 
-    /** Set a list of tokens for a specific DDPDataSink actor. */
+    /** Set a list of tokens for a specific DDPDataSink actor. The tokens
+     *  are kept on the heap until the actor fires.
+     */
     public static void addTokens(String sinkActorName, List<Token> tokenList) throws IllegalActionException {
-        List<Token> tokens = _tokenMap.get(sinkActorName);
-        if(tokens == null) {
-            tokens = new ArrayList<Token>();
-            _tokenMap.put(sinkActorName, tokens);
+        addTokens(sinkActorName, tokenList, null);
+    }
+
+    /** Set a list of tokens for a specific DDPDataSink actor. If the
+     *  TokenStore is enabled, the tokens are kept in the store until
+     *  the actor fires.
+     *  @param sinkActorName the full name of the DDPDataSink actor.
+     *  @param tokenList the tokens.
+     *  @param store the store of the engine, or null to keep the tokens
+     *  on the heap. The store is only used by the first call for an actor.
+     */
+    public static void addTokens(String sinkActorName, List<Token> tokenList, TokenStore store)
+            throws IllegalActionException {
+        List<Token> tokens;
+        synchronized(_tokenMap) {
+            tokens = _tokenMap.get(sinkActorName);
+            if(tokens == null) {
+                if(store == null) {
+                    tokens = new ArrayList<Token>();
+                } else {
+                    tokens = store.createListIfEnabled();
+                }
+                _tokenMap.put(sinkActorName, tokens);
+            }
         }
         synchronized(tokens) {
             tokens.addAll(tokenList);
@@ -127,9 +150,14 @@ public class DDPDataSink extends AtomicPathActor {
             // are not present in the next fire().
             List<Token> tokens = _tokenMap.remove(getFullName());
             if(tokens == null || tokens.isEmpty()) {
+                TokenStore.free(tokens);
                 throw new IllegalActionException(this, "No tokens were written.");
             }
-            Token[] array = tokens.toArray(new Token[tokens.size()]);
+            // release the stored tokens as they are decoded.
+            Token[] array;
+            synchronized(tokens) {
+                array = TokenStore.toArrayAndFree(tokens);
+            }
             out.broadcast(new ArrayToken(array));
         } else if(_formatTypeStr.equals("NullOutputFormat")) {
             out.broadcast(new StringToken("done"));
@@ -180,7 +208,7 @@ public class DDPDataSink extends AtomicPathActor {
         
         super.wrapup();
         
-        _tokenMap.remove(getFullName());
+        TokenStore.free(_tokenMap.remove(getFullName()));
     }
 
     /** The data to be written. */
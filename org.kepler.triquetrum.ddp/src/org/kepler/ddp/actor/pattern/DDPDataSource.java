@@ -29,14 +29,16 @@
  */
 package org.kepler.ddp.actor.pattern;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import org.kepler.configuration.ConfigurationProperty;
+import org.kepler.ddp.TokenStore;
 
 import ptolemy.actor.TypedIOPort;
 import ptolemy.data.ArrayToken;
@@ -114,11 +116,30 @@ public class DDPDataSource extends AtomicPathActor {
     }
     
     
-    /** Get the token for a DDPDataSource actor.
+    /** Get the token for a DDPDataSource actor. If the chunk size is
+     *  greater than 1, the token contains all the chunks.
      *  @param name the full name of the DDPDataSource actor.
+     *  @return the token, or null if there is no token for the actor.
+     *  @deprecated Use getTokens(), which creates each chunk only when
+     *  it is read, instead of holding all the chunks in memory.
      */
+    @Deprecated
     public static ArrayToken getToken(String name) {
-    	return _tokenMap.get(name);
+        final ChunkedArray tokens = _tokenMap.get(name);
+        if(tokens == null) {
+            return null;
+        }
+        return tokens.getArrayToken();
+    }
+    
+    /** Get the elements of the token for a DDPDataSource actor. If the
+     *  chunk size is greater than 1, each element is a chunk of the data
+     *  that is created when the element is read.
+     *  @param name the full name of the DDPDataSource actor.
+     *  @return the elements, or null if there is no token for the actor.
+     */
+    public static ChunkedArray getTokens(String name) {
+        return _tokenMap.get(name);
     }
     
     /** Read the data input path and make sure it exists. */
@@ -136,39 +157,20 @@ public class DDPDataSource extends AtomicPathActor {
                 arrayToken = new ArrayToken(new Token[] {token});
             }
             
-            if(_chunkSize > 1) {
-                
-                List<ArrayToken> list = new ArrayList<ArrayToken>();
-                List<Token> curChunk = new ArrayList<Token>();
-                for(int i = 0 ; i < arrayToken.length(); i++) {
-                    Token element = arrayToken.getElement(i);
-                    curChunk.add(element);
-                    if(curChunk.size() >= _chunkSize) {
-                        ArrayToken curChunkArray = new ArrayToken(curChunk.toArray(new Token[curChunk.size()]));
-                        list.add(curChunkArray);
-                        curChunk = new ArrayList<Token>();
-                    }
+            // the chunks are created when they are read, so the data
+            // is not copied here unless it is moved to the token store.
+            final ChunkedArray tokens;
+            final TokenStore store = _getTokenStore();
+            if(store != null && store.isEnabled()) {
+                final List<Token> elements = store.createList();
+                for(int i = 0; i < arrayToken.length(); i++) {
+                    elements.add(arrayToken.getElement(i));
                 }
-                
-                // add any remaining elements
-                if(!curChunk.isEmpty()) {
-                    ArrayToken curChunkArray = new ArrayToken(curChunk.toArray(new Token[curChunk.size()]));
-                    list.add(curChunkArray);
-                }
-                
-                RecordToken[] elements = new RecordToken[list.size()];
-                for(int i = 0; i < list.size(); i++) {
-                    elements[i] = new RecordToken(new String[] {"data", "id"},
-                            new Token[] { list.get(i),
-                            new IntToken(i) });
-                }
-                
-                arrayToken = new ArrayToken(elements);
+                tokens = new ChunkedArray(elements, _chunkSize);
+            } else {
+                tokens = new ChunkedArray(arrayToken, _chunkSize);
             }
-            
-            //System.out.println("array token = " + arrayToken);
-            
-            _tokenMap.put(getFullName(), arrayToken);
+            _free(_tokenMap.put(getFullName(), tokens));
         }
         
         // make sure path exists
@@ -220,7 +222,7 @@ public class DDPDataSource extends AtomicPathActor {
     	
     	super.wrapup();
     	
-    	_tokenMap.remove(getFullName());
+    	_free(_tokenMap.remove(getFullName()));
     }
        
     ///////////////////////////////////////////////////////////////////
@@ -302,9 +304,154 @@ public class DDPDataSource extends AtomicPathActor {
         return null;
     }
 
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Release the elements of a ChunkedArray if they are in the TokenStore. */
+    private static void _free(ChunkedArray tokens) {
+        if(tokens != null) {
+            TokenStore.free(tokens.getElements());
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////
     ////                         inner classes                     ////
 
+    /** A read-only list of the elements of an array, in chunks.
+     *  If the chunk size is 1, the elements of the list are the elements
+     *  of the array. Otherwise, each element of the list is a record
+     *  containing a sub-array of the data and the index of the chunk.
+     *  A chunk is created each time it is read, so only the chunks being
+     *  read are held in memory in addition to the original array. The
+     *  list can be split with subList() to read chunks in parallel.
+     */
+    public static class ChunkedArray extends AbstractList<Token> implements RandomAccess {
+
+        /** Create a new ChunkedArray for an array token.
+         *  @param data the array.
+         *  @param chunkSize the number of elements of the array in each chunk.
+         */
+        public ChunkedArray(final ArrayToken data, int chunkSize) {
+            this(new AbstractList<Token>() {
+                @Override
+                public Token get(int index) {
+                    return data.getElement(index);
+                }
+                @Override
+                public int size() {
+                    return data.length();
+                }
+            }, data, chunkSize);
+        }
+
+        /** Create a new ChunkedArray for a list of tokens, e.g., a list
+         *  in the TokenStore.
+         *  @param data the elements of the array.
+         *  @param chunkSize the number of elements of the array in each chunk.
+         */
+        public ChunkedArray(List<Token> data, int chunkSize) {
+            this(data, null, chunkSize);
+        }
+
+        /** Create a new ChunkedArray.
+         *  @param data the elements of the array.
+         *  @param array the array token, or null.
+         *  @param chunkSize the number of elements of the array in each chunk.
+         */
+        private ChunkedArray(List<Token> data, ArrayToken array, int chunkSize) {
+            if(chunkSize < 1) {
+                throw new IllegalArgumentException("Chunk size must be at least 1.");
+            }
+            _data = data;
+            _array = array;
+            _chunkSize = chunkSize;
+            _size = (int) (((long) data.size() + chunkSize - 1) / chunkSize);
+        }
+
+        /** Get an element of the list. If the chunk size is greater than
+         *  1, a new record with the chunk is created.
+         */
+        @Override
+        public Token get(int index) {
+            if(index < 0 || index >= _size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + _size);
+            }
+            if(_chunkSize == 1) {
+                return _data.get(index);
+            }
+            final int start = index * _chunkSize;
+            try {
+                final ArrayToken chunk;
+                if(_array != null) {
+                    chunk = _array.subarray(start, Math.min(_chunkSize, _array.length() - start));
+                } else {
+                    final List<Token> elements = _data.subList(start,
+                            Math.min(start + _chunkSize, _data.size()));
+                    chunk = new ArrayToken(elements.toArray(new Token[elements.size()]));
+                }
+                return new RecordToken(_CHUNK_LABELS, new Token[] {chunk, new IntToken(index)});
+            } catch (IllegalActionException e) {
+                throw new RuntimeException("Error creating chunk " + index + ".", e);
+            }
+        }
+
+        /** Get an array token containing the elements of this list. If
+         *  the chunk size is 1 and the list was created for an array
+         *  token, that token is returned. Otherwise, the array token is
+         *  created the first time, and the same token is returned by
+         *  later calls.
+         */
+        public ArrayToken getArrayToken() {
+            if(_chunkSize == 1 && _array != null) {
+                return _array;
+            }
+            synchronized(this) {
+                if(_arrayToken == null) {
+                    try {
+                        _arrayToken = new ArrayToken(toArray(new Token[_size]));
+                    } catch (IllegalActionException e) {
+                        throw new RuntimeException("Error creating chunks.", e);
+                    }
+                }
+                return _arrayToken;
+            }
+        }
+
+        /** Get the number of elements of the array in each chunk. */
+        public int getChunkSize() {
+            return _chunkSize;
+        }
+
+        /** Get the elements of the array. */
+        public List<Token> getElements() {
+            return _data;
+        }
+
+        /** Get the number of elements of the list. */
+        @Override
+        public int size() {
+            return _size;
+        }
+
+        /** The number of elements of the array in each chunk. */
+        private final int _chunkSize;
+
+        /** The array token, or null if the elements are not in an array token. */
+        private final ArrayToken _array;
+
+        /** The array token created by getArrayToken(), or null. */
+        private ArrayToken _arrayToken;
+
+        /** The elements of the array. */
+        private final List<Token> _data;
+
+        /** The number of chunks. */
+        private final int _size;
+
+        /** The labels of the record for each chunk. */
+        private static final String[] _CHUNK_LABELS = new String[] {"data", "id"};
+    }
+
     /** A MonotonicFunction for setting the output port types. */
     private class DataPortFunction extends MonotonicFunction {
 
@@ -380,8 +527,8 @@ public class DDPDataSource extends AtomicPathActor {
     ////                         private fields                    ////
 
     /** A mapping of DDPDataSource actor name to token. */
-    private static java.util.Map<String,ArrayToken> _tokenMap = 
-    		Collections.synchronizedMap(new HashMap<String,ArrayToken>());
+    private static java.util.Map<String,ChunkedArray> _tokenMap = 
+    		Collections.synchronizedMap(new HashMap<String,ChunkedArray>());
     
     /** If true, use the default type constraints set in _updateKeyValueTypes().
      *  Otherwise, use custom type constraints defined in _customTypeConstraints().
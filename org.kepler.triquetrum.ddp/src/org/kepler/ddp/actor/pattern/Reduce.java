@@ -30,6 +30,7 @@
 package org.kepler.ddp.actor.pattern;
 
 import ptolemy.data.BooleanToken;
+import ptolemy.data.IntToken;
 import ptolemy.data.expr.Parameter;
 import ptolemy.data.expr.StringParameter;
 import ptolemy.data.type.BaseType;
@@ -45,7 +46,8 @@ import ptolemy.kernel.util.Workspace;
  *  key-value pairs (an array of <key, value> records) to the 
  *  ReduceOutput actor. For each unique key, the sub-workflow
  *  is executed once with the key and all the values associated
- *  with that key.
+ *  with that key, or, if valuesChunkSize is set, once for each
+ *  chunk of the values.
  * 
  *  @author Daniel Crawl
  *  @version $Id: Reduce.java 31450 2013-02-15 21:11:35Z jianwu $
@@ -63,7 +65,15 @@ public class Reduce extends SingleInputPatternActor {
         
         combineExecutionClass = new StringParameter(this, "combineExecutionClass");
         
+        combinerTableSize = new Parameter(this, "combinerTableSize");
+        combinerTableSize.setTypeEquals(BaseType.INT);
+        combinerTableSize.setExpression("10000");
+        
         groupingComparatorClass = new StringParameter(this, "groupingComparatorClass");
+        
+        valuesChunkSize = new Parameter(this, "valuesChunkSize");
+        valuesChunkSize.setTypeEquals(BaseType.INT);
+        valuesChunkSize.setExpression("0");
 
     }
 
@@ -71,6 +81,35 @@ public class Reduce extends SingleInputPatternActor {
     public Reduce(Workspace workspace) {
         super(workspace);
     }
+    
+    /** Get the maximum number of values held by each combiner before the
+     *  partial groups are combined.
+     */
+    public int getCombinerTableSize() throws IllegalActionException {
+        final int tableSize = ((IntToken)combinerTableSize.getToken()).intValue();
+        if(tableSize < 1) {
+            throw new IllegalActionException(this, "combinerTableSize must be at least 1.");
+        }
+        return tableSize;
+    }
+
+    /** Returns true if the sub-workflow or execution class is used to
+     *  pre-reduce the data.
+     */
+    public boolean getUseAsCombiner() throws IllegalActionException {
+        return ((BooleanToken)useAsCombiner.getToken()).booleanValue();
+    }
+
+    /** Get the maximum number of values written to the sub-workflow at once.
+     *  Returns 0 if all the values for a key are written at once.
+     */
+    public int getValuesChunkSize() throws IllegalActionException {
+        final int chunkSize = ((IntToken)valuesChunkSize.getToken()).intValue();
+        if(chunkSize < 0) {
+            throw new IllegalActionException(this, "valuesChunkSize cannot be negative.");
+        }
+        return chunkSize;
+    }
 
     /** If true, use the sub-workflow or execution class to pre-reduce the
      *  data.
@@ -80,6 +119,28 @@ public class Reduce extends SingleInputPatternActor {
     /** The name of the combiner class. */
     public StringParameter combineExecutionClass;
     
-    /** The name of the GroupingComparatorClass, used only in hadoop for group input data of reducers. */
+    /** The maximum number of values held in memory by each combiner.
+     *  When a combiner holds this many values, the values for each key
+     *  are combined and written to the shuffle. Used only by the Local
+     *  engine.
+     */
+    public Parameter combinerTableSize;
+    
+    /** The name of the GroupingComparatorClass, used to group the input data
+     *  of reducers. In the Local engine, the class must implement
+     *  java.util.Comparator for tokens. Keys that it treats as equal may have
+     *  different hash codes, so the input is read by a single task unless the
+     *  class also implements org.kepler.ddp.director.local.Shuffle.Partitioner.
+     */
     public StringParameter groupingComparatorClass;
+    
+    /** The maximum number of values written to the sub-workflow at once.
+     *  If greater than 0, the values for a key are split into chunks of
+     *  at most this size, and the sub-workflow is executed once for each
+     *  chunk. The endOfGroup port of ReduceInput is true for the last chunk
+     *  of a key. The sub-workflow must write an output for every chunk,
+     *  e.g., an empty array until endOfGroup is true. If 0, all the values
+     *  for a key are written at once.
+     */
+    public Parameter valuesChunkSize;
 }
@@ -122,6 +122,14 @@ public class SingleInputPatternActor extends TypedCompositeActor implements DDPP
 		runWorkflowLifecyclePerInput = new Parameter(this, "runWorkflowLifecyclePerInput",
 		        BooleanToken.FALSE);
 		runWorkflowLifecyclePerInput.setTypeEquals(BaseType.BOOLEAN);		
+		
+		lightLifecycleReset = new Parameter(this, "lightLifecycleReset",
+		        BooleanToken.FALSE);
+		lightLifecycleReset.setTypeEquals(BaseType.BOOLEAN);
+		
+		stubQueueCapacity = new Parameter(this, "stubQueueCapacity");
+		stubQueueCapacity.setTypeEquals(BaseType.INT);
+		stubQueueCapacity.setExpression("0");
     }
 
     /** React to a change in an attribute. */
@@ -265,6 +273,13 @@ public class SingleInputPatternActor extends TypedCompositeActor implements DDPP
                 .getToken()).booleanValue();
     }
     
+    /** Check if only initialize is repeated for each input when the full lifecycle
+     *  of the sub-workflow is executed for each input.
+     */
+    public boolean getLightLifecycleReset() throws IllegalActionException {
+        return ((BooleanToken) lightLifecycleReset.getToken()).booleanValue();
+    }
+
     /** Get a set of name-value pairs of input/output format parameters for the execution engine. */
     @Override
     public java.util.Map<String,String> getParameters() throws IllegalActionException {
@@ -285,6 +300,17 @@ public class SingleInputPatternActor extends TypedCompositeActor implements DDPP
                 .getToken()).booleanValue();
     }
     
+    /** Get the maximum number of inputs or outputs waiting in each stub actor
+     *  of the sub-workflow. Returns 0 if the default capacity is used.
+     */
+    public int getStubQueueCapacity() throws IllegalActionException {
+        final int capacity = ((IntToken)stubQueueCapacity.getToken()).intValue();
+        if(capacity < 0) {
+            throw new IllegalActionException(this, "stubQueueCapacity cannot be negative.");
+        }
+        return capacity;
+    }
+    
     /** Override the parent class to check that parameter values are correctly set. */
     @Override
     public void preinitialize() throws IllegalActionException {
@@ -388,6 +414,37 @@ public class SingleInputPatternActor extends TypedCompositeActor implements DDPP
     /** The type of the execution code. */
     public StringParameter executionCode;
     
+    /** If true and the full lifecycle of the sub-workflow is executed for
+     *  each input, type resolution and preinitialize are only performed for
+     *  the first input, and wrapup only after the last input. The other
+     *  inputs only initialize and iterate the sub-workflow. The default is
+     *  false, i.e., the full lifecycle is executed for each input.
+     *
+     *  <p>Since wrapup is not called between inputs, this should only be
+     *  set if the actors in the sub-workflow can be initialized again
+     *  without being wrapped up, e.g., actors that open a file in initialize
+     *  and close it in wrapup cannot. To execute the full lifecycle for
+     *  each input even if this is true, add an attribute named
+     *  _fullLifecyclePerInput to the sub-workflow or to any actor in it, e.g.,
+     *  <pre>
+     *  &lt;property name="_fullLifecyclePerInput" class="ptolemy.kernel.util.SingletonAttribute"/&gt;
+     *  </pre>
+     *  The class and value of the attribute are ignored.</p>
+     */
+    public Parameter lightLifecycleReset;
+    
+    /** The maximum number of inputs waiting to be read by the sub-workflow,
+     *  and the maximum number of outputs waiting to be read from the
+     *  sub-workflow. When an input is written in batches, each batch counts
+     *  as one input, e.g., the Local engine writes batches of up to
+     *  LocalEngine.BATCH_SIZE records, so the number of records waiting
+     *  is at most this capacity times the batch size. If the limit is
+     *  reached, the writer blocks until the reader catches up. If 0, the
+     *  inputs are limited to StubSourceActor.BATCH_LIST_CAPACITY batches
+     *  and the outputs are not limited.
+     */
+    public Parameter stubQueueCapacity;
+    
     ///////////////////////////////////////////////////////////////////
     ////                         protected fields                  ////
 
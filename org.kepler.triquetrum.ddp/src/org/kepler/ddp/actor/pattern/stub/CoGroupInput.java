@@ -29,8 +29,6 @@
  */
 package org.kepler.ddp.actor.pattern.stub;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import org.kepler.ddp.actor.pattern.Types;
 
 import ptolemy.actor.TypedIOPort;
@@ -44,7 +42,6 @@ import ptolemy.graph.InequalityTerm;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
-import ptolemy.kernel.util.Workspace;
 
 /** A stub actor that writes data into workflows for the CoGroup pattern.
  * 
@@ -70,55 +67,20 @@ public class CoGroupInput extends StubSourceActor {
 
     }
     
-    /** Clone the actor into the specified workspace. */
-    @Override
-    public Object clone(Workspace workspace) throws CloneNotSupportedException {
-        CoGroupInput newObject = (CoGroupInput)super.clone(workspace);
-        newObject._values1List = new LinkedBlockingQueue<Token>();
-        newObject._values2List = new LinkedBlockingQueue<Token>();
-        return newObject;
-    }
-    
-    /** Write the key and values from both inputs to the workflow. */
-    @Override
-    public void fire() throws IllegalActionException {
-        
-        Token keyToken;
-        Token values1Token;
-        Token values2Token;
-        
-        try {
-            keyToken = _keyList.take();          
-            values1Token = _values1List.take();                
-            values2Token = _values2List.take();
-        } catch(InterruptedException e) {
-            throw new IllegalActionException(this, e, "Error waiting for token lists.");
-        }
-        
-        if(!_finish.get()) {
-            key.broadcast(keyToken);
-            values1.broadcast(values1Token);
-            values2.broadcast(values2Token);
-        }
-
-    }
-    
-    /** Stop execution of the workflow the next time postfire() is called. */
-    @Override
-    public void finish() throws InterruptedException {
-        super.finish();
-        // add a token to unblock the take() in fire()
-        _values1List.put(Token.NIL);
-        _values2List.put(Token.NIL);
-    }
-
     /** Set the key and values from both inputs. */
     public void setInput(Token keyToken, Token values1Token, Token values2Token) throws IllegalActionException {
+        setInput(new Token[] {keyToken}, new Token[] {values1Token}, new Token[] {values2Token});
+    }
+
+    /** Set a batch of keys and values from both inputs. The workflow is
+     *  executed once for each key and its values. The arrays must have
+     *  the same length and must not be modified after calling this method.
+     */
+    public void setInput(Token[] keyTokens, Token[] values1Tokens, Token[] values2Tokens)
+            throws IllegalActionException {
         
         try {
-            _keyList.put(keyToken);
-            _values1List.put(values1Token);
-            _values2List.put(values2Token);
+            _putBatch(keyTokens, values1Tokens, values2Tokens);
         } catch(InterruptedException e) {
             throw new IllegalActionException(this, e, "Error waiting for token lists.");
         }
@@ -136,6 +98,14 @@ public class CoGroupInput extends StubSourceActor {
     ///////////////////////////////////////////////////////////////////
     ////                         protected methods                 ////
 
+    /** Write the key and values from both inputs to the workflow. */
+    @Override
+    protected void _writeRecord() throws IllegalActionException {
+        super._writeRecord();
+        values1.broadcast(_getField(1));
+        values2.broadcast(_getField(2));
+    }
+
     /** Create a function used for setting the type for an output port. */
     @Override
     protected MonotonicFunction _createPortFunction(TypedIOPort outputPort) {
@@ -249,10 +219,4 @@ public class CoGroupInput extends StubSourceActor {
         
     }
 
-    /** Values from the first input.*/
-    private LinkedBlockingQueue<Token> _values1List = new LinkedBlockingQueue<Token>();
-    
-    /** Values from the second input. */
-    private LinkedBlockingQueue<Token> _values2List = new LinkedBlockingQueue<Token>();
-    
 }
@@ -29,8 +29,6 @@
  */
 package org.kepler.ddp.actor.pattern.stub;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import org.kepler.ddp.actor.pattern.Types;
 
 import ptolemy.actor.TypedIOPort;
@@ -44,7 +42,6 @@ import ptolemy.graph.InequalityTerm;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
-import ptolemy.kernel.util.Workspace;
 
 /** A stub actor that writes data into workflows for the Cross pattern.
  * 
@@ -69,61 +66,21 @@ public class CrossInput extends MapInput {
         value2.setMultiport(true);
     }
 
-    /** Clone the actor into the specified workspace. */
-    @Override
-    public Object clone(Workspace workspace) throws CloneNotSupportedException {
-        CrossInput newObject = (CrossInput) super.clone(workspace);
-        newObject._key2List = new LinkedBlockingQueue<Token>();
-        newObject._value2List = new LinkedBlockingQueue<Token>();
-        return newObject;
-    }
-    
-    /** Write the key and value from both inputs to the workflow. */
-    @Override
-    public void fire() throws IllegalActionException {
-
-        super.fire();
-        
-        Token key2Token;
-        Token value2Token;
-            
-        try {
-            key2Token = _key2List.take();
-            value2Token = _value2List.take();
-        } catch(InterruptedException e) {
-            throw new IllegalActionException(this, e, "Error waiting for token.");
-        }
-            
-        if(!_finish.get()) {
-            key2.broadcast(key2Token);
-            value2.broadcast(value2Token);
-        }
-    }
-    
-    /** Stop execution of the workflow the next time postfire() is called. */
-    @Override
-    public void finish() throws InterruptedException {
-        super.finish();
-        // add a token to unblock the take() in fire()
-        _key2List.put(Token.NIL);
-        _value2List.put(Token.NIL);
-    }
-
     /** Set the key and value from both inputs. */
     public void setInput(Token key1Token, Token value1Token, Token key2Token, Token value2Token) throws IllegalActionException {
+        setInput(new Token[] {key1Token}, new Token[] {value1Token},
+                new Token[] {key2Token}, new Token[] {value2Token});
+    }
+
+    /** Set a batch of keys and values from both inputs. The workflow is
+     *  executed once for each pair of key-values. The arrays must have the
+     *  same length and must not be modified after calling this method.
+     */
+    public void setInput(Token[] key1Tokens, Token[] value1Tokens,
+            Token[] key2Tokens, Token[] value2Tokens) throws IllegalActionException {
 
-        super.setInput(key1Token, value1Token);
         try {
-            
-            if(key2Token == null) {
-                key2Token = Token.NIL;
-            }
-            _key2List.put(key2Token);
-            
-            if(value2Token == null) {
-                value2Token = Token.NIL;
-            }
-            _value2List.put(value2Token);
+            _putBatch(key1Tokens, value1Tokens, key2Tokens, value2Tokens);
         } catch(InterruptedException e) {
             throw new IllegalActionException(this, e, "Error waiting for token lists.");
         }
@@ -140,6 +97,14 @@ public class CrossInput extends MapInput {
 
     ///////////////////////////////////////////////////////////////////
     ////                         protected methods                 ////
+
+    /** Write the key and value from both inputs to the workflow. */
+    @Override
+    protected void _writeRecord() throws IllegalActionException {
+        super._writeRecord();
+        key2.broadcast(_getField(2));
+        value2.broadcast(_getField(3));
+    }
     
     /** Create a function used for setting the type for an output port. */
     @Override
@@ -255,11 +220,5 @@ public class CrossInput extends MapInput {
         private String _outputPortName;
         
     }
-        
-    /** A list containing tokens to be written by the key2 port. */
-    private LinkedBlockingQueue<Token> _key2List = new LinkedBlockingQueue<Token>();
-
-    /** A list containing tokens to be written by the value2 port. */
-    private LinkedBlockingQueue<Token> _value2List = new LinkedBlockingQueue<Token>();
 
 }
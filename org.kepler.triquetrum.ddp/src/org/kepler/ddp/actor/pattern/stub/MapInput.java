@@ -30,8 +30,6 @@
 package org.kepler.ddp.actor.pattern.stub;
 
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import ptolemy.actor.TypedIOPort;
 import ptolemy.data.Token;
 import ptolemy.data.type.ArrayType;
@@ -43,7 +41,6 @@ import ptolemy.graph.InequalityTerm;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
-import ptolemy.kernel.util.Workspace;
 
 /** A stub actor that writes data into workflows for the Map pattern.
  * 
@@ -62,58 +59,20 @@ public class MapInput extends StubSourceActor {
         value.setMultiport(true);
     }
         
-    /** Clone the actor into the specified workspace. */
-    @Override
-    public Object clone(Workspace workspace) throws CloneNotSupportedException {
-        MapInput newObject = (MapInput)super.clone(workspace);
-        newObject._valueList = new LinkedBlockingQueue<Token>();
-        return newObject;
-    }
-
-    /** Write key and value to the workflow. */
-    @Override
-    public void fire() throws IllegalActionException {
-
-        super.fire();
-                
-        Token keyToken = null;
-        Token valueToken = null;
-        
-        try {
-            keyToken = _keyList.take();
-            valueToken = _valueList.take();
-        } catch(InterruptedException e) {
-            throw new IllegalActionException(this, e, "Error waiting for token.");
-        }                    
-        
-        if(!_finish.get()) {
-            key.broadcast(keyToken);            
-            value.broadcast(valueToken);
-        }
-    }    
-        
-    /** Stop execution of the workflow the next time postfire() is called. */
-    @Override
-    public void finish() throws InterruptedException {
-        super.finish();
-        // add a token to unblock the take() in fire()
-        _valueList.put(Token.NIL);
-    }
-    
     /** Set the key and value to write to workflow. */
     public void setInput(Token keyToken, Token valueToken) throws IllegalActionException {
+        setInput(new Token[] {keyToken}, new Token[] {valueToken});
+    }
+
+    /** Set a batch of keys and values to write to the workflow. The
+     *  workflow is executed once for each key and value. The arrays
+     *  must have the same length and must not be modified after calling
+     *  this method.
+     */
+    public void setInput(Token[] keyTokens, Token[] valueTokens) throws IllegalActionException {
        
         try {
-            if(keyToken == null) {
-                keyToken = Token.NIL;
-            }
-            _keyList.put(keyToken);
-            
-            if(valueToken == null) {
-                valueToken = Token.NIL;
-            }
-            _valueList.put(valueToken);
-
+            _putBatch(keyTokens, valueTokens);
         } catch(InterruptedException e) {
             // do not rethrow since this exception can occur when stopping a DDP
             // job. instead just print to stderr.
@@ -135,6 +94,13 @@ public class MapInput extends StubSourceActor {
     protected MonotonicFunction _createPortFunction(TypedIOPort outputPort) {
         return new MapInputPortFunction(outputPort.getName());
     }
+
+    /** Write the key and value to the workflow. */
+    @Override
+    protected void _writeRecord() throws IllegalActionException {
+        super._writeRecord();
+        value.broadcast(_getField(1));
+    }
         
 
     ///////////////////////////////////////////////////////////////////
@@ -223,7 +189,4 @@ public class MapInput extends StubSourceActor {
         private String _name;
     }
 
-    
-    /** A list containing tokens to be written by the value port. */
-    private LinkedBlockingQueue<Token> _valueList = new LinkedBlockingQueue<Token>();
 }
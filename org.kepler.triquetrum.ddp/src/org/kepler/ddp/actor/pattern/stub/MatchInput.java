@@ -29,8 +29,6 @@
  */
 package org.kepler.ddp.actor.pattern.stub;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import org.kepler.ddp.actor.pattern.Types;
 
 import ptolemy.actor.TypedIOPort;
@@ -44,7 +42,6 @@ import ptolemy.graph.InequalityTerm;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
-import ptolemy.kernel.util.Workspace;
 
 /** A stub actor that writes data into workflows for the Match pattern.
  * 
@@ -70,53 +67,20 @@ public class MatchInput extends StubSourceActor {
 
     }
     
-    /** Clone the actor into the specified workspace. */
-    @Override
-    public Object clone(Workspace workspace) throws CloneNotSupportedException {
-        MatchInput newObject = (MatchInput)super.clone(workspace);
-        newObject._value1List = new LinkedBlockingQueue<Token>();
-        newObject._value2List = new LinkedBlockingQueue<Token>();
-        return newObject;
-    }
-    
-    /** Write the key and value from both inputs to the workflow. */
-    @Override
-    public void fire() throws IllegalActionException {
-        
-        Token keyToken;
-        Token value1Token;
-        Token value2Token;
-        try {
-            keyToken = _keyList.take();
-            value1Token = _value1List.take();
-            value2Token = _value2List.take();
-        } catch(InterruptedException e) {
-            throw new IllegalActionException(this, e, "Error waiting for token lists.");
-        }
-
-        if(!_finish.get()) {
-            key.broadcast(keyToken);
-            value1.broadcast(value1Token);
-            value2.broadcast(value2Token);
-        }
-    }
-    
-    /** Stop execution of the workflow the next time postfire() is called. */
-    @Override
-    public void finish() throws InterruptedException {
-        super.finish();
-        // add a token to unblock the take() in fire()
-        _value1List.put(Token.NIL);
-        _value2List.put(Token.NIL);
-    }
-
     /** Set the key and value from both inputs. */
     public void setInput(Token keyToken, Token value1Token, Token value2Token) throws IllegalActionException {
+        setInput(new Token[] {keyToken}, new Token[] {value1Token}, new Token[] {value2Token});
+    }
+
+    /** Set a batch of keys and values from both inputs. The workflow is
+     *  executed once for each key and pair of values. The arrays must have
+     *  the same length and must not be modified after calling this method.
+     */
+    public void setInput(Token[] keyTokens, Token[] value1Tokens, Token[] value2Tokens)
+            throws IllegalActionException {
         
         try {
-            _keyList.put(keyToken);
-            _value1List.put(value1Token);
-            _value2List.put(value2Token);
+            _putBatch(keyTokens, value1Tokens, value2Tokens);
         } catch(InterruptedException e) {
             throw new IllegalActionException(this, e, "Error waiting for token lists.");
         }
@@ -134,6 +98,14 @@ public class MatchInput extends StubSourceActor {
     ///////////////////////////////////////////////////////////////////
     ////                         protected methods                 ////
 
+    /** Write the key and value from both inputs to the workflow. */
+    @Override
+    protected void _writeRecord() throws IllegalActionException {
+        super._writeRecord();
+        value1.broadcast(_getField(1));
+        value2.broadcast(_getField(2));
+    }
+
     /** Create a function used for setting the type for an output port. */
     @Override
     protected MonotonicFunction _createPortFunction(TypedIOPort outputPort) {
@@ -245,11 +217,4 @@ public class MatchInput extends StubSourceActor {
         
     }
 
-
-    /** A list containing tokens to be written by the values1 port. */
-    private LinkedBlockingQueue<Token> _value1List = new LinkedBlockingQueue<Token>();
-    
-    /** A list containing tokens to be written by the values2 port. */
-    private LinkedBlockingQueue<Token> _value2List = new LinkedBlockingQueue<Token>();
-
 }
@@ -30,9 +30,10 @@
 package org.kepler.ddp.actor.pattern.stub;
 
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
 
 import ptolemy.actor.TypedIOPort;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.Token;
 import ptolemy.data.type.ArrayType;
 import ptolemy.data.type.BaseType;
@@ -43,7 +44,6 @@ import ptolemy.graph.InequalityTerm;
 import ptolemy.kernel.CompositeEntity;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
-import ptolemy.kernel.util.Workspace;
 
 /** A stub actor that writes data into workflows for the Reduce pattern.
  * 
@@ -60,50 +60,37 @@ public class ReduceInput extends StubSourceActor {
 
         values = new TypedIOPort(this, "values", false, true);
         values.setMultiport(true);
-    }
-    
-    /** Clone the actor into the specified workspace. */
-    @Override
-    public Object clone(Workspace workspace) throws CloneNotSupportedException {
-        ReduceInput newObject = (ReduceInput)super.clone(workspace);
-        newObject._valuesList = new LinkedBlockingQueue<Token>();
-        return newObject;
-    }
-
-    /** Stop execution of the workflow the next time postfire() is called. */
-    @Override
-    public void finish() throws InterruptedException {
-        super.finish();
-        // add a token to unblock the take() in fire()
-        _valuesList.put(Token.NIL);
-    }
-
-    /** Write the key and values from the input to the workflow. */
-    @Override
-    public void fire() throws IllegalActionException {
-
-        Token keyToken = null;
-        Token valuesToken = null;
-        
-        try {
-            keyToken = _keyList.take();
-            valuesToken = _valuesList.take();
-        } catch(InterruptedException e) {
-            throw new IllegalActionException(this, e, "Error waiting for token.");
-        }
-
-        if(!_finish.get()) {
-            key.broadcast(keyToken);
-            values.broadcast(valuesToken);
-        }
         
+        endOfGroup = new TypedIOPort(this, "endOfGroup", false, true);
+        endOfGroup.setMultiport(true);
+        endOfGroup.setTypeEquals(BaseType.BOOLEAN);
     }
     
     /** Set the input and values. */
     public void setInput(Token keyToken, Token valuesToken) throws IllegalActionException {
+        setInput(new Token[] {keyToken}, new Token[] {valuesToken});
+    }
+    
+    /** Set a batch of keys and values. The workflow is executed once for
+     *  each key and its values. The arrays must have the same length and
+     *  must not be modified after calling this method.
+     */
+    public void setInput(Token[] keyTokens, Token[] valuesTokens) throws IllegalActionException {
+        final Token[] endOfGroupTokens = new Token[keyTokens.length];
+        Arrays.fill(endOfGroupTokens, BooleanToken.TRUE);
+        setInput(keyTokens, valuesTokens, endOfGroupTokens);
+    }
+    
+    /** Set a batch of keys and chunks of values. The workflow is executed
+     *  once for each chunk. The values of a key may be split into several
+     *  consecutive chunks; endOfGroupTokens is true for the last chunk of
+     *  each key and false otherwise. The arrays must have the same length
+     *  and must not be modified after calling this method.
+     */
+    public void setInput(Token[] keyTokens, Token[] valuesTokens, Token[] endOfGroupTokens)
+            throws IllegalActionException {
         try {
-            _keyList.put(keyToken);
-            _valuesList.put(valuesToken);
+            _putBatch(keyTokens, valuesTokens, endOfGroupTokens);
         } catch(InterruptedException e) {
             // do not rethrow since this exception can occur when stopping a DDP
             // job. instead just print to stderr.
@@ -116,16 +103,35 @@ public class ReduceInput extends StubSourceActor {
     /** Port to write the values to the workflow. */
     public TypedIOPort values;
 
+    /** Port to write whether the values are the last chunk of the values
+     *  for the key. If the values are not split into chunks, this is
+     *  always true.
+     */
+    public TypedIOPort endOfGroup;
+
     
     ///////////////////////////////////////////////////////////////////
     ////                         protected methods                 ////
     
-    /** Create a function used for setting the type for an output port. */
+    /** Create a function used for setting the type for an output port.
+     *  Returns null for the endOfGroup port, since its type is boolean.
+     */
     @Override
     protected MonotonicFunction _createPortFunction(TypedIOPort outputPort) {
+        if(outputPort == endOfGroup) {
+            return null;
+        }
         return new ReduceInputPortFunction(outputPort);
     }
 
+    /** Write the key, values, and end of group to the workflow. */
+    @Override
+    protected void _writeRecord() throws IllegalActionException {
+        super._writeRecord();
+        values.broadcast(_getField(1));
+        endOfGroup.broadcast(_getField(2));
+    }
+
     ///////////////////////////////////////////////////////////////////
     ////                         inner classes                     ////
     
@@ -227,8 +233,5 @@ public class ReduceInput extends StubSourceActor {
         ////                       private inner variable          ////
         private TypedIOPort _port;
     }
-    
-    /** A list containing tokens to be written by the values port. */
-    private LinkedBlockingQueue<Token> _valuesList = new LinkedBlockingQueue<Token>();
 
 }
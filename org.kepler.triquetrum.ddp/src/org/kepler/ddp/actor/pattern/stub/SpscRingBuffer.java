@@ -0,0 +1,267 @@
+/* A single-producer, single-consumer ring buffer.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.actor.pattern.stub;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/** A bounded, array-backed queue for handing elements from exactly one
+ *  producer thread to exactly one consumer thread without locks. The
+ *  producer only writes the tail index and the consumer only writes the
+ *  head index, so neither side contends for a lock or allocates memory
+ *  when an element is transferred.
+ *
+ *  <p>When the buffer is full, put() waits for the consumer, and when the
+ *  buffer is empty, take() waits for the producer. How a thread waits is
+ *  set by the WaitStrategy.</p>
+ *
+ *  @version $Id$
+ */
+public class SpscRingBuffer<E> {
+
+    /** Create a new SpscRingBuffer using WaitStrategy.PARK.
+     *  @param capacity the maximum number of elements in the buffer.
+     */
+    public SpscRingBuffer(int capacity) {
+        this(capacity, WaitStrategy.PARK);
+    }
+
+    /** Create a new SpscRingBuffer.
+     *  @param capacity the maximum number of elements in the buffer.
+     *  @param waitStrategy how to wait when the buffer is full or empty.
+     */
+    public SpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if(capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30: " + capacity);
+        }
+        // the number of slots is a power of two so that an index can be
+        // converted to a slot with a mask, but only capacity slots are used.
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        _slots = new AtomicReferenceArray<E>(size);
+        _mask = size - 1;
+        _capacity = capacity;
+        setWaitStrategy(waitStrategy);
+    }
+
+    /** Get the maximum number of elements in the buffer. */
+    public int capacity() {
+        return _capacity;
+    }
+
+    /** Get the wait strategy. */
+    public WaitStrategy getWaitStrategy() {
+        return _waitStrategy;
+    }
+
+    /** Returns true if the buffer is empty. */
+    public boolean isEmpty() {
+        return _head.get() == _tail.get();
+    }
+
+    /** Add an element if the buffer is not full. Must only be called by
+     *  the producer thread.
+     *  @param element the element. Must not be null.
+     *  @return true if the element was added, false if the buffer is full.
+     */
+    public boolean offer(E element) {
+        if(element == null) {
+            throw new NullPointerException("Element cannot be null.");
+        }
+
+        final long tail = _tail.get();
+        if(tail - _head.get() >= _capacity) {
+            return false;
+        }
+
+        _slots.lazySet((int) tail & _mask, element);
+        _tail.set(tail + 1);
+
+        final Thread consumer = _consumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /** Add an element, waiting if the buffer is full. Must only be called
+     *  by the producer thread.
+     *  @param element the element. Must not be null.
+     */
+    public void put(E element) throws InterruptedException {
+        if(element == null) {
+            throw new NullPointerException("Element cannot be null.");
+        }
+
+        final long tail = _tail.get();
+        int spins = 0;
+        while(tail - _head.get() >= _capacity) {
+            if(_waitStrategy == WaitStrategy.PARK) {
+                _producer = Thread.currentThread();
+                // check again after publishing the waiting thread so that
+                // a take() that frees a slot in between will unpark us.
+                if(tail - _head.get() >= _capacity) {
+                    LockSupport.park(this);
+                }
+                _producer = null;
+            } else {
+                spins = _idle(spins);
+            }
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        _slots.lazySet((int) tail & _mask, element);
+        _tail.set(tail + 1);
+
+        final Thread consumer = _consumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /** Set the wait strategy. This should be called before the producer and
+     *  consumer start using the buffer.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        if(waitStrategy == null) {
+            throw new NullPointerException("Wait strategy cannot be null.");
+        }
+        _waitStrategy = waitStrategy;
+    }
+
+    /** Get the number of elements in the buffer. */
+    public int size() {
+        return (int) (_tail.get() - _head.get());
+    }
+
+    /** Remove an element, waiting if the buffer is empty. Must only be called
+     *  by the consumer thread.
+     */
+    public E take() throws InterruptedException {
+
+        final long head = _head.get();
+        int spins = 0;
+        while(head == _tail.get()) {
+            if(_waitStrategy == WaitStrategy.PARK) {
+                _consumer = Thread.currentThread();
+                // check again after publishing the waiting thread so that
+                // a put() in between will unpark us.
+                if(head == _tail.get()) {
+                    LockSupport.park(this);
+                }
+                _consumer = null;
+            } else {
+                spins = _idle(spins);
+            }
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        final int index = (int) head & _mask;
+        final E element = _slots.get(index);
+        // clear the slot so that the element can be garbage collected.
+        _slots.lazySet(index, null);
+        _head.set(head + 1);
+
+        final Thread producer = _producer;
+        if(producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return element;
+    }
+
+    /** How a thread waits when the buffer is full or empty. */
+    public enum WaitStrategy {
+        /** Busy-wait. Has the lowest latency, but uses a full core while
+         *  waiting, so should only be used when there is a core for each
+         *  producer and consumer.
+         */
+        SPIN,
+        /** Busy-wait for a short time, then yield the processor between
+         *  checks.
+         */
+        YIELD,
+        /** Block the thread until the other side adds or removes an element.
+         *  Does not use the processor while waiting.
+         */
+        PARK;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Wait once for the SPIN or YIELD strategies.
+     *  @param spins the number of times the thread has waited.
+     *  @return the new number of times the thread has waited.
+     */
+    private int _idle(int spins) {
+        if(_waitStrategy == WaitStrategy.YIELD && spins >= _SPINS_BEFORE_YIELD) {
+            Thread.yield();
+            return spins;
+        }
+        return spins + 1;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** The index of the next element to take. Only written by the consumer. */
+    private final AtomicLong _head = new AtomicLong();
+
+    /** The index of the next slot to put. Only written by the producer. */
+    private final AtomicLong _tail = new AtomicLong();
+
+    /** The maximum number of elements in the buffer. */
+    private final int _capacity;
+
+    /** The slots for the elements. */
+    private final AtomicReferenceArray<E> _slots;
+
+    /** The mask to convert an index to a slot position. */
+    private final int _mask;
+
+    /** The consumer thread if it is parked waiting for an element. */
+    private volatile Thread _consumer;
+
+    /** The producer thread if it is parked waiting for a free slot. */
+    private volatile Thread _producer;
+
+    /** How a thread waits when the buffer is full or empty. */
+    private volatile WaitStrategy _waitStrategy;
+
+    /** The number of times to busy-wait before yielding for WaitStrategy.YIELD. */
+    private static final int _SPINS_BEFORE_YIELD = 100;
+}
@@ -49,6 +49,21 @@ public class StubBaseActor extends TypedAtomicActor {
         super(container, name);
     }
 
+    /** Get the largest number of inputs or outputs that have been waiting
+     *  in this actor at the same time. In this class, returns 0.
+     */
+    public int getQueueHighWaterMark() {
+        return 0;
+    }
+
+    /** Set the maximum number of inputs or outputs waiting in this actor.
+     *  This must be called before the workflow is executed. In this class,
+     *  does nothing.
+     *  @param capacity the capacity. If 0, use the default capacity.
+     */
+    public void setQueueCapacity(int capacity) {
+    }
+
     /** Set if the full the full lifecycle of the sub-workflow will be executed
      * for each input. If false, only a single interation occurs for each input.
      */
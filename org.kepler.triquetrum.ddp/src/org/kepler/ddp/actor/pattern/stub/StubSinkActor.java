@@ -29,9 +29,9 @@
  */
 package org.kepler.ddp.actor.pattern.stub;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.kepler.ddp.actor.pattern.Types;
 
@@ -91,7 +91,10 @@ public class StubSinkActor extends StubBaseActor {
     @Override
     public Object clone(Workspace workspace) throws CloneNotSupportedException {
         StubSinkActor newObject = (StubSinkActor)super.clone(workspace);
-        newObject._blockingList = new LinkedBlockingQueue<List<Token>>();
+        newObject._blockingList = new ArrayList<Token>();
+        newObject._blockingListLock = new Object();
+        newObject._blockingListRequested = 0;
+        newObject._queueHighWaterMark = 0;
         try {
             newObject._emptyKeyValue = new ArrayToken(new Token[] { new StringToken(), new StringToken() });
         } catch (IllegalActionException e) {
@@ -117,15 +120,7 @@ public class StubSinkActor extends StubBaseActor {
             if(linesStr.trim().isEmpty()) {
                 keysValuesToken = _emptyKeyValue;                
             } else {
-                final String[] lineArray = linesStr.split("\n");
-                final Token[] tokenArray = new Token[lineArray.length];
-                for(int i = 0; i < lineArray.length; i++) {
-                    final String line = lineArray[i];
-                    tokenArray[i] = new RecordToken(_recordLabels,
-                            new Token[] {new StringToken(line.substring(0, line.indexOf("\t"))),
-                            new StringToken(line)});
-                }
-                keysValuesToken = new ArrayToken(tokenArray);
+                keysValuesToken = new ArrayToken(_parseLines(linesStr));
             }   
             
         }
@@ -133,12 +128,26 @@ public class StubSinkActor extends StubBaseActor {
         if(_runWorkflowLifecyclePerInput) {
             _nonBlockingList.add(keysValuesToken);
         } else {
-            List<Token> list = new LinkedList<Token>();
-            list.add(keysValuesToken);
-            try {
-                _blockingList.put(list);
-            } catch(InterruptedException e) {
-                throw new IllegalActionException(this, e, "Error waiting for token.");
+            synchronized(_blockingListLock) {
+                // if the queue is bounded, wait until the reader requests
+                // the data waiting in the list.
+                while(_queueCapacity > 0 && !_stopRequested &&
+                        _blockingList.size() >= Math.max(_queueCapacity, _blockingListRequested)) {
+                    try {
+                        _blockingListLock.wait();
+                    } catch(InterruptedException e) {
+                        throw new IllegalActionException(this, e, "Error waiting for reader.");
+                    }
+                }
+                _blockingList.add(keysValuesToken);
+                if(_blockingList.size() > _queueHighWaterMark) {
+                    _queueHighWaterMark = _blockingList.size();
+                }
+                // only wake up the reader when all the data it is
+                // waiting for has been read.
+                if(_blockingListRequested > 0 && _blockingList.size() >= _blockingListRequested) {
+                    _blockingListLock.notifyAll();
+                }
             }
         }
         
@@ -146,6 +155,18 @@ public class StubSinkActor extends StubBaseActor {
     
     /** Get the data read from the workflow by this actor. */
     public List<Token> getOutput() throws IllegalActionException {
+        return getOutput(1);
+    }
+    
+    /** Get the data read from the workflow by this actor for a batch of inputs.
+     *  If the full lifecycle of the workflow is executed for each input, returns
+     *  all the data read since the last call. Otherwise, waits until the workflow
+     *  has executed once for each input in the batch, and returns the data read
+     *  in all of those executions.
+     *  @param count the number of inputs in the batch.
+     *  @return the data, or null if interrupted or stopped while waiting.
+     */
+    public List<Token> getOutput(int count) throws IllegalActionException {
                 
         List<Token> retval;
         
@@ -153,20 +174,53 @@ public class StubSinkActor extends StubBaseActor {
             retval = _nonBlockingList;
             _nonBlockingList = new LinkedList<Token>();
         } else {
-            try {
-                retval = _blockingList.take();
-            } catch(InterruptedException e) {
-                // do not rethrow since this exception can occur when stopping a DDP
-                // job. instead just print to stderr.
-                //throw new IllegalActionException(this, e, "Error waiting for token lists.");
-                System.err.println("Got InterruptedException.");
-                return null;
+            synchronized(_blockingListLock) {
+                try {
+                    _blockingListRequested = count;
+                    // wake up fire() if it is waiting for the request.
+                    _blockingListLock.notifyAll();
+                    // stop() is called if the workflow is stopped or fails,
+                    // in which case the rest of the data will not be read.
+                    while(_blockingList.size() < count && !_stopRequested) {
+                        _blockingListLock.wait();
+                    }
+                    if(_blockingList.size() < count) {
+                        return null;
+                    }
+                } catch(InterruptedException e) {
+                    // do not rethrow since this exception can occur when stopping a DDP
+                    // job. instead just print to stderr.
+                    //throw new IllegalActionException(this, e, "Error waiting for token lists.");
+                    System.err.println("Got InterruptedException.");
+                    return null;
+                } finally {
+                    _blockingListRequested = 0;
+                }
+                
+                if(_blockingList.size() == count) {
+                    retval = _blockingList;
+                    _blockingList = new ArrayList<Token>();
+                } else {
+                    final List<Token> batch = _blockingList.subList(0, count);
+                    retval = new ArrayList<Token>(batch);
+                    batch.clear();
+                }
+                // wake up fire() if it is waiting for space in the list.
+                _blockingListLock.notifyAll();
             }
         }
         
         return retval;
     }
     
+    /** Get the largest number of outputs that have been waiting to be
+     *  read from this actor at the same time.
+     */
+    @Override
+    public int getQueueHighWaterMark() {
+        return _queueHighWaterMark;
+    }
+    
     @Override
     public void preinitialize() throws IllegalActionException {
         
@@ -204,21 +258,107 @@ public class StubSinkActor extends StubBaseActor {
         } 
         
     }
+    
+    /** Set the maximum number of outputs waiting to be read from this
+     *  actor. If the limit is reached, fire() blocks until the outputs
+     *  are requested with getOutput(). This must be called before the
+     *  workflow is executed.
+     *  @param capacity the capacity. If 0, the number is not limited.
+     */
+    @Override
+    public void setQueueCapacity(int capacity) {
+        _queueCapacity = capacity;
+    }
+    
+    /** Request that execution stop, and wake up fire() if it is waiting
+     *  for outputs to be read.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        synchronized(_blockingListLock) {
+            _blockingListLock.notifyAll();
+        }
+    }
             
     /** An array of records with key-values. */
     public TypedIOPort keysvalues;
     
     /** Line(s) of text that will be converted into key-value pairs.
      *  For each line, the key is the part before the first tab,
-     *  and the value is the entire line.
+     *  or the entire line if there is no tab, and the value is the
+     *  entire line.
      */
     public TypedIOPort lines;
     
     /** Output port of key-value pairs. */
     public TypedIOPort out;
     
-    /** A blocking list of tokens used when executing one iteration of the workflow per input. */
-    private LinkedBlockingQueue<List<Token>> _blockingList = new LinkedBlockingQueue<List<Token>>();
+    ///////////////////////////////////////////////////////////////////
+    ////                         protected methods                 ////
+
+    /** Convert lines of text into key-value record tokens. For each line,
+     *  the key is the part before the first tab, or the entire line if
+     *  there is no tab, and the value is the entire line. As with
+     *  String.split(), trailing empty lines are ignored. The text is
+     *  scanned in place instead of being split into an array of lines.
+     *  @param text the lines. Must contain a non-whitespace character.
+     */
+    protected static Token[] _parseLines(String text) throws IllegalActionException {
+        
+        int end = text.length();
+        while(end > 0 && text.charAt(end - 1) == '\n') {
+            end--;
+        }
+        
+        // count the lines so that the array is only allocated once.
+        int count = 1;
+        for(int i = 0; i < end; i++) {
+            if(text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        
+        final Token[] tokens = new Token[count];
+        int start = 0;
+        for(int i = 0; i < count; i++) {
+            int lineEnd = text.indexOf('\n', start);
+            if(lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+            final String line = text.substring(start, lineEnd);
+            final int tab = line.indexOf('\t');
+            final StringToken value = new StringToken(line);
+            final StringToken key = (tab < 0 ? value : new StringToken(line.substring(0, tab)));
+            tokens[i] = new RecordToken(_recordLabels, new Token[] {key, value});
+            start = lineEnd + 1;
+        }
+        return tokens;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** A list of tokens used when executing one iteration of the workflow per input.
+     *  Access is synchronized on _blockingListLock.
+     */
+    private List<Token> _blockingList = new ArrayList<Token>();
+    
+    /** The lock for _blockingList. */
+    private Object _blockingListLock = new Object();
+    
+    /** The number of tokens in _blockingList the reader is waiting for,
+     *  or 0 if the reader is not waiting.
+     */
+    private int _blockingListRequested = 0;
+    
+    /** The maximum number of tokens in _blockingList that have not been
+     *  requested by the reader. If 0, the number is not limited.
+     */
+    private int _queueCapacity = 0;
+    
+    /** The largest number of tokens in _blockingList. */
+    private volatile int _queueHighWaterMark = 0;
     
     /** A non-blocking list of tokens used when execution the full lifecycle
      *  of the workflow per input.
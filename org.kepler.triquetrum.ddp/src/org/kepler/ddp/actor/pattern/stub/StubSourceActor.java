@@ -32,7 +32,6 @@ package org.kepler.ddp.actor.pattern.stub;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.kepler.ddp.actor.pattern.Types;
@@ -47,6 +46,12 @@ import ptolemy.kernel.util.NameDuplicationException;
 import ptolemy.kernel.util.Workspace;
 
 /** A base class for DDP pattern actor stubs that write data to the workflow.
+ *
+ *  <p>Input records are handed to the workflow through a single-producer,
+ *  single-consumer SpscRingBuffer. Each slot holds a batch of records with
+ *  all of their fields, rather than a single key-value pair, so a batch is
+ *  transferred in one operation and the fields cannot get out of step. The
+ *  queue capacity is therefore a number of batches.</p>
  * 
  *  @author Daniel Crawl
  *  @version $Id: StubSourceActor.java 32657 2014-04-12 00:09:39Z crawl $
@@ -71,22 +76,103 @@ public class StubSourceActor extends StubBaseActor {
     public Object clone(Workspace workspace) throws CloneNotSupportedException {
         StubSourceActor newObject = (StubSourceActor)super.clone(workspace);
         newObject._finish = new AtomicBoolean(false);
-        newObject._keyList = new LinkedBlockingQueue<Token>();
+        newObject._batchList = new SpscRingBuffer<Token[][]>(BATCH_LIST_CAPACITY,
+                _batchList.getWaitStrategy());
+        newObject._batch = null;
+        newObject._batchIndex = 0;
+        newObject._queueHighWaterMark = 0;
         return newObject;
     }
     
     /** Stop execution of the workflow the next time postfire() is called. */
     public void finish() throws InterruptedException {
         _finish.set(true);
-        // add a token to unblock the take() in fire()
-        _keyList.put(Token.NIL);
+        // add a batch to unblock the take() in fire()
+        _batchList.put(_FINISH_BATCH);
+    }
+
+    /** Stop execution of the workflow without waiting for space for the
+     *  finish batch. If the workflow is waiting for the next batch, it is
+     *  woken up. Otherwise, it stops the next time postfire() is called,
+     *  so this can be used when the workflow may no longer be reading
+     *  batches, e.g., after it failed. Must be called from the thread
+     *  adding batches.
+     */
+    public void tryFinish() {
+        _finish.set(true);
+        // if the list is full, the workflow is not waiting in take().
+        _batchList.offer(_FINISH_BATCH);
+    }
+
+    /** Write the next input record to the workflow. If the current batch of
+     *  records has been written, wait for the next batch.
+     */
+    @Override
+    public void fire() throws IllegalActionException {
+        
+        super.fire();
+        
+        if(_nextRecord() && !_finish.get()) {
+            _writeRecord();
+        }
     }
     
+    /** Set if the workflow is iterated by the thread adding the input
+     *  records, once for each record, instead of executing in its own
+     *  thread. In this mode, postfire() returns true while records are
+     *  waiting to be written or until finish() is called, so that the
+     *  workflow can be iterated again for the next record. This should
+     *  be called before the workflow is executed.
+     */
+    public void setIterateInInputThread(boolean iterateInInputThread) {
+        _iterateInInputThread = iterateInInputThread;
+    }
+
+    /** Set how the workflow waits for the next batch of input records
+     *  and how setInput() waits if the workflow has not yet read the
+     *  previous batches. This should be called before the workflow is
+     *  executed.
+     */
+    public void setWaitStrategy(SpscRingBuffer.WaitStrategy waitStrategy) {
+        _batchList.setWaitStrategy(waitStrategy);
+    }
+
+    /** Get the maximum number of batches of input records waiting to be
+     *  written to the workflow.
+     */
+    public int getQueueCapacity() {
+        return _batchList.capacity();
+    }
+
+    /** Get the largest number of batches of input records that have been
+     *  waiting to be written to the workflow at the same time.
+     */
+    @Override
+    public int getQueueHighWaterMark() {
+        return _queueHighWaterMark;
+    }
+
+    /** Set the maximum number of batches of input records waiting to be
+     *  written to the workflow. This must be called before the workflow
+     *  is executed.
+     *  @param capacity the capacity. If 0, BATCH_LIST_CAPACITY is used.
+     */
+    @Override
+    public void setQueueCapacity(int capacity) {
+        _batchList = new SpscRingBuffer<Token[][]>(
+                capacity == 0 ? BATCH_LIST_CAPACITY : capacity,
+                _batchList.getWaitStrategy());
+    }
+
     /** Returns true if the actor should execute again. */
     @Override
     public boolean postfire() throws IllegalActionException {
 
-        if(_runWorkflowLifecyclePerInput) {
+        if(_iterateInInputThread) {
+            // the thread adding the records decides how many times to
+            // iterate, so only stop once there are no more records.
+            return _hasNextRecord() || !_finish.get();
+        } else if(_runWorkflowLifecyclePerInput) {
             return false;
         } else if(_finish.get()) {
             getDirector().stop();
@@ -101,6 +187,13 @@ public class StubSourceActor extends StubBaseActor {
     /** Output port of key to write to workflow. */
     public TypedIOPort key;
 
+    /** The default maximum number of batches of input records waiting to
+     *  be written to the workflow. Each slot of the queue holds a whole
+     *  batch, so the number of records waiting is at most this number
+     *  times the size of the batches given to _putBatch().
+     */
+    public static final int BATCH_LIST_CAPACITY = 16;
+
     ///////////////////////////////////////////////////////////////////
     ////                         protected methods                 ////
     
@@ -110,6 +203,57 @@ public class StubSourceActor extends StubBaseActor {
         return null;
     }
 
+    /** Get a field of the current input record.
+     *  @param field the index of the field, in the order the fields were
+     *  given to _putBatch().
+     */
+    protected Token _getField(int field) {
+        return _batch[field][_batchIndex];
+    }
+
+    /** Add a batch of input records. Each array contains one field of the
+     *  records, e.g., the keys or the values, and all the arrays must have
+     *  the same length. A null field is replaced with Token.NIL. The batch
+     *  is handed to the workflow in a single operation, so the arrays must
+     *  not be modified after calling this method. Batches must be added,
+     *  and finish() called, from a single thread. If the maximum number of
+     *  batches are waiting, this method waits until the workflow reads one.
+     *  @param columns the fields of the records.
+     */
+    protected void _putBatch(Token[]... columns) throws InterruptedException {
+        
+        final int length = columns[0].length;
+        if(length == 0) {
+            return;
+        }
+
+        for(Token[] column : columns) {
+            if(column.length != length) {
+                throw new IllegalArgumentException(
+                        "All fields of the input records must have the same length.");
+            }
+            for(int i = 0; i < length; i++) {
+                if(column[i] == null) {
+                    column[i] = Token.NIL;
+                }
+            }
+        }
+        
+        _batchList.put(columns);
+        
+        final int size = _batchList.size();
+        if(size > _queueHighWaterMark) {
+            _queueHighWaterMark = size;
+        }
+    }
+
+    /** Write the fields of the current input record to the output ports.
+     *  In this class, writes the first field to the key port.
+     */
+    protected void _writeRecord() throws IllegalActionException {
+        key.broadcast(_getField(0));
+    }
+
     /** Return the type constraints of this actor. The type constraint is
      *  that the type of the output ports is no less than the type of the
      *  fields of the input RecordToken.
@@ -128,9 +272,13 @@ public class StubSourceActor extends StubBaseActor {
 
         while (outputPorts.hasNext()) {
             TypedIOPort outputPort = (TypedIOPort) outputPorts.next();
-            Inequality inequality = new Inequality(_createPortFunction(outputPort),
-                    outputPort.getTypeTerm());
-            constraints.add(inequality);
+            MonotonicFunction function = _createPortFunction(outputPort);
+            // ports without a function have a declared type.
+            if(function != null) {
+                Inequality inequality = new Inequality(function,
+                        outputPort.getTypeTerm());
+                constraints.add(inequality);
+            }
         }
 
         return constraints;
@@ -147,7 +295,64 @@ public class StubSourceActor extends StubBaseActor {
     /** If true, the actor will stop workflow execution. */
     protected AtomicBoolean _finish = new AtomicBoolean(false);
         
-    /** A list containing tokens to be written by the key port. */
-    protected LinkedBlockingQueue<Token> _keyList = new LinkedBlockingQueue<Token>();
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Returns true if there is an input record after the current one
+     *  in the current batch or in a waiting batch.
+     */
+    private boolean _hasNextRecord() {
+        return (_batch != null && _batchIndex + 1 < _batch[0].length) ||
+                !_batchList.isEmpty();
+    }
+
+    /** Advance to the next input record, waiting for a new batch if
+     *  all the records in the current batch have been written.
+     *  @return true if there is a record, false if finish() was called.
+     */
+    private boolean _nextRecord() throws IllegalActionException {
+        
+        _batchIndex++;
+        if(_batch == null || _batchIndex >= _batch[0].length) {
+            try {
+                _batch = _batchList.take();
+            } catch(InterruptedException e) {
+                throw new IllegalActionException(this, e, "Error waiting for token.");
+            }
+            _batchIndex = 0;
+            if(_batch == _FINISH_BATCH) {
+                _batch = null;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** A list of batches of input records to be written to the workflow.
+     *  Each batch is an array of fields, e.g., keys and values, and each
+     *  field is an array containing the field for every record in the batch. 
+     */
+    private SpscRingBuffer<Token[][]> _batchList =
+            new SpscRingBuffer<Token[][]>(BATCH_LIST_CAPACITY);
+
+    /** If true, the workflow is iterated by the thread adding the records. */
+    private boolean _iterateInInputThread;
+
+    /** The largest number of batches waiting in _batchList. Only
+     *  written by the thread adding batches.
+     */
+    private volatile int _queueHighWaterMark;
+
+    /** The batch of records currently being written. */
+    private Token[][] _batch;
+    
+    /** The index of the current record in _batch. */
+    private int _batchIndex;
+    
+    /** A batch added by finish() to unblock the take() in fire(). */
+    private static final Token[][] _FINISH_BATCH = new Token[0][];
 
 }
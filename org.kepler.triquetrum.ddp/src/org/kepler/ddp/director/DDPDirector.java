@@ -34,6 +34,8 @@ import java.util.List;
 
 import org.kepler.configuration.ConfigurationManager;
 import org.kepler.configuration.ConfigurationProperty;
+import org.kepler.ddp.TokenStore;
+import org.kepler.ddp.director.local.LocalEngine;
 
 import ptolemy.actor.Director;
 import ptolemy.data.BooleanToken;
@@ -207,6 +209,17 @@ public class DDPDirector extends Director {
         }
     }
     
+    /** Get the store for the tokens read by DDPDataSource and written to
+     *  DDPDataSink actors, or null if there is no engine or the engine
+     *  was not preinitialized.
+     */
+    public TokenStore getTokenStore() {
+        if(_engine == null) {
+            return null;
+        }
+        return _engine.getTokenStore();
+    }
+
     /** Postfire the engine.
      *  @return If true, engine can be fired again. If false, do not run again.
      */
@@ -269,6 +282,16 @@ public class DDPDirector extends Director {
      */
     public StringParameter displayRedirectDir;
 
+    /** If true, each sub-workflow is executed in the thread of the task
+     *  that writes its inputs, instead of in a separate Manager thread
+     *  that blocks while waiting for inputs. An idle sub-workflow then
+     *  does not hold a thread, so many more sub-workflows can exist at
+     *  once. This is ignored for sub-workflows that execute their full
+     *  lifecycle for each input, and by engines that do not execute
+     *  sub-workflows in the same JVM as the director.
+     */
+    public Parameter runSubWorkflowsInTaskThreads;
+
     /** If true, sub-workflows are written to files in a directory. 
      *  The directory path is printed to stdout when the workflow
      *  executes.
@@ -281,6 +304,31 @@ public class DDPDirector extends Director {
     /** The type of DDP server to start (if one is not running). */
     public StringParameter startServerType;
 
+    /** The maximum number of seconds to wait for a DDP server to be
+     *  ready to execute jobs after it is started.
+     */
+    public Parameter serverStartTimeout;
+
+    /** If true, a DDP server started by the engine is kept running after
+     *  the workflow finishes, and is used by later executions in the same
+     *  Kepler session. The server is stopped when it has not been used for
+     *  serverIdleTimeout seconds, or when Kepler exits.
+     */
+    public Parameter keepServerWarm;
+
+    /** The number of seconds a server kept running by keepServerWarm may
+     *  be unused before it is stopped. If 0, the server is stopped when
+     *  Kepler exits.
+     */
+    public Parameter serverIdleTimeout;
+
+    /** The number of megabytes of direct memory used to store the tokens
+     *  read by DDPDataSource and written to DDPDataSink. Tokens beyond
+     *  this limit are spilled to memory-mapped files in the temporary
+     *  directory. If 0, the tokens are stored on the heap.
+     */
+    public Parameter tokenStoreMemoryLimit;
+
     /** String for serverType parameter for running DDP Engine in the same JVM. */
     public final static String SAME_JVM_STRING = "sameJVM";
 
@@ -338,6 +386,12 @@ public class DDPDirector extends Director {
             }
         }
         
+        // the local engine is part of this module, so it can be used
+        // even if it is not in the configuration file.
+        if(engineClassName == null && name.equalsIgnoreCase(LocalEngine.ENGINE_NAME)) {
+            engineClassName = LocalEngine.class.getName();
+        }
+        
         // try to instantiate the engine        
         DDPEngine newEngine = null;
         if(engineClassName != null) {
@@ -380,6 +434,16 @@ public class DDPDirector extends Director {
 					"Cannot create writeModelsToFiles parameter.");
 		}
 
+		try {
+			runSubWorkflowsInTaskThreads = new Parameter(this,
+					"runSubWorkflowsInTaskThreads");
+			runSubWorkflowsInTaskThreads.setTypeEquals(BaseType.BOOLEAN);
+			runSubWorkflowsInTaskThreads.setToken(BooleanToken.FALSE);
+		} catch (Throwable t) {
+			throw new InternalErrorException(this, t,
+					"Cannot create runSubWorkflowsInTaskThreads parameter.");
+		}
+
 		try {
 			includeJars = new StringParameter(this, "includeJars");
 		} catch (Throwable t) {
@@ -423,6 +487,38 @@ public class DDPDirector extends Director {
         } catch(Throwable t) {
             throw new InternalErrorException(this, t, "Cannot create startServerType parameter.");
         }
+
+        try {
+            serverStartTimeout = new Parameter(this, "serverStartTimeout");
+            serverStartTimeout.setTypeEquals(BaseType.INT);
+            serverStartTimeout.setExpression("60");
+        } catch(Throwable t) {
+            throw new InternalErrorException(this, t, "Cannot create serverStartTimeout parameter.");
+        }
+
+        try {
+            keepServerWarm = new Parameter(this, "keepServerWarm");
+            keepServerWarm.setTypeEquals(BaseType.BOOLEAN);
+            keepServerWarm.setToken(BooleanToken.FALSE);
+        } catch(Throwable t) {
+            throw new InternalErrorException(this, t, "Cannot create keepServerWarm parameter.");
+        }
+
+        try {
+            serverIdleTimeout = new Parameter(this, "serverIdleTimeout");
+            serverIdleTimeout.setTypeEquals(BaseType.INT);
+            serverIdleTimeout.setExpression("1800");
+        } catch(Throwable t) {
+            throw new InternalErrorException(this, t, "Cannot create serverIdleTimeout parameter.");
+        }
+
+        try {
+            tokenStoreMemoryLimit = new Parameter(this, "tokenStoreMemoryLimit");
+            tokenStoreMemoryLimit.setTypeEquals(BaseType.INT);
+            tokenStoreMemoryLimit.setExpression("0");
+        } catch(Throwable t) {
+            throw new InternalErrorException(this, t, "Cannot create tokenStoreMemoryLimit parameter.");
+        }
         
         try {
             engine = new StringParameter(this, "engine");
@@ -464,6 +560,7 @@ public class DDPDirector extends Director {
         }
          
         engine.addChoice("default");
+        boolean foundLocal = false;
         for(ConfigurationProperty engineProperty : engineProperties) {
             ConfigurationProperty nameProperty = engineProperty.getProperty("Name");
             if(nameProperty == null) {
@@ -472,6 +569,12 @@ public class DDPDirector extends Director {
                         "and restarting Kepler.");
             }
             engine.addChoice(nameProperty.getValue());
+            if(nameProperty.getValue().equalsIgnoreCase(LocalEngine.ENGINE_NAME)) {
+                foundLocal = true;
+            }
+        }
+        if(!foundLocal) {
+            engine.addChoice(LocalEngine.ENGINE_NAME);
         }
 	}
 	    
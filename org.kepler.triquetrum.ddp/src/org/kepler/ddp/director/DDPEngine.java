@@ -38,20 +38,26 @@ import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.kepler.build.modules.Module;
 import org.kepler.build.modules.ModuleTree;
 import org.kepler.configuration.ConfigurationProperty;
+import org.kepler.ddp.TokenStore;
 import org.kepler.ddp.Utilities;
 import org.kepler.ddp.actor.pattern.DDPDataSink;
 import org.kepler.ddp.actor.pattern.DDPDataSource;
@@ -131,6 +137,7 @@ public abstract class DDPEngine implements Cloneable {
     public Object clone(Workspace workspace) throws CloneNotSupportedException {
         DDPEngine newObject = (DDPEngine) super.clone();
         newObject._additionalJars = new HashSet<String>();
+        newObject._cachedClassLoader = null;
         newObject._classLoader = null;
         newObject._configDirStr = null;
         newObject._container = null;
@@ -140,7 +147,10 @@ public abstract class DDPEngine implements Cloneable {
         newObject._jobArgumentsMap = new HashMap<String,String>();
         newObject._jobDir = null;
         newObject._jobLock = new Object();
+        newObject._parameterSnapshots = new HashMap<NamedObj,ParameterSnapshot>();
         newObject._random = new Random();
+        newObject._serversInUse = new HashSet<InetSocketAddress>();
+        newObject._tokenStore = null;
         newObject._stopRequested = false;
         newObject._writeSubWorkflowsToFiles = false;
         return newObject;
@@ -231,6 +241,15 @@ public abstract class DDPEngine implements Cloneable {
         return new String[] {"default", DDPDirector.SAME_JVM_STRING, DDPDirector.DISTRIBUTED_STRING};
     }
 
+    /** Get the store for the tokens read by DDPDataSource and written to
+     *  DDPDataSink actors, or null if the engine was not preinitialized.
+     *  The store is created in preinitialize() with the director's
+     *  tokenStoreMemoryLimit.
+     */
+    public TokenStore getTokenStore() {
+        return _tokenStore;
+    }
+
     /** Execute the engine. In this base class, does nothing. */
     public void fire() throws IllegalActionException {
 
@@ -297,6 +316,13 @@ public abstract class DDPEngine implements Cloneable {
 		} else {
 		    _sameJVM = false;
 		}
+
+        final int tokenStoreMemoryLimit = ((IntToken)_director.tokenStoreMemoryLimit.getToken()).intValue();
+        if(tokenStoreMemoryLimit < 0) {
+            throw new IllegalActionException(_director,
+                    "tokenStoreMemoryLimit must be 0 or more megabytes.");
+        }
+        _tokenStore = new TokenStore(tokenStoreMemoryLimit * 1024L * 1024L, null);
 		
 		// close any effigies that were opened during the previous execution
 		// FIXME this closes all the effigies, not just the ones used by
@@ -309,10 +335,18 @@ public abstract class DDPEngine implements Cloneable {
         _stopRequested = true;
     }
     
-    /** Perform cleanup. */
+    /** Perform cleanup. Any servers used by this execution are released
+     *  with _releaseServer(), and the class loader created by _getJarList()
+     *  is closed if it was removed from the cache while in use.
+     */
     public void wrapup() throws IllegalActionException {
 
-        _subWorkflows.clear();
+        try {
+            _releaseServers();
+        } finally {
+            _subWorkflows.clear();
+            _releaseCachedClassLoader();
+        }
 
     }
     
@@ -324,9 +358,22 @@ public abstract class DDPEngine implements Cloneable {
         
     }
     
-    /** Check that the configuration directory is set and exists on the file system. */
+    /** Check that the configuration directory is set and exists on the file system.
+     *  If the director's keepServerWarm parameter is true, a directory that
+     *  was checked by a previous execution is not checked again.
+     */
     protected void _checkConfigDir() throws IllegalActionException {
     
+        final boolean keepServerWarm = _isKeepServerWarm();
+        final String configDirKey = _engineName + "|" + _configDirStr;
+        if(keepServerWarm) {
+            final String checkedConfigDirStr = _checkedConfigDirs.get(configDirKey);
+            if(checkedConfigDirStr != null) {
+                _configDirStr = checkedConfigDirStr;
+                return;
+            }
+        }
+
         if(_configDirStr.trim().isEmpty()) {
         	
         	String moduleName = _engineName.toLowerCase();
@@ -348,6 +395,10 @@ public abstract class DDPEngine implements Cloneable {
             throw new IllegalActionException(_director, _engineName + " configuration directory " +
                     _configDirStr + " does not exist.");
         }
+
+        if(keepServerWarm) {
+            _checkedConfigDirs.put(configDirKey, _configDirStr);
+        }
         
     }
     
@@ -411,6 +462,11 @@ public abstract class DDPEngine implements Cloneable {
     }
     
     /** Check if the DDP engine server is running. If not, try to start it.
+     *  In either case, wait until _isServerReady() returns true. A server
+     *  started here is registered in WarmServers. This execution holds a
+     *  server it started, or a running server started by another execution,
+     *  until the server is released by wrapup(), so that the server is not
+     *  stopped while it is in use.
      *  @param socketAddress Host and port of the server to check.
      *  @param startScriptStr The script to start the server if not running.
      *  @return True if a server was started, false if could connect to already running server. 
@@ -421,117 +477,70 @@ public abstract class DDPEngine implements Cloneable {
         boolean startedServer = false;
         
     	synchronized(_serverStartStopLock) {
-	        Socket socket = null;
-	        try {
-	        	socket = new Socket();
-		        boolean connected = false;
-		        try {
-		            socket.connect(socketAddress, _CONNECT_TIMEOUT);
-		            connected = true;
-		        } catch (IOException e) {
-		            
-		            System.out.println(_engineName + " server " + socketAddress +
-		            		" does not appear to be running. Starting...");
-		            
-		            // start the server
-		            
-		            if(!_checkFilesBeforeStartingServer()) {
-		                throw new IllegalActionException(_director,
-		                        "One or more files required to start the server were not found.");
-		            }
-		            	            
-		            // see if the script is executable. kepler modules are zipped,
-		            // which does not preserve the permissions.
-		            File startScriptFile = new File(startScriptStr);
-		            if(!startScriptFile.canExecute()) {
-		                throw new IllegalActionException(_director, 
-		                        "The script " + startScriptFile + " is not executable.\n" +
-		                        		"You must change the permissions so that " +
-		                        		startScriptFile.getName() + 
-		                        		" and all the other scripts in \n" +
-		                        		startScriptFile.getParent() + " are executable.");
-		            }
-		            
-		            ProcessBuilder builder = new ProcessBuilder(startScriptStr);
-		            
-		            // make sure JAVA_HOME is set
-		            java.util.Map<String,String> env = builder.environment();
-		            if(env.get("JAVA_HOME") == null) {
-		                env.put("JAVA_HOME", System.getProperty("java.home"));
-		            }
-
-		            builder.redirectErrorStream(true);
-		            
-		            try {
-		                Process process = builder.start();
-		                InetSocketAddress newAddress = 
-		                        _parseOutputFromStartingServer(process.getInputStream());
-		                if(newAddress != null) {
-		                    socketAddress = newAddress;
-		                }
-		                process.waitFor();
-		                startedServer = true;
-		            } catch (Exception e1) {
-		                throw new IllegalActionException(_director, e1, "Unable to start " +
-		                		_engineName + " server.");
-		            }
-		            	                        
-		            int tries = 0;
-		            while(tries < 5) {
-		                // wait for the server to start
-		                try {
-		                    Thread.sleep(5000);
-		                    tries++;
-		                    System.out.print("Connecting to " + _engineName + " server port try #" + tries + ": ");
-		                    try {
-		                    	socket.close();
-		                        socket = new Socket();
-		                        socket.connect(socketAddress, _CONNECT_TIMEOUT);
-		                        connected = true;
-		                        System.out.println("connected.");
-		                        break;
-		                    } catch (IOException e1) {
-		                        // do nothing
-		                        System.out.println(e1);
-		                    }
-		                } catch (InterruptedException e2) {
-		                    throw new IllegalActionException(_director, e2, "Error while sleeping.");
-		                }
-		            }
-		            
-		            
-		            // if we get here, we were able to connect to the master/job manager port.
-		            // however, the server may not be completely initialized, so wait a few more seconds
-		            System.out.println("Waiting 15 seconds for " + _engineName + " server to initialize.");
-		            try {
-		                Thread.sleep(15000);
-		            } catch (InterruptedException e2) {
-		                throw new IllegalActionException(_director, e2, "Error while waiting " +
-		                        " for " + _engineName + " server to initialize.");
-		            }
-		
-		        }
-		        
-		        if(connected) {
-		            try {
-		                socket.close();
-		                socket = null;
-		            } catch (IOException e) {
-		                throw new IllegalActionException(_director, e, "Error closing socket.");
-		            }
-		        } else {
-		            throw new IllegalActionException(_director, 
-		            		"Could not connect to " + _engineName + " server: " + socketAddress);
-		        }
-	        } finally {
-	        	if(socket != null) {
-	        		try {
-						socket.close();
-					} catch (IOException e) {
-		                throw new IllegalActionException(_director, e, "Error closing socket.");
-					}
-	        	}
+    	    if(!_serversInUse.contains(socketAddress) &&
+    	            WarmServers.acquire(_getServerKey(socketAddress))) {
+    	        _log.debug("Using running " + _engineName + " server " + socketAddress);
+    	        _serversInUse.add(socketAddress);
+    	    }
+	        if(!_canConnect(socketAddress)) {
+
+	            if(_serversInUse.remove(socketAddress)) {
+	                // the server was stopped outside Kepler.
+	                WarmServers.remove(_getServerKey(socketAddress));
+	            }
+	            
+	            System.out.println(_engineName + " server " + socketAddress +
+	            		" does not appear to be running. Starting...");
+	            
+	            // start the server
+	            
+	            if(!_checkFilesBeforeStartingServer()) {
+	                throw new IllegalActionException(_director,
+	                        "One or more files required to start the server were not found.");
+	            }
+	            	            
+	            // see if the script is executable. kepler modules are zipped,
+	            // which does not preserve the permissions.
+	            File startScriptFile = new File(startScriptStr);
+	            if(!startScriptFile.canExecute()) {
+	                throw new IllegalActionException(_director, 
+	                        "The script " + startScriptFile + " is not executable.\n" +
+	                        		"You must change the permissions so that " +
+	                        		startScriptFile.getName() + 
+	                        		" and all the other scripts in \n" +
+	                        		startScriptFile.getParent() + " are executable.");
+	            }
+	            
+	            ProcessBuilder builder = new ProcessBuilder(startScriptStr);
+	            
+	            // make sure JAVA_HOME is set
+	            java.util.Map<String,String> env = builder.environment();
+	            if(env.get("JAVA_HOME") == null) {
+	                env.put("JAVA_HOME", System.getProperty("java.home"));
+	            }
+
+	            builder.redirectErrorStream(true);
+	            
+	            try {
+	                Process process = builder.start();
+	                InetSocketAddress newAddress = 
+	                        _parseOutputFromStartingServer(process.getInputStream());
+	                if(newAddress != null) {
+	                    socketAddress = newAddress;
+	                }
+	                process.waitFor();
+	                startedServer = true;
+	                WarmServers.add(_getServerKey(socketAddress), _serverStartStopLock,
+	                        _createServerStopper(socketAddress));
+	                _serversInUse.add(socketAddress);
+	            } catch (Exception e1) {
+	                throw new IllegalActionException(_director, e1, "Unable to start " +
+	                		_engineName + " server.");
+	            }
 	        }
+
+	        // a server that was already running is usually ready at the first probe.
+	        _waitForServer(socketAddress);
     	}
     	
     	return startedServer;
@@ -550,55 +559,21 @@ public abstract class DDPEngine implements Cloneable {
 		// subworkflow
 		final Workspace workspace = ((NamedObj) destSubWorkflow).workspace();
 		
-        // get the parameters up the hierarchy
-        final java.util.Map<String,Variable> parameters = 
-            _getParametersInHierarchy(sourceSubWorkflow.getContainer());
-        // copy the parameters into the pactor
-        // TODO: only need to get the parameters once per run, instead of once
-        // per pactor
-        for(Variable p : parameters.values()) {
-            
-            //System.out.println("copying parameter: " + p.getFullName());
+        // get the parameters up the hierarchy. these are only found once
+        // for all the pactors in the same container.
+        final ParameterSnapshot snapshot = _getParameterSnapshot(sourceSubWorkflow.getContainer());
+        for(Variable prototype : snapshot.prototypes) {
             
             // make sure the cloned actor does not already have a parameter
             // with the same name. this can happen if the parameter is a SharedParameter
-            if(destSubWorkflow.getAttribute(p.getName()) == null) {   
-                //System.out.println("parameter " + p);
+            if(destSubWorkflow.getAttribute(prototype.getName()) == null) {   
                 try {
-                    // if the parameter is a PortParameter, create a new parameter
-                    // instead of clone it, since we do not want the associated port
-
-                    // we also need to set persistence so the parameter appears when serialized
-                    if(p instanceof PortParameter) {
-                        final Parameter copiedParameter = new Parameter((NamedObj) destSubWorkflow, p.getName()); 
-                    	String value = p.getExpression();
-                        if(p.isStringMode()) {
-                        	copiedParameter.setExpression("\"" + value + "\"");
-                        } else {
-                        	copiedParameter.setExpression(value);
-                        }
-                        copiedParameter.setPersistent(true);
-                    } else {
-                        final Variable cloneParameter;
-                        
-                        // NOTE: Variable values are not written during exportMoML(),
-                        // so we need to put the value in a new Parameter.
-                        if(p instanceof Parameter) {
-                            cloneParameter = (Variable) p.clone(workspace);
-                        } else {
-                            cloneParameter = new Parameter(workspace);
-                        }
-                        cloneParameter.setContainer((NamedObj) destSubWorkflow);
-                        cloneParameter.setPersistent(true);
-
-                        if(!(p instanceof Parameter)) {
-                            cloneParameter.setName(p.getName());
-                            ((Parameter)cloneParameter).setExpression(p.getExpression());
-                        }
-                    } 
+                    final Variable cloneParameter = (Variable) prototype.clone(workspace);
+                    cloneParameter.setContainer((NamedObj) destSubWorkflow);
+                    cloneParameter.setPersistent(true);
                 } catch(Exception e) {
                     throw new IllegalActionException(_director, e, "Unable to add " +
-                        " parameter " + p.getFullName() + " to " + sourceSubWorkflow.getFullName());
+                        " parameter " + prototype.getName() + " to " + sourceSubWorkflow.getFullName());
                 }
             }
         }
@@ -623,6 +598,22 @@ public abstract class DDPEngine implements Cloneable {
 		_log.debug("Job directory is " + _jobDir);
 	}
 
+    /** Get the snapshot of the parameters for a NamedObj and all its
+     *  containers. The snapshot is created the first time and reused until
+     *  the model changes or the expression of one of the parameters changes.
+     */
+    protected ParameterSnapshot _getParameterSnapshot(NamedObj namedObj)
+            throws IllegalActionException {
+        synchronized(_parameterSnapshots) {
+            ParameterSnapshot snapshot = _parameterSnapshots.get(namedObj);
+            if(snapshot == null || !snapshot.isCurrent()) {
+                snapshot = new ParameterSnapshot(namedObj);
+                _parameterSnapshots.put(namedObj, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
     /** Get the parameters for a NamedObj and all its containers. */
     protected static Map<String,Variable> _getParametersInHierarchy(NamedObj namedObj)
     {
@@ -677,119 +668,147 @@ public abstract class DDPEngine implements Cloneable {
         return retval;
     }
 
-    /** Get a list of jars required for director to start. 
-     *  It also set _classLoader value based on the jars.
+    /** Get the jars in the director's includeJars parameter. A jar with
+     *  an absolute path is returned as is, even if it does not exist, and
+     *  a jar with a relative path is the jar with the same name in the
+     *  modules, as in _getJarList(). Unlike _getJarList(), no class loader
+     *  is created.
      */
-    protected List<URI> _getJarList() throws IllegalActionException{
-        final List<URI> jarPaths = new LinkedList<URI>();
-        final List<File> jarsWithRelativePaths = new LinkedList<File>();
-        
-        for(String additionalJar : _additionalJars) {
-            jarsWithRelativePaths.add(new File(additionalJar));
+    protected List<File> _getIncludeJarFiles() throws IllegalActionException {
+        final List<File> retval = new LinkedList<File>();
+        final String includeJarsStr = _director.includeJars.stringValue();
+        if(includeJarsStr == null || includeJarsStr.isEmpty()) {
+            return retval;
         }
-        
-        // get the jars in the director's includeJars parameter
-        String includeJarsStr = _director.includeJars.stringValue();
-        if(includeJarsStr != null && !includeJarsStr.isEmpty()) {
-            for(String jarPath : includeJarsStr.split(",")) {
-                File jarFile = new File(jarPath);
-                // see if jar is an absolute path
-                if(jarFile.isAbsolute()) {
-                    if(!jarFile.exists() || !jarFile.canRead()) {
-                        throw new IllegalActionException(_director,
-                                "Jar does not exist or cannot be read: " + jarFile);
+        final Set<String> relativeNames = new HashSet<String>();
+        for(String jarPath : includeJarsStr.split(",")) {
+            final File jarFile = new File(jarPath);
+            if(jarFile.isAbsolute()) {
+                retval.add(jarFile);
+            } else {
+                relativeNames.add(jarFile.getName());
+            }
+        }
+        if(!relativeNames.isEmpty()) {
+            for(Module module : ModuleTree.instance()) {
+                for(File jar : module.getJars()) {
+                    if(relativeNames.contains(jar.getName())) {
+                        retval.add(jar);
                     }
-                    // jars with absolute paths are added directly
-                    System.out.println("Adding jar: " + jarFile.getAbsolutePath());
-                    jarPaths.add(jarFile.toURI());
-                } else {
-                    jarsWithRelativePaths.add(jarFile);
                 }
             }
         }
-                    
-        // add the module jars, e.g., actors.jar, ptolemy.jar, etc.
-        // also add any jars in includeJars with a relative path - these jars
-        // are assumed to be module/lib/jar.
-        final ModuleTree moduleTree = ModuleTree.instance();
-        for(Module module : moduleTree) {
-            
-            final File moduleJar = module.getTargetJar();
-            
-            // add the module jar if it exists.
-            // some modules, e.g., outreach, do not have jars.
-            if(moduleJar.exists()) {
-            	jarPaths.add(moduleJar.toURI());                
+        return retval;
+    }
+
+    /** Get a list of jars required for director to start. 
+     *  It also set _classLoader value based on the jars.
+     *  The list of jars and the class loader are cached for all the
+     *  engines in the JVM. The list is resolved again if the jars
+     *  requested by the director or the actors change, or if one of the
+     *  jars no longer exists. A new class loader is created if the
+     *  modification time of any of the jars changes.
+     */
+    protected List<URI> _getJarList() throws IllegalActionException{
+
+        // the jars depend on the module tree, which does not change
+        // while Kepler is running, and on the jars requested here.
+        final StringBuilder requested = new StringBuilder();
+        requested.append(new TreeSet<String>(_additionalJars)).append('|');
+        requested.append(_director.includeJars.stringValue());
+        for(DDPPatternActor actor : _container.entityList(DDPPatternActor.class)) {
+            requested.append('|').append(actor.getJars());
+        }
+        final String requestedKey = requested.toString();
+
+        List<URI> jarPaths = _jarListCache.get(requestedKey);
+        String classLoaderKey = null;
+        if(jarPaths != null) {
+            // if the server is kept running, it uses the jars checked by
+            // the previous execution, so do not check them again.
+            if(_isKeepServerWarm()) {
+                classLoaderKey = _classLoaderKeyCache.get(requestedKey);
+            }
+            if(classLoaderKey == null) {
+                classLoaderKey = _getClassLoaderKey(jarPaths);
             }
+            if(classLoaderKey == null) {
+                // a jar was removed, so resolve the list again to report it.
+                _jarListCache.remove(requestedKey);
+                jarPaths = null;
+            }
+        }
+        if(jarPaths == null) {
+            jarPaths = Collections.unmodifiableList(_resolveJarList());
+            _jarListCache.put(requestedKey, jarPaths);
+            classLoaderKey = _getClassLoaderKey(jarPaths);
+        }
+        if(classLoaderKey != null) {
+            _classLoaderKeyCache.put(requestedKey, classLoaderKey);
+        }
 
-            final List<File> moduleJars = module.getJars();
-            for(File jar : moduleJars) {
-                // include kepler-tasks.jar since we need classes
-                // in org.kepler.build to initialize kepler in the
-                // stub. see StubUtilities.initializeKepler()
-                if(jar.getName().equals("kepler-tasks.jar")) {
-                    //System.out.println("adding jar " + jar);
-                	jarPaths.add(jar.toURI());                
-                } else if(jar.getName().matches("^log4j.*jar$") || //add log4j jar since it is used for display-redirect function in DDP.
-                        jar.getName().equals("ant.jar")) {
-                        jarPaths.add(jar.toURI());
-                } else if(!jarsWithRelativePaths.isEmpty()) {
-                    for(File jarFile : jarsWithRelativePaths) {
-                        if(jar.getName().equals(jarFile.getName())) {
-                            System.out.println("Adding jar in module " + module.getName() +
-                                    ": " + jar);
-                            jarPaths.add(jar.toURI());
+        if(!jarPaths.isEmpty()) {
+
+            // do not nest the class loader inside one created for a
+            // previous execution in this thread.
+            ClassLoader parent = Thread.currentThread().getContextClassLoader();
+            synchronized(_classLoaderCache) {
+                while(parent != null && (_classLoaderCache.containsValue(parent) ||
+                        _classLoaderUsers.containsKey(parent))) {
+                    parent = parent.getParent();
+                }
+                final ClassLoaderKey key = new ClassLoaderKey(parent, classLoaderKey);
+                URLClassLoader classLoader = _classLoaderCache.get(key);
+                if(classLoader == null) {
+                    try {
+                        final List<URL> jarURLs = new LinkedList<URL>();
+                        for (URI jarURI : jarPaths) {
+                            jarURLs.add(jarURI.toURL());
                         }
+                        classLoader = new URLClassLoader(jarURLs.toArray(new URL[jarURLs.size()]), parent);
+                    } catch (MalformedURLException e) {
+                        e.printStackTrace();
+                        throw new IllegalActionException(_director, e.getMessage());
                     }
+                    _classLoaderCache.put(key, classLoader);
+                } else {
+                    _log.debug("Using cached class loader for " + jarPaths.size() + " jars.");
                 }
-            }                        
-        }
-        
-        // add any jars specified by the actors.
-        final List<DDPPatternActor> actors = _container.entityList(DDPPatternActor.class);
-        for(DDPPatternActor actor : actors) {
-            final String jarsStr = actor.getJars();
-            if(!jarsStr.isEmpty()) {
-                final String[] jars = jarsStr.split(",");
-                for(String jar : jars) {
-                    final File jarFile = new File(jar);
-                    if(!jarFile.exists() || !jarFile.canRead()) {
-                        throw new IllegalActionException(actor,
-                                "Jar does not exist or cannot be read: " + jarFile.getAbsolutePath());
-                    }
-                    System.out.println("Adding jar for " + actor.getFullName() + ": " +
-                            jarFile.getAbsolutePath());
-                    jarPaths.add(jarFile.toURI());
+                if(classLoader != _cachedClassLoader) {
+                    _releaseCachedClassLoader();
+                    final Integer users = _classLoaderUsers.get(classLoader);
+                    _classLoaderUsers.put(classLoader, users == null ? 1 : users + 1);
+                    _cachedClassLoader = classLoader;
                 }
+                _classLoader = classLoader;
             }
+            Thread.currentThread().setContextClassLoader(_classLoader);
         }
-        
-		URL[] jarArray;
-		try{
-	        List<URL> jarURLs = new LinkedList<URL>();
-	        for (URI jarURI : jarPaths) {
-	        	jarURLs.add(jarURI.toURL());
-	        }
-        
-	        jarArray = jarURLs.toArray(new URL[jarURLs.size()]);	
-
-			if (jarArray != null && jarArray.length > 0) {
-				_classLoader = new URLClassLoader(jarArray, Thread.currentThread()
-						.getContextClassLoader());
-				Thread.currentThread().setContextClassLoader(_classLoader);
-			}			
-			
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-			throw new IllegalActionException(_director, e.getMessage());
-		}
-		
-        return jarPaths;
+
+        return new LinkedList<URI>(jarPaths);
     }
     
     /** Execute the DDP job. */
     protected abstract void _executeDDPJob() throws IllegalActionException;
 
+    /** Get the key of a server in WarmServers. */
+    protected String _getServerKey(InetSocketAddress socketAddress) {
+        return _engineName + ":" + socketAddress;
+    }
+
+    /** Returns true if the server is ready to execute jobs. This is called
+     *  by _checkServer() until it returns true or serverStartTimeout expires.
+     *  In this class, returns true if a TCP connection can be made to the
+     *  server. Subclasses may override this method to also perform an
+     *  engine-specific handshake, e.g., checking that the server has
+     *  registered its workers.
+     *  @param socketAddress Host and port of the server.
+     */
+    protected boolean _isServerReady(InetSocketAddress socketAddress)
+            throws IllegalActionException {
+        return _canConnect(socketAddress);
+    }
+
     /** Parse the output from the script that starts the server. In this
      *  class, does nothing and returns null.
      *  @return If the start script specifies a server URL, returns the
@@ -799,6 +818,43 @@ public abstract class DDPEngine implements Cloneable {
         return null;
     }
     
+    /** Release a server held by this execution when the workflow no
+     *  longer uses it. This is called by wrapup() for each server used by
+     *  the execution, and may be called earlier by subclasses that are
+     *  done with a server. The server is not stopped while another
+     *  execution holds it. When no execution holds it, the server is
+     *  stopped with _stopServer() immediately, or, if the keepServerWarm
+     *  parameter of this or an earlier execution was true, after it has
+     *  been idle for serverIdleTimeout seconds.
+     *  @param socketAddress Host and port of the server.
+     */
+    protected void _releaseServer(final InetSocketAddress socketAddress)
+            throws IllegalActionException {
+
+        final boolean keepWarm = _isKeepServerWarm();
+        final int idleTimeout = ((IntToken)_director.serverIdleTimeout.getToken()).intValue();
+        synchronized(_serverStartStopLock) {
+            if(!_serversInUse.remove(socketAddress)) {
+                return;
+            }
+            if(WarmServers.release(_getServerKey(socketAddress), keepWarm, idleTimeout * 1000L)) {
+                _stopServer(socketAddress);
+                return;
+            }
+        }
+
+        if(!keepWarm) {
+            return;
+        }
+        if(idleTimeout > 0) {
+            _log.info("Keeping " + _engineName + " server " + socketAddress +
+                    " running for " + idleTimeout + " seconds after it is last used.");
+        } else {
+            _log.info("Keeping " + _engineName + " server " + socketAddress +
+                    " running until Kepler exits.");
+        }
+    }
+
     /** Remove engine-specific parameters from the director.
      *  Does nothing in this base class.
      */
@@ -806,6 +862,22 @@ public abstract class DDPEngine implements Cloneable {
                 
     }
 
+    /** Stop a server started by _checkServer(). This is called by
+     *  _releaseServer() when no execution holds the server, and by
+     *  WarmServers when a server kept running is idle or Kepler exits.
+     *  The caller holds _serverStartStopLock.
+     *
+     *  <p>Does nothing in this base class, which is correct for engines
+     *  that do not start servers, such as the Local engine. An engine that
+     *  calls _checkServer() must override this method to stop its server,
+     *  e.g., by running the stop script of the server; otherwise the
+     *  servers it starts keep running after Kepler exits.</p>
+     *  @param socketAddress Host and port of the server.
+     */
+    protected void _stopServer(InetSocketAddress socketAddress) throws IllegalActionException {
+        
+    }
+
     /** Set the port types inside a cloned pattern actor.
      *  @param actor the cloned actor
      */
@@ -862,6 +934,17 @@ public abstract class DDPEngine implements Cloneable {
     /** Timeout when seeing if server is running. */
     protected final static int _CONNECT_TIMEOUT = 5*1000;
 
+    /** The time in milliseconds to wait after the first probe of a server
+     *  that is not ready. The time doubles after each probe, up to
+     *  _PROBE_MAX_DELAY.
+     */
+    protected final static int _PROBE_INITIAL_DELAY = 100;
+
+    /** The maximum time in milliseconds to wait between probes of a server
+     *  that is not ready.
+     */
+    protected final static int _PROBE_MAX_DELAY = 5*1000;
+
     /** Directory for display redirect. */
     protected String _displayRedirectDir;
 
@@ -905,6 +988,203 @@ public abstract class DDPEngine implements Cloneable {
     ///////////////////////////////////////////////////////////////////
     ////                      private methods                    //////
 
+    /** Returns true if a TCP connection can be made to a server. */
+    private static boolean _canConnect(InetSocketAddress socketAddress) {
+        try(Socket socket = new Socket()) {
+            socket.connect(socketAddress, _CONNECT_TIMEOUT);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Create a ServerStopper that calls _stopServer() for a server. */
+    private WarmServers.ServerStopper _createServerStopper(final InetSocketAddress socketAddress) {
+        return new WarmServers.ServerStopper() {
+            @Override
+            public void stop() throws IllegalActionException {
+                synchronized(_serverStartStopLock) {
+                    _stopServer(socketAddress);
+                }
+            }
+        };
+    }
+
+    /** Close a class loader and log any error. */
+    private static void _closeClassLoader(URLClassLoader classLoader) {
+        try {
+            classLoader.close();
+        } catch(IOException e) {
+            _log.error("Error closing class loader.", e);
+        }
+    }
+
+    /** Returns true if the director's keepServerWarm parameter is true. */
+    private boolean _isKeepServerWarm() throws IllegalActionException {
+        return ((BooleanToken)_director.keepServerWarm.getToken()).booleanValue();
+    }
+
+    /** Release all the servers used by this execution. If releasing one
+     *  of them fails, the others are still released and the first
+     *  exception is thrown.
+     */
+    private void _releaseServers() throws IllegalActionException {
+        final List<InetSocketAddress> servers;
+        synchronized(_serverStartStopLock) {
+            servers = new ArrayList<InetSocketAddress>(_serversInUse);
+        }
+        IllegalActionException exception = null;
+        for(InetSocketAddress socketAddress : servers) {
+            try {
+                _releaseServer(socketAddress);
+            } catch(IllegalActionException e) {
+                if(exception == null) {
+                    exception = e;
+                } else {
+                    _log.error("Error releasing " + _engineName + " server " + socketAddress + ".", e);
+                }
+            }
+        }
+        if(exception != null) {
+            throw exception;
+        }
+    }
+
+    /** Get the key of the class loader for a list of jars: the sorted
+     *  jars and their modification times. Returns null if a jar does not
+     *  exist.
+     */
+    private static String _getClassLoaderKey(List<URI> jarPaths) {
+        final StringBuilder retval = new StringBuilder();
+        for(URI jarPath : new TreeSet<URI>(jarPaths)) {
+            final File file = new File(jarPath);
+            final long modified = file.lastModified();
+            if(modified == 0L && !file.exists()) {
+                return null;
+            }
+            retval.append(jarPath).append('@').append(modified).append('|');
+        }
+        return retval.toString();
+    }
+
+    /** Resolve the jars required for the director to start: the additional
+     *  jars, the jars in the includeJars parameter, the jars of the modules,
+     *  and the jars specified by the actors.
+     */
+    private List<URI> _resolveJarList() throws IllegalActionException {
+        final List<URI> jarPaths = new LinkedList<URI>();
+        final List<File> jarsWithRelativePaths = new LinkedList<File>();
+        
+        for(String additionalJar : _additionalJars) {
+            jarsWithRelativePaths.add(new File(additionalJar));
+        }
+        
+        // get the jars in the director's includeJars parameter
+        String includeJarsStr = _director.includeJars.stringValue();
+        if(includeJarsStr != null && !includeJarsStr.isEmpty()) {
+            for(String jarPath : includeJarsStr.split(",")) {
+                File jarFile = new File(jarPath);
+                // see if jar is an absolute path
+                if(jarFile.isAbsolute()) {
+                    if(!jarFile.exists() || !jarFile.canRead()) {
+                        throw new IllegalActionException(_director,
+                                "Jar does not exist or cannot be read: " + jarFile);
+                    }
+                    // jars with absolute paths are added directly
+                    System.out.println("Adding jar: " + jarFile.getAbsolutePath());
+                    jarPaths.add(jarFile.toURI());
+                } else {
+                    jarsWithRelativePaths.add(jarFile);
+                }
+            }
+        }
+                    
+        // add the module jars, e.g., actors.jar, ptolemy.jar, etc.
+        // also add any jars in includeJars with a relative path - these jars
+        // are assumed to be module/lib/jar.
+        final ModuleTree moduleTree = ModuleTree.instance();
+        for(Module module : moduleTree) {
+            
+            final File moduleJar = module.getTargetJar();
+            
+            // add the module jar if it exists.
+            // some modules, e.g., outreach, do not have jars.
+            if(moduleJar.exists()) {
+            	jarPaths.add(moduleJar.toURI());                
+            }
+
+            final List<File> moduleJars = module.getJars();
+            for(File jar : moduleJars) {
+                // include kepler-tasks.jar since we need classes
+                // in org.kepler.build to initialize kepler in the
+                // stub. see StubUtilities.initializeKepler()
+                if(jar.getName().equals("kepler-tasks.jar")) {
+                    //System.out.println("adding jar " + jar);
+                	jarPaths.add(jar.toURI());                
+                } else if(jar.getName().matches("^log4j.*jar$") || //add log4j jar since it is used for display-redirect function in DDP.
+                        jar.getName().equals("ant.jar")) {
+                        jarPaths.add(jar.toURI());
+                } else if(!jarsWithRelativePaths.isEmpty()) {
+                    for(File jarFile : jarsWithRelativePaths) {
+                        if(jar.getName().equals(jarFile.getName())) {
+                            System.out.println("Adding jar in module " + module.getName() +
+                                    ": " + jar);
+                            jarPaths.add(jar.toURI());
+                        }
+                    }
+                }
+            }                        
+        }
+        
+        // add any jars specified by the actors.
+        final List<DDPPatternActor> actors = _container.entityList(DDPPatternActor.class);
+        for(DDPPatternActor actor : actors) {
+            final String jarsStr = actor.getJars();
+            if(!jarsStr.isEmpty()) {
+                final String[] jars = jarsStr.split(",");
+                for(String jar : jars) {
+                    final File jarFile = new File(jar);
+                    if(!jarFile.exists() || !jarFile.canRead()) {
+                        throw new IllegalActionException(actor,
+                                "Jar does not exist or cannot be read: " + jarFile.getAbsolutePath());
+                    }
+                    System.out.println("Adding jar for " + actor.getFullName() + ": " +
+                            jarFile.getAbsolutePath());
+                    jarPaths.add(jarFile.toURI());
+                }
+            }
+        }
+
+        return jarPaths;
+    }
+
+    /** Stop using the class loader created or taken from the cache by
+     *  _getJarList(). If it is the context class loader of the current
+     *  thread, the context class loader is set to its parent. If it was
+     *  removed from the cache and no other engine uses it, it is closed.
+     */
+    private void _releaseCachedClassLoader() {
+        synchronized(_classLoaderCache) {
+            if(_cachedClassLoader == null) {
+                return;
+            }
+            final Thread thread = Thread.currentThread();
+            if(thread.getContextClassLoader() == _cachedClassLoader) {
+                thread.setContextClassLoader(_cachedClassLoader.getParent());
+            }
+            final Integer users = _classLoaderUsers.get(_cachedClassLoader);
+            if(users != null && users > 1) {
+                _classLoaderUsers.put(_cachedClassLoader, users - 1);
+            } else {
+                _classLoaderUsers.remove(_cachedClassLoader);
+                if(!_classLoaderCache.containsValue(_cachedClassLoader)) {
+                    _closeClassLoader(_cachedClassLoader);
+                }
+            }
+            _cachedClassLoader = null;
+        }
+    }
+
     /** Set an effigy and any contained effigies to be not modified. */
     private static void _setEffigiesToNotModified(Effigy effigy) {
         //System.out.println("setting not modified for : " + effigy.getFullName());
@@ -914,12 +1194,250 @@ public abstract class DDPEngine implements Cloneable {
         }
     }
 
+    /** Wait until _isServerReady() returns true. The server is probed
+     *  with exponential backoff, and the time spent waiting is logged.
+     *  @param socketAddress Host and port of the server.
+     *  @exception IllegalActionException If the server is not ready
+     *  before the serverStartTimeout of the director expires.
+     */
+    private void _waitForServer(InetSocketAddress socketAddress) throws IllegalActionException {
+
+        final long timeout = ((IntToken)_director.serverStartTimeout.getToken()).intValue() * 1000L;
+        final long startTime = System.currentTimeMillis();
+        long delay = _PROBE_INITIAL_DELAY;
+        int probes = 1;
+        while(!_isServerReady(socketAddress)) {
+            final long elapsed = System.currentTimeMillis() - startTime;
+            if(elapsed >= timeout) {
+                throw new IllegalActionException(_director, "Could not connect to " +
+                        _engineName + " server " + socketAddress + " after " + probes +
+                        " attempts in " + elapsed + " ms.");
+            }
+            try {
+                Thread.sleep(Math.min(delay, timeout - elapsed));
+            } catch (InterruptedException e) {
+                throw new IllegalActionException(_director, e, "Interrupted while waiting " +
+                        "for " + _engineName + " server to start.");
+            }
+            delay = Math.min(delay * 2, _PROBE_MAX_DELAY);
+            probes++;
+        }
+
+        final long elapsed = System.currentTimeMillis() - startTime;
+        if(probes > 1) {
+            _log.info(_engineName + " server " + socketAddress + " is ready after " +
+                    elapsed + " ms (" + probes + " attempts).");
+        } else {
+            _log.debug(_engineName + " server " + socketAddress + " is ready.");
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      inner classes                      //////
+
+    /** The key of a class loader in _classLoaderCache: the parent class
+     *  loader, compared by identity, and the sorted jars and their
+     *  modification times.
+     */
+    private static class ClassLoaderKey {
+
+        /** Create a new ClassLoaderKey. */
+        public ClassLoaderKey(ClassLoader parent, String jars) {
+            _parent = parent;
+            _jars = jars;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if(!(object instanceof ClassLoaderKey)) {
+                return false;
+            }
+            final ClassLoaderKey key = (ClassLoaderKey) object;
+            return _parent == key._parent && _jars.equals(key._jars);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(_parent) + _jars.hashCode();
+        }
+
+        /** The parent class loader. Referencing it does not keep it
+         *  loaded longer, since the class loader in the cache references
+         *  it as well.
+         */
+        private final ClassLoader _parent;
+
+        /** The sorted jars and their modification times. */
+        private final String _jars;
+    }
+
+    /** The workflow parameters copied into the sub-workflows. The parameters
+     *  in the hierarchy are found and converted to Parameters once, and
+     *  each sub-workflow gets a clone of the converted Parameters.
+     */
+    protected static class ParameterSnapshot {
+
+        /** Create a new snapshot of the parameters for a NamedObj and
+         *  all its containers.
+         */
+        public ParameterSnapshot(NamedObj namedObj) throws IllegalActionException {
+            
+            _workspace = namedObj.workspace();
+            // get the version after expanding any scope extenders
+            // since expanding them may change the model.
+            final Map<String,Variable> parameters = _getParametersInHierarchy(namedObj);
+            _version = _workspace.getVersion();
+            
+            final Workspace prototypeWorkspace = new Workspace();
+            final List<Variable> prototypes = new ArrayList<Variable>(parameters.size());
+            _sources = new Variable[parameters.size()];
+            _expressions = new String[parameters.size()];
+            int i = 0;
+            for(Variable p : parameters.values()) {
+                _sources[i] = p;
+                _expressions[i] = p.getExpression();
+                i++;
+                
+                try {
+                    final Variable prototype;
+                    // if the parameter is a PortParameter, create a new parameter
+                    // instead of clone it, since we do not want the associated port
+                    if(p instanceof PortParameter) {
+                        prototype = new Parameter(prototypeWorkspace);
+                        prototype.setName(p.getName());
+                        String value = p.getExpression();
+                        if(p.isStringMode()) {
+                            prototype.setExpression("\"" + value + "\"");
+                        } else {
+                            prototype.setExpression(value);
+                        }
+                    // NOTE: Variable values are not written during exportMoML(),
+                    // so we need to put the value in a new Parameter.
+                    } else if(p instanceof Parameter) {
+                        prototype = (Variable) p.clone(prototypeWorkspace);
+                    } else {
+                        prototype = new Parameter(prototypeWorkspace);
+                        prototype.setName(p.getName());
+                        prototype.setExpression(p.getExpression());
+                    }
+                    // we also need to set persistence so the parameter appears when serialized
+                    prototype.setPersistent(true);
+                    prototypes.add(prototype);
+                } catch(Exception e) {
+                    throw new IllegalActionException(p, e, "Unable to copy parameter.");
+                }
+            }
+            this.prototypes = Collections.unmodifiableList(prototypes);
+        }
+        
+        /** Returns true if the model has not changed and none of the
+         *  parameter expressions have changed since the snapshot was created.
+         */
+        public boolean isCurrent() {
+            if(_workspace.getVersion() != _version) {
+                return false;
+            }
+            for(int i = 0; i < _sources.length; i++) {
+                final String expression = _sources[i].getExpression();
+                if(expression == null ? _expressions[i] != null : !expression.equals(_expressions[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /** The Parameters to clone into each sub-workflow. The prototypes
+         *  are in a separate workspace and must not be modified.
+         */
+        public final List<Variable> prototypes;
+        
+        /** The expressions of the parameters when the snapshot was created. */
+        private final String[] _expressions;
+        
+        /** The parameters in the hierarchy. */
+        private final Variable[] _sources;
+
+        /** The version of the workspace when the snapshot was created. */
+        private final long _version;
+        
+        /** The workspace of the model. */
+        private final Workspace _workspace;
+    }
+    
     ///////////////////////////////////////////////////////////////////
     ////                      private fields                     //////
 
+    /** The maximum number of class loaders in _classLoaderCache. */
+    private static final int _CLASS_LOADER_CACHE_SIZE = 8;
+
+    /** The class loaders created by _getJarList(), by the parent class
+     *  loader and the sorted jars and their modification times. The
+     *  least-recently used class loader is removed when there are more than
+     *  _CLASS_LOADER_CACHE_SIZE, and closed unless an engine is using it,
+     *  in which case it is closed by the last engine using it. Access is
+     *  synchronized on the map.
+     */
+    private static final Map<ClassLoaderKey,URLClassLoader> _classLoaderCache =
+            new LinkedHashMap<ClassLoaderKey,URLClassLoader>(_CLASS_LOADER_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ClassLoaderKey,URLClassLoader> eldest) {
+            if(size() <= _CLASS_LOADER_CACHE_SIZE) {
+                return false;
+            }
+            if(!_classLoaderUsers.containsKey(eldest.getValue())) {
+                _closeClassLoader(eldest.getValue());
+            }
+            return true;
+        }
+    };
+
+    /** The number of engines using each class loader created by
+     *  _getJarList(), between _getJarList() and wrapup(). Access is
+     *  synchronized on _classLoaderCache.
+     */
+    private static final Map<URLClassLoader,Integer> _classLoaderUsers =
+            new IdentityHashMap<URLClassLoader,Integer>();
+
+    /** The class loader from _classLoaderCache used by this engine, or
+     *  null if not using one. Access is synchronized on _classLoaderCache.
+     */
+    private URLClassLoader _cachedClassLoader;
+
+    /** The jars resolved by _getJarList(), by the jars requested by the
+     *  director and the actors.
+     */
+    private static final Map<String,List<URI>> _jarListCache =
+            new ConcurrentHashMap<String,List<URI>>();
+
+    /** The class loader keys of the jars in _jarListCache when they were
+     *  last checked, by the jars requested by the director and the actors.
+     *  Used instead of checking the jars again when keepServerWarm is true.
+     */
+    private static final Map<String,String> _classLoaderKeyCache =
+            new ConcurrentHashMap<String,String>();
+
+    /** The configuration directories checked by _checkConfigDir() when
+     *  keepServerWarm is true, by the engine name and the value of the
+     *  configDir parameter.
+     */
+    private static final Map<String,String> _checkedConfigDirs =
+            new ConcurrentHashMap<String,String>();
+
+    /** The parameter snapshots for each container of the pattern actors. */
+    private Map<NamedObj,ParameterSnapshot> _parameterSnapshots =
+            new HashMap<NamedObj,ParameterSnapshot>();
+
 	/** Random number generator for job directories. */
 	private Random _random = new Random();
 
+    /** The store for the tokens of DDPDataSource and DDPDataSink actors. */
+    private TokenStore _tokenStore;
+
+    /** The servers started or acquired by _checkServer() that have not
+     *  been released. Access is synchronized on _serverStartStopLock.
+     */
+    private Set<InetSocketAddress> _serversInUse = new HashSet<InetSocketAddress>();
+
 	/** Logging. */
     private final static Log _log = LogFactory.getLog(DDPEngine.class);
     
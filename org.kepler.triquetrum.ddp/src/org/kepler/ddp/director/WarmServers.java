@@ -0,0 +1,277 @@
+/* A registry of DDP engine servers kept running between workflow executions.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ptolemy.kernel.util.IllegalActionException;
+
+/** A registry of the DDP engine servers started by Kepler, so that they
+ *  can be kept running after the workflow that started them finishes and
+ *  later executions in the same Kepler session do not pay the cost of
+ *  starting a server. Each execution using a server holds it from add() or
+ *  acquire() until release(). A server is only stopped when it has no
+ *  holders: immediately if no execution asked to keep it running, and
+ *  otherwise if it is not acquired again within its idle timeout. All the
+ *  servers are stopped by stopAll() when the ddp-common module shuts down.
+ *
+ *  <p>Servers are identified by a key, e.g., the engine name and the
+ *  address of the server.</p>
+ *
+ *  @version $Id$
+ */
+public class WarmServers {
+
+    /** This class cannot be instantiated. */
+    private WarmServers() {
+    }
+
+    /** Stops a server. */
+    public interface ServerStopper {
+
+        /** Stop the server. */
+        public void stop() throws IllegalActionException;
+    }
+
+    /** Hold a server so that it is not stopped while in use.
+     *  @param key the key of the server.
+     *  @return true if the server was started by Kepler and is still
+     *  registered, false if the server is not held.
+     */
+    public static synchronized boolean acquire(String key) {
+        final Entry entry = _servers.get(key);
+        if(entry == null) {
+            return false;
+        }
+        if(entry.idleStop != null) {
+            entry.idleStop.cancel(false);
+            entry.idleStop = null;
+        }
+        entry.holders++;
+        entry.generation++;
+        return true;
+    }
+
+    /** Register a server started by an execution. The execution holds the
+     *  server until it calls release().
+     *  @param key the key of the server.
+     *  @param lock the lock held while starting or acquiring the server.
+     *  It is also held while an idle server is stopped, so that a server
+     *  is not stopped while another execution is connecting to it.
+     *  @param stopper stops the server.
+     */
+    public static synchronized void add(String key, Object lock, ServerStopper stopper) {
+        final Entry entry = new Entry();
+        entry.holders = 1;
+        entry.lock = lock;
+        entry.stopper = stopper;
+        final Entry previous = _servers.put(key, entry);
+        if(previous != null && previous.idleStop != null) {
+            previous.idleStop.cancel(false);
+        }
+    }
+
+    /** Returns true if a server is registered. */
+    public static synchronized boolean contains(String key) {
+        return _servers.containsKey(key);
+    }
+
+    /** Get the number of executions holding a server.
+     *  @return the number of holders, or 0 if the server is not registered.
+     */
+    public static synchronized int getHolders(String key) {
+        final Entry entry = _servers.get(key);
+        return entry == null ? 0 : entry.holders;
+    }
+
+    /** Get the keys of the registered servers. */
+    public static synchronized List<String> getKeys() {
+        return new ArrayList<String>(_servers.keySet());
+    }
+
+    /** Release a server held by an execution. If other executions still
+     *  hold the server, only the number of holders changes. Otherwise, if
+     *  this or an earlier execution asked to keep the server running, it
+     *  is stopped if not acquired again within the idle timeout, and if
+     *  not, the server is removed and the caller must stop it.
+     *  @param key the key of the server.
+     *  @param keepWarm if true, the server is kept running after it has no
+     *  holders.
+     *  @param idleTimeout the number of milliseconds after which a server
+     *  kept running is stopped if it has not been acquired again. If not
+     *  positive, the server is kept running until stopAll() is called.
+     *  @return true if the server was removed and must be stopped by the
+     *  caller.
+     */
+    public static synchronized boolean release(final String key, boolean keepWarm,
+            long idleTimeout) {
+
+        final Entry entry = _servers.get(key);
+        if(entry == null) {
+            return false;
+        }
+        if(entry.holders > 0) {
+            entry.holders--;
+        }
+        if(keepWarm) {
+            entry.keepWarm = true;
+            entry.idleTimeout = idleTimeout;
+        }
+        if(entry.holders > 0) {
+            return false;
+        }
+        if(!entry.keepWarm) {
+            _servers.remove(key);
+            return true;
+        }
+
+        final long generation = ++entry.generation;
+        if(entry.idleTimeout > 0) {
+            if(_timer == null) {
+                _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "DDP warm server timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            entry.idleStop = _timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(entry.lock) {
+                        synchronized(WarmServers.class) {
+                            // the server may have been acquired or released again.
+                            if(_servers.get(key) != entry || entry.generation != generation) {
+                                return;
+                            }
+                            _servers.remove(key);
+                        }
+                        _log.info("Stopping idle DDP server " + key + ".");
+                        _stop(key, entry);
+                    }
+                }
+            }, entry.idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /** Remove a server that is no longer running, e.g., because it was
+     *  stopped outside Kepler. The server is not stopped.
+     */
+    public static synchronized void remove(String key) {
+        final Entry entry = _servers.remove(key);
+        if(entry != null && entry.idleStop != null) {
+            entry.idleStop.cancel(false);
+        }
+    }
+
+    /** Stop all the registered servers, including the servers in use. */
+    public static void stopAll() {
+        final Map<String,Entry> servers;
+        synchronized(WarmServers.class) {
+            servers = new HashMap<String,Entry>(_servers);
+            _servers.clear();
+            if(_timer != null) {
+                _timer.shutdownNow();
+                _timer = null;
+            }
+        }
+        for(Map.Entry<String,Entry> server : servers.entrySet()) {
+            _stop(server.getKey(), server.getValue());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Stop a server and log any error. */
+    private static void _stop(String key, Entry entry) {
+        try {
+            entry.stopper.stop();
+        } catch(Throwable t) {
+            _log.error("Error stopping DDP server " + key + ".", t);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         inner classes                     ////
+
+    /** A server started by Kepler. */
+    private static class Entry {
+
+        /** Incremented each time the server is acquired or released. */
+        long generation;
+
+        /** The number of executions holding the server. */
+        int holders;
+
+        /** The idle timeout in milliseconds of a server kept running. */
+        long idleTimeout;
+
+        /** If true, the server is kept running when it has no holders. */
+        boolean keepWarm;
+
+        /** The lock held while the server is started, acquired, or stopped. */
+        Object lock;
+
+        /** The timer task stopping the server when idle, or null if the
+         *  server is in use or has no idle timeout.
+         */
+        ScheduledFuture<?> idleStop;
+
+        /** Stops the server. */
+        ServerStopper stopper;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** Logging. */
+    private static final Log _log = LogFactory.getLog(WarmServers.class);
+
+    /** The servers started by Kepler, by key. */
+    private static final Map<String,Entry> _servers = new HashMap<String,Entry>();
+
+    /** Executes the idle timeouts. Created when first needed. */
+    private static ScheduledExecutorService _timer;
+}
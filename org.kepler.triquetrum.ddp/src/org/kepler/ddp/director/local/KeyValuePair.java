@@ -0,0 +1,91 @@
+/* A key-value pair transferred between stages of the Local engine.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import ptolemy.data.RecordToken;
+import ptolemy.data.Token;
+import ptolemy.kernel.util.IllegalActionException;
+
+/** A key-value pair transferred between stages of the Local engine.
+ *
+ *  @version $Id$
+ */
+public final class KeyValuePair {
+
+    /** Create a new KeyValuePair. A null key or value is replaced
+     *  with Token.NIL.
+     */
+    public KeyValuePair(Token key, Token value) {
+        _key = (key == null ? Token.NIL : key);
+        _value = (value == null ? Token.NIL : value);
+    }
+
+    /** Create a KeyValuePair from a record token with key and value fields. */
+    public static KeyValuePair fromRecordToken(RecordToken record) throws IllegalActionException {
+        final Token key = record.get("key");
+        final Token value = record.get("value");
+        if(key == null || value == null) {
+            throw new IllegalActionException("Record does not contain key and value fields: " + record);
+        }
+        return new KeyValuePair(key, value);
+    }
+
+    /** Get the key. */
+    public Token getKey() {
+        return _key;
+    }
+
+    /** Get the value. */
+    public Token getValue() {
+        return _value;
+    }
+
+    /** Convert to a record token with key and value fields. */
+    public RecordToken toRecordToken() throws IllegalActionException {
+        return new RecordToken(RECORD_LABELS, new Token[] {_key, _value});
+    }
+
+    @Override
+    public String toString() {
+        return "{key=" + _key + ", value=" + _value + "}";
+    }
+
+    /** Labels for key-value record token. */
+    public static final String[] RECORD_LABELS = new String[] {"key", "value"};
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** The key. */
+    private final Token _key;
+
+    /** The value. */
+    private final Token _value;
+}
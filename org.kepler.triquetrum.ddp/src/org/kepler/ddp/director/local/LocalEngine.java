@@ -0,0 +1,2131 @@
+/* A DDP engine that executes the pattern actors in the same JVM.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kepler.ddp.actor.pattern.AtomicPathActor;
+import org.kepler.ddp.actor.pattern.CoGroup;
+import org.kepler.ddp.actor.pattern.Cross;
+import org.kepler.ddp.actor.pattern.DDPDataSink;
+import org.kepler.ddp.actor.pattern.DDPDataSource;
+import org.kepler.ddp.actor.pattern.DDPPatternActor;
+import org.kepler.ddp.actor.pattern.DualInputPatternActor;
+import org.kepler.ddp.actor.pattern.Match;
+import org.kepler.ddp.actor.pattern.Reduce;
+import org.kepler.ddp.actor.pattern.SingleInputPatternActor;
+import org.kepler.ddp.actor.pattern.stub.CoGroupInput;
+import org.kepler.ddp.actor.pattern.stub.CrossInput;
+import org.kepler.ddp.actor.pattern.stub.MapInput;
+import org.kepler.ddp.actor.pattern.stub.MatchInput;
+import org.kepler.ddp.actor.pattern.stub.ReduceInput;
+import org.kepler.ddp.actor.pattern.stub.StubSourceActor;
+import org.kepler.ddp.director.DDPDirector;
+import org.kepler.ddp.director.DDPEngine;
+
+import ptolemy.actor.IOPort;
+import ptolemy.actor.TypedIOPort;
+import ptolemy.data.ArrayToken;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.LongToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.StringParameter;
+import ptolemy.data.type.ArrayType;
+import ptolemy.data.type.BaseType;
+import ptolemy.data.type.RecordType;
+import ptolemy.data.type.Type;
+import ptolemy.kernel.ComponentPort;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.Entity;
+import ptolemy.kernel.Port;
+import ptolemy.kernel.Relation;
+import ptolemy.kernel.util.Attribute;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.Locatable;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.NamedObj;
+import ptolemy.kernel.util.Settable;
+import ptolemy.kernel.util.Workspace;
+
+/** A DDP engine that executes the pattern actors in the same JVM
+ *  without an external server such as Hadoop or Spark. Each pattern
+ *  actor is executed as a stage whose input is split into partitions,
+ *  and each partition is processed by a task running a copy of the
+ *  sub-workflow. The tasks are executed by a fork-join pool whose size
+ *  is the director's degreeOfParallelism, or the number of processors
+ *  if the default degree of parallelism is used. When a task finishes,
+ *  its copy of the sub-workflow is kept in a SubWorkflowPool and reused
+ *  by later tasks of the same actor until the job completes.
+ *
+ *  <p>A chain of Map actors, where each Map only writes to the next,
+ *  is fused into a single stage: each task executes the sub-workflows
+ *  of the chain one after the other, writing each batch of output
+ *  directly to the next sub-workflow. A chain of Map actors is also
+ *  fused with a following Reduce used as a combiner. The execution
+ *  plan is logged when the job starts.</p>
+ *
+ *  <p>The input of a Reduce, Match, or CoGroup actor is hash-partitioned
+ *  by a Shuffle, which spills to files in the job directory when its
+ *  memory budget is exceeded. An actor whose output is only read by such
+ *  an actor adds its output to the shuffle as its tasks write it, and
+ *  Match and CoGroup merge their two sorted partitions by key, so the
+ *  intermediate data of these stages is not held in memory.</p>
+ *
+ *  <p>The pattern actors must use sub-workflows; execution classes and
+ *  code are not supported. DDPDataSource actors may use TokenInputFormat
+ *  or LineInputFormat, and DDPDataSink actors may use TokenOutputFormat,
+ *  LineOutputFormat, or NullOutputFormat.</p>
+ *
+ *  @version $Id$
+ */
+public class LocalEngine extends DDPEngine {
+
+    /** Create a new LocalEngine.
+     *  @param director The director containing this engine.
+     */
+    public LocalEngine(DDPDirector director)
+            throws IllegalActionException, NameDuplicationException {
+        super(director);
+        _engineName = ENGINE_NAME;
+    }
+
+    /** Clone the object into the specified workspace.
+     *  @param workspace The workspace for the cloned object.
+     *  @exception CloneNotSupportedException Not thrown in this base class
+     *  @return The new Attribute.
+     */
+    @Override
+    public Object clone(Workspace workspace) throws CloneNotSupportedException {
+        LocalEngine newObject = (LocalEngine) super.clone(workspace);
+        newObject._activeRunners = Collections.newSetFromMap(
+                new ConcurrentHashMap<SubWorkflowRunner,Boolean>());
+        newObject._fusedMaps = null;
+        newObject._resultCache = null;
+        newObject._pool = null;
+        newObject._runnerPool = null;
+        newObject._poolSize = 1;
+        newObject._runInTaskThreads = false;
+        newObject._stopped = false;
+        return newObject;
+    }
+
+    /** Valid types of servers that can be started. Since this engine
+     *  does not use a server, only the same JVM is supported.
+     */
+    @Override
+    public String[] getServerTypes() {
+        return new String[] {"default", DDPDirector.SAME_JVM_STRING};
+    }
+
+    /** Initialize fields from parameters and check the model. */
+    @Override
+    public void preinitialize() throws IllegalActionException {
+        super.preinitialize();
+
+        _checkModel();
+
+        // use the number of processors for the default degree of parallelism
+        IntToken parallelism = (IntToken)_director.degreeOfParallelism.getToken();
+        if(parallelism == DDPDirector.DEFAULT_INTTOKEN) {
+            _degreeOfParallelism = Runtime.getRuntime().availableProcessors();
+        } else if(_degreeOfParallelism < 1) {
+            throw new IllegalActionException(_director,
+                    "degreeOfParallelism must be at least 1.");
+        }
+        _poolSize = _degreeOfParallelism;
+        _runInTaskThreads = ((BooleanToken)_director.runSubWorkflowsInTaskThreads.getToken())
+                .booleanValue();
+
+        final Parameter shuffleBufferSize = (Parameter) _director.getAttribute(SHUFFLE_BUFFER_SIZE_NAME);
+        _shuffleBufferSize = ((IntToken)shuffleBufferSize.getToken()).intValue();
+        if(_shuffleBufferSize < 0) {
+            throw new IllegalActionException(shuffleBufferSize,
+                    "The shuffle buffer size cannot be negative.");
+        }
+
+        final Parameter maxConcurrentStages = (Parameter) _director.getAttribute(MAX_CONCURRENT_STAGES_NAME);
+        _maxConcurrentStages = ((IntToken)maxConcurrentStages.getToken()).intValue();
+        if(_maxConcurrentStages < 0) {
+            throw new IllegalActionException(maxConcurrentStages,
+                    "The maximum number of concurrent stages cannot be negative.");
+        } else if(_maxConcurrentStages == 0) {
+            _maxConcurrentStages = _degreeOfParallelism;
+        }
+
+        final String resultCacheDirectory = ((StringParameter) _director.getAttribute(
+                RESULT_CACHE_DIRECTORY_NAME)).stringValue().trim();
+        if(resultCacheDirectory.isEmpty()) {
+            _resultCache = null;
+        } else {
+            final Parameter resultCacheMaxSize = (Parameter) _director.getAttribute(
+                    RESULT_CACHE_MAX_SIZE_NAME);
+            final long maxSize = ((LongToken)resultCacheMaxSize.getToken()).longValue();
+            if(maxSize < 0) {
+                throw new IllegalActionException(resultCacheMaxSize,
+                        "The maximum size of the result cache cannot be negative.");
+            }
+            _resultCache = new ResultCache(new File(resultCacheDirectory), maxSize);
+        }
+        _stopped = false;
+    }
+
+    /** Stop any running DDP jobs. */
+    @Override
+    public void stop() throws IllegalActionException {
+        super.stop();
+        _stopped = true;
+        for(SubWorkflowRunner runner : _activeRunners) {
+            runner.stop();
+        }
+    }
+
+    /** The name of this engine. */
+    public static final String ENGINE_NAME = "Local";
+
+    /** The maximum number of records written to a sub-workflow at once. */
+    public static final int BATCH_SIZE = 1024;
+
+    /** The name of the director parameter for the maximum size in bytes of
+     *  the key-value pairs held in memory when partitioning the input of a
+     *  Reduce, Match, or CoGroup actor. The size of a pair is the length of
+     *  its TokenCodec encoding, which is less than the memory used by its
+     *  tokens. Pairs beyond this size are spilled to files.
+     */
+    public static final String SHUFFLE_BUFFER_SIZE_NAME = "shuffleBufferSize";
+
+    /** The name of the director parameter for the maximum number of stages
+     *  executed at the same time. A stage reads a DDPDataSource, executes
+     *  a pattern actor, or writes a DDPDataSink. If 0, the maximum is the
+     *  degree of parallelism.
+     */
+    public static final String MAX_CONCURRENT_STAGES_NAME = "maxConcurrentStages";
+
+    /** The name of the director parameter for the directory of the result
+     *  cache. If not empty, the key-value pairs written to each DDPDataSink
+     *  are stored in the cache, and a later job whose sub-workflows,
+     *  parameters, and inputs for a DDPDataSink are unchanged writes the
+     *  cached pairs instead of executing the actors upstream of it.
+     */
+    public static final String RESULT_CACHE_DIRECTORY_NAME = "resultCacheDirectory";
+
+    /** The name of the director parameter for the maximum size in bytes of
+     *  the result cache. When an entry is added, the least recently used
+     *  entries are deleted until the cache fits in this size. If 0, the
+     *  size is not limited.
+     */
+    public static final String RESULT_CACHE_MAX_SIZE_NAME = "resultCacheMaxSize";
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      protected methods                  //////
+
+    /** Add the shuffle buffer size, maximum concurrent stages, result
+     *  cache directory, and result cache maximum size parameters to the
+     *  director.
+     */
+    @Override
+    protected void _addParameters() throws IllegalActionException, NameDuplicationException {
+        // the parameters already exist if the director was loaded from a file.
+        if(_director.getAttribute(SHUFFLE_BUFFER_SIZE_NAME) == null) {
+            final Parameter shuffleBufferSize = new Parameter(_director, SHUFFLE_BUFFER_SIZE_NAME);
+            shuffleBufferSize.setTypeEquals(BaseType.INT);
+            shuffleBufferSize.setExpression("67108864");
+        }
+        if(_director.getAttribute(MAX_CONCURRENT_STAGES_NAME) == null) {
+            final Parameter maxConcurrentStages = new Parameter(_director, MAX_CONCURRENT_STAGES_NAME);
+            maxConcurrentStages.setTypeEquals(BaseType.INT);
+            maxConcurrentStages.setExpression("0");
+        }
+        if(_director.getAttribute(RESULT_CACHE_DIRECTORY_NAME) == null) {
+            new StringParameter(_director, RESULT_CACHE_DIRECTORY_NAME);
+        }
+        if(_director.getAttribute(RESULT_CACHE_MAX_SIZE_NAME) == null) {
+            final Parameter resultCacheMaxSize = new Parameter(_director, RESULT_CACHE_MAX_SIZE_NAME);
+            resultCacheMaxSize.setTypeEquals(BaseType.LONG);
+            resultCacheMaxSize.setExpression("1073741824L");
+        }
+    }
+
+    /** Check the container of this director for incorrect actors, etc.
+     *  In addition to the checks in the parent class, make sure the
+     *  pattern actors execute sub-workflows.
+     */
+    @Override
+    protected void _checkModel() throws IllegalActionException {
+        super._checkModel();
+
+        for(SingleInputPatternActor actor :
+                _container.entityList(SingleInputPatternActor.class)) {
+            if(!actor.getExecutionClassName().isEmpty() ||
+                    actor.getExecutionCodeType() != null) {
+                throw new IllegalActionException(actor, "The " + _engineName +
+                        " engine only supports executing sub-workflows; clear" +
+                        " the executionClass and executionCode parameters.");
+            }
+        }
+
+        for(Reduce actor : _container.entityList(Reduce.class)) {
+            if(actor.getUseAsCombiner() &&
+                    !actor.combineExecutionClass.stringValue().trim().isEmpty()) {
+                throw new IllegalActionException(actor, "The " + _engineName +
+                        " engine only supports combining with the sub-workflow; clear" +
+                        " the combineExecutionClass parameter.");
+            }
+        }
+    }
+
+    /** Execute the DDP job. The output of each DDPDataSink actor is
+     *  computed by executing all the actors upstream of it. The output
+     *  of each actor is computed only once. Each actor is executed as
+     *  a stage as soon as the stages upstream of it have finished, so
+     *  independent branches of the workflow are executed concurrently,
+     *  up to the maxConcurrentStages director parameter.
+     */
+    @Override
+    protected void _executeDDPJob() throws IllegalActionException {
+
+        // register a copy of each sub-workflow so that the tasks can
+        // load it in Utilities.getModel().
+        for(SingleInputPatternActor actor :
+                _container.entityList(SingleInputPatternActor.class)) {
+            _addSubWorkflow(actor);
+        }
+
+        _fusedMaps = _planFusion();
+
+        // the job directory holds the shuffle spill files.
+        _createJobDirectory();
+
+        _pool = new ForkJoinPool(_poolSize);
+        _runnerPool = new SubWorkflowPool(_displayRedirectDir);
+        // the stages only wait for their tasks in the fork-join pool, so
+        // they are executed by a separate pool.
+        final ExecutorService stagePool = Executors.newFixedThreadPool(_maxConcurrentStages);
+        boolean finished = false;
+        try {
+            final StageScheduler scheduler = new StageScheduler(stagePool);
+            try {
+                for(DDPDataSink sink : _container.entityList(DDPDataSink.class)) {
+                    scheduler.schedule(sink);
+                }
+                scheduler.await();
+                finished = true;
+            } finally {
+                scheduler.close();
+            }
+        } finally {
+            stagePool.shutdownNow();
+            _pool.shutdownNow();
+            // a failed stage does not wait for its other tasks, so wait
+            // for them to finish before closing their sub-workflows.
+            try {
+                if(!_pool.awaitTermination(_TASK_TERMINATION_TIMEOUT, TimeUnit.SECONDS)) {
+                    _log.warn("Tasks for " + _container.getFullName() + " are still running after " +
+                            _TASK_TERMINATION_TIMEOUT + " seconds.");
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _pool = null;
+            final SubWorkflowPool runnerPool = _runnerPool;
+            _runnerPool = null;
+            try {
+                runnerPool.close();
+            } catch(IllegalActionException e) {
+                // do not hide the exception that stopped the job.
+                if(finished) {
+                    throw e;
+                }
+                _log.error("Error closing sub-workflows.", e);
+            } finally {
+                try {
+                    FileUtils.deleteDirectory(new File(_jobDir));
+                } catch(IOException e) {
+                    _log.warn("Could not delete job directory " + _jobDir, e);
+                }
+            }
+        }
+    }
+
+    /** Remove the shuffle buffer size, maximum concurrent stages, result
+     *  cache directory, and result cache maximum size parameters from the
+     *  director.
+     */
+    @Override
+    protected void _removeParameters() throws IllegalActionException, NameDuplicationException {
+        final Attribute shuffleBufferSize = _director.getAttribute(SHUFFLE_BUFFER_SIZE_NAME);
+        if(shuffleBufferSize != null) {
+            shuffleBufferSize.setContainer(null);
+        }
+        final Attribute maxConcurrentStages = _director.getAttribute(MAX_CONCURRENT_STAGES_NAME);
+        if(maxConcurrentStages != null) {
+            maxConcurrentStages.setContainer(null);
+        }
+        final Attribute resultCacheDirectory = _director.getAttribute(RESULT_CACHE_DIRECTORY_NAME);
+        if(resultCacheDirectory != null) {
+            resultCacheDirectory.setContainer(null);
+        }
+        final Attribute resultCacheMaxSize = _director.getAttribute(RESULT_CACHE_MAX_SIZE_NAME);
+        if(resultCacheMaxSize != null) {
+            resultCacheMaxSize.setContainer(null);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Clone a pattern actor and register the clone as the sub-workflow
+     *  executed by the tasks.
+     */
+    private void _addSubWorkflow(SingleInputPatternActor actor) throws IllegalActionException {
+        final SingleInputPatternActor clone;
+        try {
+            clone = (SingleInputPatternActor) actor.clone(new Workspace());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalActionException(actor, e, "Unable to clone sub-workflow.");
+        }
+        _setPortTypes(clone);
+        _copyParameters(actor, clone);
+        _subWorkflows.put(actor.getName(), clone);
+    }
+
+    /** Pre-reduce the input of a Reduce actor. The input is split as for
+     *  a Map actor, and each split is combined by a task holding a bounded
+     *  table of the values for each key. When the table is full, each
+     *  partial group is written to the sub-workflow, and the output is
+     *  added to the shuffle instead of the values.
+     *  @param actor the Reduce actor.
+     *  @param input the key-value pairs.
+     *  @param numPartitions the number of splits.
+     *  @param fusedMaps the Map actors fused before the combiner in each task.
+     *  @param shuffle the shuffle for the combined key-value pairs.
+     */
+    private void _combine(Reduce actor, List<KeyValuePair> input,
+            int numPartitions, List<org.kepler.ddp.actor.pattern.Map> fusedMaps,
+            Shuffle shuffle) throws IllegalActionException {
+
+        final int tableSize = actor.getCombinerTableSize();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong flushes = new AtomicLong();
+        final AtomicLong groups = new AtomicLong();
+
+        final List<StubTask> tasks = new ArrayList<StubTask>(numPartitions);
+        for(final List<KeyValuePair> split : _split(input, numPartitions)) {
+            tasks.add(_fuse(fusedMaps, split, new StubTask(actor, 3) {
+                @Override
+                protected void _finish() throws IllegalActionException {
+                    _flushTable();
+                    super._finish();
+                }
+                @Override
+                protected void _process() throws IllegalActionException {
+                    for(KeyValuePair pair : split) {
+                        _receive(pair);
+                    }
+                }
+                @Override
+                protected void _receive(KeyValuePair pair) throws IllegalActionException {
+                    List<Token> values = _table.get(pair.getKey());
+                    if(values == null) {
+                        values = new ArrayList<Token>();
+                        _table.put(pair.getKey(), values);
+                    } else {
+                        hits.incrementAndGet();
+                    }
+                    values.add(pair.getValue());
+                    _numValues++;
+                    if(_numValues == tableSize) {
+                        _flushTable();
+                    }
+                }
+                @Override
+                protected void _setInputs(StubSourceActor source, Token[][] columns)
+                        throws IllegalActionException {
+                    ((ReduceInput) source).setInput(columns[0], columns[1], columns[2]);
+                }
+                /** Write each partial group in the table to the sub-workflow
+                 *  and clear the table.
+                 */
+                private void _flushTable() throws IllegalActionException {
+                    if(_table.isEmpty()) {
+                        return;
+                    }
+                    for(Map.Entry<Token,List<Token>> entry : _table.entrySet()) {
+                        final List<Token> values = entry.getValue();
+                        _addInput(entry.getKey(), new ArrayToken(values.toArray(new Token[values.size()])),
+                                BooleanToken.TRUE);
+                    }
+                    groups.addAndGet(_table.size());
+                    flushes.incrementAndGet();
+                    _table.clear();
+                    _numValues = 0;
+                }
+                /** The number of values in the table. */
+                private int _numValues;
+                /** The values for each key. */
+                private final Map<Token,List<Token>> _table = new HashMap<Token,List<Token>>();
+            }));
+        }
+
+        _executeTasks(actor, tasks, shuffle);
+        _log.info(actor.getFullName() + " combiner: " + input.size() + " inputs, " +
+                hits.get() + " table hits, " + flushes.get() + " flushes, " + groups.get() +
+                " partial groups, " + shuffle.getNumPairs() + " outputs.");
+    }
+
+    /** Create an empty array token whose element type is the value type
+     *  of the key-value records read by a port.
+     */
+    private static ArrayToken _createEmptyValues(TypedIOPort port) throws IllegalActionException {
+        Type valueType = BaseType.GENERAL;
+        final Type portType = port.getType();
+        if(portType instanceof ArrayType) {
+            final Type elementType = ((ArrayType)portType).getElementType();
+            if(elementType instanceof RecordType) {
+                final Type fieldType = ((RecordType)elementType).get("value");
+                if(fieldType != null) {
+                    valueType = fieldType;
+                }
+            }
+        }
+        return new ArrayToken(valueType);
+    }
+
+    /** Create the key for a line read by LineInputFormat. The key is the
+     *  position of the line in the input, converted to the key type of
+     *  the source actor's output.
+     */
+    private static Token _createLineKey(long position, Type keyType) {
+        if(keyType == BaseType.LONG) {
+            return new LongToken(position);
+        } else if(keyType == BaseType.INT) {
+            return new IntToken((int) position);
+        } else if(keyType == BaseType.NIL) {
+            return Token.NIL;
+        } else {
+            return new StringToken(String.valueOf(position));
+        }
+    }
+
+    /** Cancel the tasks that have not started and stop the sub-workflows
+     *  of the tasks that are running.
+     */
+    private static void _cancelTasks(List<StubTask> tasks,
+            List<Future<List<KeyValuePair>>> futures) {
+        for(Future<List<KeyValuePair>> future : futures) {
+            future.cancel(true);
+        }
+        for(StubTask task : tasks) {
+            task.stop();
+        }
+    }
+
+    /** Execute a set of tasks in the fork-join pool and return the concatenation
+     *  of their outputs in the same order as the tasks. As soon as a task fails,
+     *  the other tasks are cancelled and the error is thrown without waiting
+     *  for them to finish.
+     *  @param actor the actor executed by the tasks.
+     *  @param tasks the tasks.
+     *  @param output if not null, the tasks add their output to this shuffle
+     *  as it is written, and an empty list is returned.
+     */
+    private List<KeyValuePair> _executeTasks(NamedObj actor, List<StubTask> tasks,
+            Shuffle output) throws IllegalActionException {
+
+        final CompletionService<List<KeyValuePair>> completionService =
+                new ExecutorCompletionService<List<KeyValuePair>>(_pool);
+        final List<Future<List<KeyValuePair>>> futures =
+                new ArrayList<Future<List<KeyValuePair>>>(tasks.size());
+        for(StubTask task : tasks) {
+            task.setOutput(output);
+            futures.add(completionService.submit(task));
+        }
+
+        // wait for the tasks in the order they finish so that the first
+        // error is seen immediately.
+        try {
+            for(int i = 0; i < futures.size(); i++) {
+                completionService.take().get();
+            }
+        } catch (InterruptedException e) {
+            _cancelTasks(tasks, futures);
+            throw new IllegalActionException(actor, e, "Interrupted while executing tasks.");
+        } catch (ExecutionException e) {
+            _cancelTasks(tasks, futures);
+            if(_stopped) {
+                return new ArrayList<KeyValuePair>();
+            }
+            final Throwable cause = e.getCause();
+            if(cause instanceof IllegalActionException) {
+                throw (IllegalActionException) cause;
+            }
+            throw new IllegalActionException(actor, cause, "Error executing task.");
+        }
+
+        final List<KeyValuePair> retval = new ArrayList<KeyValuePair>();
+        for(Future<List<KeyValuePair>> future : futures) {
+            try {
+                retval.addAll(future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                // not thrown since all the tasks have finished.
+                throw new IllegalActionException(actor, e, "Error executing task.");
+            }
+        }
+        return retval;
+    }
+
+    /** Fuse the tasks for Map actors before the task for a split.
+     *  @param fusedMaps the Map actors, in the order they execute.
+     *  @param split the input of the first Map actor.
+     *  @param task the task processing the output of the last Map actor.
+     *  @return the task to execute.
+     */
+    private StubTask _fuse(List<org.kepler.ddp.actor.pattern.Map> fusedMaps,
+            List<KeyValuePair> split, StubTask task) throws IllegalActionException {
+        if(fusedMaps.isEmpty()) {
+            return task;
+        }
+        final StubTask retval = new MapTask(fusedMaps.get(0), split);
+        StubTask last = retval;
+        for(int i = 1; i < fusedMaps.size(); i++) {
+            last._next = new MapTask(fusedMaps.get(i), split);
+            last = last._next;
+        }
+        last._next = task;
+        return retval;
+    }
+
+    /** Get the degree of parallelism for a pattern actor. If the actor
+     *  does not specify it, use the director's value.
+     */
+    private int _getDegreeOfParallelism(DDPPatternActor actor) throws IllegalActionException {
+        final int value = actor.getDegreeOfParallelism();
+        if(value > 0) {
+            return value;
+        }
+        return _degreeOfParallelism;
+    }
+
+    /** Get the fingerprint of the key-value pairs written by an actor, or
+     *  read by a DDPDataSink. The fingerprint of a DDPDataSource includes
+     *  its structure, and each input token or the path, size, and
+     *  modification time of each input file. The fingerprint of a pattern
+     *  actor includes its parameters, its degree of parallelism, and the
+     *  structure of its sub-workflow with the parameters copied from the
+     *  workflow. The fingerprint of every actor includes the director
+     *  parameters that can change the result, the path, size, and
+     *  modification time of the jars in includeJars, and the fingerprints
+     *  of the actors writing to its input ports. The structure does not
+     *  include attributes that do not change the result, such as the
+     *  locations of the actors, so moving an actor does not invalidate
+     *  the cache. See _addToFingerprint().
+     *  @param actor the actor.
+     *  @param fingerprints the fingerprints already computed.
+     */
+    private String _getFingerprint(NamedObj actor, Map<NamedObj,String> fingerprints)
+            throws IllegalActionException {
+
+        String retval = fingerprints.get(actor);
+        if(retval != null) {
+            return retval;
+        }
+
+        final ResultCache.Fingerprint fingerprint = new ResultCache.Fingerprint();
+        fingerprint.add(actor.getClass().getName());
+        fingerprint.add(String.valueOf(_degreeOfParallelism));
+        fingerprint.add(_director.includeJars.stringValue());
+        for(File jar : _getIncludeJarFiles()) {
+            fingerprint.add(jar.getAbsolutePath() + ":" + jar.length() + ":" + jar.lastModified());
+        }
+        fingerprint.add(_director.jobArguments.stringValue());
+        final List<IOPort> ports = new ArrayList<IOPort>();
+        if(actor instanceof DDPDataSource) {
+            final DDPDataSource source = (DDPDataSource) actor;
+            _addToFingerprint(fingerprint, source);
+            if(source.formatType.stringValue().equals("TokenInputFormat")) {
+                final DDPDataSource.ChunkedArray tokens = DDPDataSource.getTokens(source.getFullName());
+                if(tokens != null) {
+                    // digest each element instead of converting the array
+                    // to a string, so that elements in the token store are
+                    // decoded one at a time.
+                    fingerprint.add(String.valueOf(tokens.getChunkSize()));
+                    fingerprint.add(String.valueOf(tokens.getElements().size()));
+                    for(Token token : tokens.getElements()) {
+                        fingerprint.add(token);
+                    }
+                } else {
+                    fingerprint.add("null");
+                }
+            } else {
+                for(File file : _getInputFiles(source)) {
+                    fingerprint.add(file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified());
+                }
+            }
+        } else if(actor instanceof SingleInputPatternActor) {
+            fingerprint.add(String.valueOf(_getDegreeOfParallelism((DDPPatternActor) actor)));
+            for(Object object : actor.attributeList(Settable.class)) {
+                final Attribute attribute = (Attribute) object;
+                if(!_isSkippedInFingerprint(attribute)) {
+                    fingerprint.add(attribute.getName() + "=" + ((Settable) attribute).getExpression());
+                }
+            }
+            _addToFingerprint(fingerprint, _subWorkflows.get(actor.getName()));
+            ports.add(((SingleInputPatternActor)actor).in);
+            if(actor instanceof DualInputPatternActor) {
+                ports.add(((DualInputPatternActor)actor).in2);
+            }
+        } else if(actor instanceof DDPDataSink) {
+            ports.add(((DDPDataSink)actor).in);
+        } else {
+            throw new IllegalActionException(actor, "Unsupported actor for the " +
+                    _engineName + " engine.");
+        }
+
+        for(IOPort port : ports) {
+            for(Object object : port.sourcePortList()) {
+                fingerprint.add(_getFingerprint(((IOPort)object).getContainer(), fingerprints));
+            }
+        }
+
+        retval = fingerprint.getValue();
+        fingerprints.put(actor, retval);
+        return retval;
+    }
+
+    /** Add the structure of an object to a fingerprint: its class and name,
+     *  the expressions of its settable attributes, the relations linked to
+     *  its ports, and the structure of its attributes, ports, entities, and
+     *  relations. Attributes that are not persistent, and attributes only
+     *  used by Vergil such as locations, icons, and window properties, are
+     *  skipped.
+     */
+    private static void _addToFingerprint(ResultCache.Fingerprint fingerprint, NamedObj object)
+            throws IllegalActionException {
+        fingerprint.add(object.getClassName());
+        fingerprint.add(object.getName());
+        if(object instanceof Settable) {
+            fingerprint.add(((Settable) object).getExpression());
+        }
+        for(Object attribute : object.attributeList()) {
+            if(!_isSkippedInFingerprint((Attribute) attribute)) {
+                _addToFingerprint(fingerprint, (Attribute) attribute);
+            }
+        }
+        if(object instanceof Entity) {
+            for(Object portObject : ((Entity) object).portList()) {
+                final Port port = (Port) portObject;
+                _addToFingerprint(fingerprint, port);
+                for(Object relation : port.linkedRelationList()) {
+                    fingerprint.add(relation == null ? "" : ((Relation) relation).getName());
+                }
+                if(port instanceof ComponentPort) {
+                    fingerprint.add("inside");
+                    for(Object relation : ((ComponentPort) port).insideRelationList()) {
+                        fingerprint.add(relation == null ? "" : ((Relation) relation).getName());
+                    }
+                }
+            }
+        }
+        if(object instanceof CompositeEntity) {
+            for(Object entity : ((CompositeEntity) object).entityList()) {
+                _addToFingerprint(fingerprint, (NamedObj) entity);
+            }
+            for(Object relation : ((CompositeEntity) object).relationList()) {
+                _addToFingerprint(fingerprint, (NamedObj) relation);
+            }
+        }
+    }
+
+    /** Returns true if an attribute does not change the result of an
+     *  actor and is not added to fingerprints.
+     */
+    private static boolean _isSkippedInFingerprint(Attribute attribute) {
+        return !attribute.isPersistent() ||
+                attribute instanceof Locatable ||
+                attribute.getClass().getName().startsWith("ptolemy.vergil.") ||
+                _FINGERPRINT_SKIPPED_NAMES.contains(attribute.getName());
+    }
+
+    /** Get the Map actors that can be fused before a pattern actor. A Map
+     *  actor is fused if its output is only read by the next actor, the
+     *  next actor only reads its output, and both have the same degree of
+     *  parallelism. Map actors are only fused before a Map or a Reduce
+     *  used as a combiner.
+     *  @return the fused Map actors in the order they execute.
+     */
+    private List<org.kepler.ddp.actor.pattern.Map> _getFusedMaps(SingleInputPatternActor actor)
+            throws IllegalActionException {
+        final LinkedList<org.kepler.ddp.actor.pattern.Map> retval =
+                new LinkedList<org.kepler.ddp.actor.pattern.Map>();
+        if(!(actor instanceof org.kepler.ddp.actor.pattern.Map) &&
+                !(actor instanceof Reduce && ((Reduce)actor).getUseAsCombiner())) {
+            return retval;
+        }
+        SingleInputPatternActor next = actor;
+        while(true) {
+            final List<?> sourcePorts = next.in.sourcePortList();
+            if(sourcePorts.size() != 1) {
+                break;
+            }
+            final NamedObj upstream = ((IOPort)sourcePorts.get(0)).getContainer();
+            if(!(upstream instanceof org.kepler.ddp.actor.pattern.Map)) {
+                break;
+            }
+            final org.kepler.ddp.actor.pattern.Map map = (org.kepler.ddp.actor.pattern.Map) upstream;
+            if(map.out.sinkPortList().size() != 1 ||
+                    _getDegreeOfParallelism(map) != _getDegreeOfParallelism(next)) {
+                break;
+            }
+            retval.addFirst(map);
+            next = map;
+        }
+        return retval;
+    }
+
+    /** Get the key-value pairs read by an input port. */
+    private List<KeyValuePair> _getInputData(IOPort port,
+            Map<DDPPatternActor,List<KeyValuePair>> outputs) throws IllegalActionException {
+
+        final List<?> sourcePorts = port.sourcePortList();
+        if(sourcePorts.isEmpty()) {
+            throw new IllegalActionException(port, "Port is not connected.");
+        } else if(sourcePorts.size() == 1) {
+            return _getOutputData(((IOPort)sourcePorts.get(0)).getContainer(), outputs);
+        }
+
+        final List<KeyValuePair> retval = new ArrayList<KeyValuePair>();
+        for(Object object : sourcePorts) {
+            retval.addAll(_getOutputData(((IOPort)object).getContainer(), outputs));
+        }
+        return retval;
+    }
+
+    /** Get the key-value pairs written by an actor. The stage for the
+     *  actor must have finished. If the job was stopped before the stage
+     *  executed, returns an empty list.
+     */
+    private List<KeyValuePair> _getOutputData(NamedObj actor,
+            Map<DDPPatternActor,List<KeyValuePair>> outputs) throws IllegalActionException {
+
+        final List<KeyValuePair> retval = outputs.get(actor);
+        if(retval == null) {
+            if(_stopped) {
+                return new ArrayList<KeyValuePair>();
+            }
+            throw new IllegalActionException(actor, "The output has not been computed.");
+        }
+        return retval;
+    }
+
+    /** Get the comparator to group the keys for a Reduce actor. This is
+     *  an instance of the class named in groupingComparatorClass, which must
+     *  implement java.util.Comparator for tokens, or the natural ordering
+     *  of tokens if groupingComparatorClass is empty.
+     */
+    @SuppressWarnings("unchecked")
+    private Comparator<Token> _getGroupingComparator(Reduce actor) throws IllegalActionException {
+        final String className = actor.groupingComparatorClass.stringValue().trim();
+        if(className.isEmpty()) {
+            return new TokenComparator();
+        }
+        try {
+            final Class<?> clazz = Class.forName(className, true, _classLoader);
+            if(!Comparator.class.isAssignableFrom(clazz)) {
+                throw new IllegalActionException(actor, "Grouping comparator class " +
+                        className + " must implement java.util.Comparator for the " +
+                        _engineName + " engine.");
+            }
+            return (Comparator<Token>) clazz.newInstance();
+        } catch(ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+            throw new IllegalActionException(actor, e, "Error creating grouping comparator class " +
+                    className + ".");
+        }
+    }
+
+    /** Get the comparator to sort the keys of the input ports returned
+     *  by _getShuffledPorts().
+     */
+    private Comparator<Token> _getKeyComparator(SingleInputPatternActor actor)
+            throws IllegalActionException {
+        if(actor instanceof Reduce) {
+            return _getGroupingComparator((Reduce) actor);
+        }
+        return new TokenComparator();
+    }
+
+    /** Get the number of partitions of the input of a pattern actor, which
+     *  is the number of its tasks. This is the degree of parallelism of the
+     *  actor unless _getPartitioner() returns null, in which case the input
+     *  is not partitioned.
+     */
+    private int _getNumPartitions(SingleInputPatternActor actor) throws IllegalActionException {
+        if(_getPartitioner(actor) == null) {
+            return 1;
+        }
+        return _getDegreeOfParallelism(actor);
+    }
+
+    /** Get the partitioner for the shuffled input ports of a pattern actor.
+     *  Keys are hash-partitioned unless the actor is a Reduce with a
+     *  grouping comparator class. In that case, keys that the comparator
+     *  treats as equal may have different hash codes, so the comparator is
+     *  used if it implements Shuffle.Partitioner, and otherwise null is
+     *  returned and the input is read as a single partition.
+     */
+    private Shuffle.Partitioner _getPartitioner(SingleInputPatternActor actor)
+            throws IllegalActionException {
+        final Comparator<Token> comparator = _getKeyComparator(actor);
+        if(comparator instanceof Shuffle.Partitioner) {
+            return (Shuffle.Partitioner) comparator;
+        } else if(comparator.getClass() == TokenComparator.class) {
+            return Shuffle.HASH_PARTITIONER;
+        }
+        return null;
+    }
+
+    /** Get the input ports of a pattern actor whose key-value pairs are
+     *  partitioned by a shuffle before the actor is executed: the input
+     *  of a Reduce that is not used as a combiner, and both inputs of a
+     *  Match or CoGroup. Other actors, and a Reduce used as a combiner,
+     *  split their input instead.
+     */
+    private static List<IOPort> _getShuffledPorts(NamedObj actor) throws IllegalActionException {
+        final List<IOPort> retval = new ArrayList<IOPort>();
+        if(actor instanceof Reduce) {
+            if(!((Reduce)actor).getUseAsCombiner()) {
+                retval.add(((Reduce)actor).in);
+            }
+        } else if(actor instanceof Match || actor instanceof CoGroup) {
+            retval.add(((DualInputPatternActor)actor).in);
+            retval.add(((DualInputPatternActor)actor).in2);
+        }
+        return retval;
+    }
+
+    /** Get the shuffle for an input port returned by _getShuffledPorts().
+     *  The actors writing to the port that stream their output to the
+     *  shuffle have already added it; the output of the other actors is
+     *  added here.
+     *  @param port the input port.
+     *  @param inputShuffles the shuffle for each port.
+     *  @param outputTargets the shuffle that each actor streams its output to.
+     *  @param outputs the key-value pairs written by the actors that do not stream.
+     */
+    private Shuffle _getShuffledInput(IOPort port, Map<IOPort,Shuffle> inputShuffles,
+            Map<NamedObj,Shuffle> outputTargets, Map<DDPPatternActor,List<KeyValuePair>> outputs)
+                    throws IllegalActionException {
+        final Shuffle retval = inputShuffles.get(port);
+        for(Object object : port.sourcePortList()) {
+            final NamedObj source = ((IOPort)object).getContainer();
+            if(outputTargets.get(source) != retval) {
+                retval.addAll(_getOutputData(source, outputs));
+            }
+        }
+        return retval;
+    }
+
+    /** Find the Map actors fused before each pattern actor and log the
+     *  execution plan.
+     *  @return the fused Map actors for each pattern actor.
+     */
+    private Map<SingleInputPatternActor,List<org.kepler.ddp.actor.pattern.Map>> _planFusion()
+            throws IllegalActionException {
+
+        final Map<SingleInputPatternActor,List<org.kepler.ddp.actor.pattern.Map>> retval =
+                new HashMap<SingleInputPatternActor,List<org.kepler.ddp.actor.pattern.Map>>();
+        final Set<SingleInputPatternActor> fused = new HashSet<SingleInputPatternActor>();
+        final List<SingleInputPatternActor> actors =
+                _container.entityList(SingleInputPatternActor.class);
+        for(SingleInputPatternActor actor : actors) {
+            final List<org.kepler.ddp.actor.pattern.Map> fusedMaps = _getFusedMaps(actor);
+            retval.put(actor, fusedMaps);
+            fused.addAll(fusedMaps);
+        }
+
+        final StringBuilder plan = new StringBuilder("Execution plan for ");
+        plan.append(_container.getFullName()).append(":");
+        for(SingleInputPatternActor actor : actors) {
+            if(fused.contains(actor)) {
+                continue;
+            }
+            plan.append("\n  ");
+            for(org.kepler.ddp.actor.pattern.Map map : retval.get(actor)) {
+                plan.append(map.getName()).append(" -> ");
+            }
+            plan.append(actor.getName());
+            if(actor instanceof Reduce && ((Reduce)actor).getUseAsCombiner()) {
+                plan.append(" (combiner)");
+            }
+            plan.append(": ").append(_getNumPartitions(actor)).append(" tasks");
+        }
+        _log.info(plan);
+
+        return retval;
+    }
+
+    /** Read the key-value pairs for a DDPDataSource actor.
+     *  @param source the actor.
+     *  @param output if not null, the pairs are added to this shuffle as
+     *  they are read, and an empty list is returned.
+     */
+    private List<KeyValuePair> _readSource(DDPDataSource source, Shuffle output)
+            throws IllegalActionException {
+
+        final String format = source.formatType.stringValue();
+        final List<KeyValuePair> retval = new ArrayList<KeyValuePair>();
+
+        if(format.equals("TokenInputFormat")) {
+            final DDPDataSource.ChunkedArray tokens = DDPDataSource.getTokens(source.getFullName());
+            if(tokens == null) {
+                throw new IllegalActionException(source, "No input token found.");
+            }
+            // the pairs, and any chunks, are created as each task reads
+            // its split instead of copying the data here.
+            final List<KeyValuePair> pairs = new TokenSourceList(tokens);
+            if(output == null) {
+                return pairs;
+            }
+            output.addAll(pairs);
+        } else if(format.equals("LineInputFormat")) {
+
+            Type keyType = BaseType.STRING;
+            final Type outType = source.out.getType();
+            if(outType instanceof ArrayType &&
+                    ((ArrayType)outType).getElementType() instanceof RecordType) {
+                keyType = ((RecordType)((ArrayType)outType).getElementType()).get("key");
+            }
+
+            for(File file : _getInputFiles(source)) {
+                long position = 0;
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new FileReader(file));
+                    String line;
+                    while((line = reader.readLine()) != null) {
+                        final KeyValuePair pair = new KeyValuePair(_createLineKey(position, keyType),
+                                new StringToken(line));
+                        if(output == null) {
+                            retval.add(pair);
+                        } else {
+                            output.add(pair);
+                        }
+                        position += line.length() + 1;
+                    }
+                } catch (IOException e) {
+                    throw new IllegalActionException(source, e, "Error reading " + file);
+                } finally {
+                    if(reader != null) {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            throw new IllegalActionException(source, e, "Error closing " + file);
+                        }
+                    }
+                }
+            }
+        } else {
+            throw new IllegalActionException(source, "Format " + format +
+                    " is not supported by the " + _engineName + " engine.");
+        }
+
+        return retval;
+    }
+
+    /** Get the files to read for a DDPDataSource. If the path is a directory,
+     *  returns the files in the directory whose names do not start with
+     *  "." or "_".
+     */
+    private List<File> _getInputFiles(DDPDataSource source) throws IllegalActionException {
+        final File path = _getLocalFile(source);
+        if(!path.exists()) {
+            throw new IllegalActionException(source, "Path does not exist: " + path);
+        }
+        final List<File> retval = new LinkedList<File>();
+        if(path.isDirectory()) {
+            final File[] files = path.listFiles();
+            Arrays.sort(files);
+            for(File file : files) {
+                final String name = file.getName();
+                if(file.isFile() && !name.startsWith(".") && !name.startsWith("_")) {
+                    retval.add(file);
+                }
+            }
+        } else {
+            retval.add(path);
+        }
+        return retval;
+    }
+
+    /** Get the path of a DDPDataSource or DDPDataSink as a local file. */
+    private File _getLocalFile(AtomicPathActor actor)
+            throws IllegalActionException {
+        final URI uri = actor.getPathAsURI();
+        if(uri.getScheme() != null && !uri.getScheme().equals("file")) {
+            throw new IllegalActionException(actor, "The " + _engineName +
+                    " engine only supports local files: " + uri);
+        }
+        return new File(uri.getPath());
+    }
+
+    /** Execute a pattern actor and return the key-value pairs it writes.
+     *  @param actor the pattern actor.
+     *  @param outputs the key-value pairs written by the actors that do
+     *  not stream their output to a shuffle.
+     *  @param inputShuffles the shuffle for each input port returned by
+     *  _getShuffledPorts().
+     *  @param outputTargets the shuffle that each actor streams its output to.
+     *  @param output if not null, the key-value pairs written by the actor
+     *  are added to this shuffle as they are written, and an empty list
+     *  is returned.
+     */
+    private List<KeyValuePair> _runPatternActor(final SingleInputPatternActor actor,
+            Map<DDPPatternActor,List<KeyValuePair>> outputs, Map<IOPort,Shuffle> inputShuffles,
+            Map<NamedObj,Shuffle> outputTargets, Shuffle output) throws IllegalActionException {
+
+        final int numPartitions = _getNumPartitions(actor);
+        final List<StubTask> tasks = new ArrayList<StubTask>(numPartitions);
+        final List<Shuffle> shuffles = new ArrayList<Shuffle>();
+
+        // the input of a shuffled port is read from the shuffle, which is
+        // closed when the actor finishes.
+        final List<IOPort> shuffledPorts = _getShuffledPorts(actor);
+        for(IOPort port : shuffledPorts) {
+            shuffles.add(inputShuffles.get(port));
+        }
+
+        // the input of fused Map actors is read by the first one.
+        final List<org.kepler.ddp.actor.pattern.Map> fusedMaps = _fusedMaps.get(actor);
+        List<KeyValuePair> input = null;
+        List<KeyValuePair> input2 = null;
+        if(shuffledPorts.isEmpty()) {
+            input = _getInputData(fusedMaps.isEmpty() ? actor.in : fusedMaps.get(0).in, outputs);
+            if(actor instanceof DualInputPatternActor) {
+                input2 = _getInputData(((DualInputPatternActor)actor).in2, outputs);
+            }
+        }
+
+        if(_stopped) {
+            for(Shuffle shuffle : shuffles) {
+                shuffle.close();
+            }
+            return new ArrayList<KeyValuePair>();
+        }
+
+        if(actor instanceof org.kepler.ddp.actor.pattern.Map) {
+
+            for(List<KeyValuePair> split : _split(input, numPartitions)) {
+                tasks.add(_fuse(fusedMaps, split, new MapTask(actor, split)));
+            }
+
+        } else if(actor instanceof Reduce) {
+
+            final int chunkSize = ((Reduce)actor).getValuesChunkSize();
+            final Comparator<Token> comparator = _getKeyComparator(actor);
+            final Shuffle shuffle;
+            if(((Reduce)actor).getUseAsCombiner()) {
+                // the combiner tasks write their output to the shuffle.
+                shuffle = _createShuffle(actor, actor.in, comparator);
+                shuffles.add(shuffle);
+                // the combiner groups keys within each of its tasks, so it
+                // does not need to be limited to the shuffle's partitions.
+                _combine((Reduce) actor, input, _getDegreeOfParallelism(actor), fusedMaps, shuffle);
+            } else {
+                shuffle = _getShuffledInput(actor.in, inputShuffles, outputTargets, outputs);
+            }
+            _logSpills(actor, shuffle);
+            for(int i = 0; i < numPartitions; i++) {
+                final int partition = i;
+                tasks.add(new StubTask(actor, 3) {
+                    @Override
+                    protected void _process() throws IllegalActionException {
+                        // the partition is read sorted by key, so only the values
+                        // for the current group (or chunk) are held in memory.
+                        final Shuffle.PartitionReader reader = shuffle.open(partition);
+                        final List<Token> values = new ArrayList<Token>();
+                        Token key = null;
+                        KeyValuePair pair;
+                        while((pair = reader.next()) != null) {
+                            if(key != null && comparator.compare(key, pair.getKey()) != 0) {
+                                _addInput(key, new ArrayToken(values.toArray(new Token[values.size()])),
+                                        BooleanToken.TRUE);
+                                values.clear();
+                                key = null;
+                            }
+                            if(key == null) {
+                                key = pair.getKey();
+                            } else if(chunkSize > 0 && values.size() == chunkSize) {
+                                // the group has more values, so this is not the last chunk.
+                                _addInput(key, new ArrayToken(values.toArray(new Token[values.size()])),
+                                        BooleanToken.FALSE);
+                                values.clear();
+                            }
+                            values.add(pair.getValue());
+                        }
+                        if(key != null) {
+                            _addInput(key, new ArrayToken(values.toArray(new Token[values.size()])),
+                                    BooleanToken.TRUE);
+                        }
+                    }
+                    @Override
+                    protected void _setInputs(StubSourceActor source, Token[][] columns)
+                            throws IllegalActionException {
+                        ((ReduceInput) source).setInput(columns[0], columns[1], columns[2]);
+                    }
+                });
+            }
+
+        } else if(actor instanceof Match) {
+
+            final Comparator<Token> comparator = _getKeyComparator(actor);
+            final Shuffle shuffle1 = _getShuffledInput(actor.in, inputShuffles, outputTargets, outputs);
+            final Shuffle shuffle2 = _getShuffledInput(((Match)actor).in2, inputShuffles,
+                    outputTargets, outputs);
+            _logSpills(actor, shuffle1);
+            _logSpills(actor, shuffle2);
+            for(int i = 0; i < numPartitions; i++) {
+                final int partition = i;
+                tasks.add(new StubTask(actor, 3) {
+                    @Override
+                    protected void _process() throws IllegalActionException {
+                        // both partitions are sorted by key, so they are merged
+                        // and only the values for the current keys are held in memory.
+                        final GroupReader reader1 = new GroupReader(shuffle1.open(partition), comparator);
+                        final GroupReader reader2 = new GroupReader(shuffle2.open(partition), comparator);
+                        Token key1 = reader1.next();
+                        Token key2 = reader2.next();
+                        while(key1 != null && key2 != null) {
+                            final int order = comparator.compare(key1, key2);
+                            if(order < 0) {
+                                key1 = reader1.next();
+                            } else if(order > 0) {
+                                key2 = reader2.next();
+                            } else {
+                                for(Token value1 : reader1.getValues()) {
+                                    for(Token value2 : reader2.getValues()) {
+                                        _addInput(key1, value1, value2);
+                                    }
+                                }
+                                key1 = reader1.next();
+                                key2 = reader2.next();
+                            }
+                        }
+                    }
+                    @Override
+                    protected void _setInputs(StubSourceActor source, Token[][] columns)
+                            throws IllegalActionException {
+                        ((MatchInput) source).setInput(columns[0], columns[1], columns[2]);
+                    }
+                });
+            }
+
+        } else if(actor instanceof CoGroup) {
+
+            final ArrayToken emptyValues1 = _createEmptyValues(actor.in);
+            final ArrayToken emptyValues2 = _createEmptyValues(((CoGroup)actor).in2);
+            final Comparator<Token> comparator = _getKeyComparator(actor);
+            final Shuffle shuffle1 = _getShuffledInput(actor.in, inputShuffles, outputTargets, outputs);
+            final Shuffle shuffle2 = _getShuffledInput(((CoGroup)actor).in2, inputShuffles,
+                    outputTargets, outputs);
+            _logSpills(actor, shuffle1);
+            _logSpills(actor, shuffle2);
+            for(int i = 0; i < numPartitions; i++) {
+                final int partition = i;
+                tasks.add(new StubTask(actor, 3) {
+                    @Override
+                    protected void _process() throws IllegalActionException {
+                        // both partitions are sorted by key, so they are merged
+                        // and only the values for the current keys are held in memory.
+                        final GroupReader reader1 = new GroupReader(shuffle1.open(partition), comparator);
+                        final GroupReader reader2 = new GroupReader(shuffle2.open(partition), comparator);
+                        Token key1 = reader1.next();
+                        Token key2 = reader2.next();
+                        while(key1 != null || key2 != null) {
+                            final int order;
+                            if(key1 == null) {
+                                order = 1;
+                            } else if(key2 == null) {
+                                order = -1;
+                            } else {
+                                order = comparator.compare(key1, key2);
+                            }
+                            final List<Token> values1 = reader1.getValues();
+                            final List<Token> values2 = reader2.getValues();
+                            if(order < 0) {
+                                _addInput(key1, new ArrayToken(values1.toArray(new Token[values1.size()])),
+                                        emptyValues2);
+                                key1 = reader1.next();
+                            } else if(order > 0) {
+                                _addInput(key2, emptyValues1,
+                                        new ArrayToken(values2.toArray(new Token[values2.size()])));
+                                key2 = reader2.next();
+                            } else {
+                                _addInput(key1, new ArrayToken(values1.toArray(new Token[values1.size()])),
+                                        new ArrayToken(values2.toArray(new Token[values2.size()])));
+                                key1 = reader1.next();
+                                key2 = reader2.next();
+                            }
+                        }
+                    }
+                    @Override
+                    protected void _setInputs(StubSourceActor source, Token[][] columns)
+                            throws IllegalActionException {
+                        ((CoGroupInput) source).setInput(columns[0], columns[1], columns[2]);
+                    }
+                });
+            }
+
+        } else if(actor instanceof Cross) {
+
+            final List<KeyValuePair> right = input2;
+            for(final List<KeyValuePair> split : _split(input, numPartitions)) {
+                tasks.add(new StubTask(actor, 4) {
+                    @Override
+                    protected void _process() throws IllegalActionException {
+                        for(KeyValuePair pair1 : split) {
+                            for(KeyValuePair pair2 : right) {
+                                _addInput(pair1.getKey(), pair1.getValue(),
+                                        pair2.getKey(), pair2.getValue());
+                            }
+                        }
+                    }
+                    @Override
+                    protected void _setInputs(StubSourceActor source, Token[][] columns)
+                            throws IllegalActionException {
+                        ((CrossInput) source).setInput(columns[0], columns[1], columns[2], columns[3]);
+                    }
+                });
+            }
+
+        } else {
+            throw new IllegalActionException(actor, "Pattern " + actor.getClass().getName() +
+                    " is not supported by the " + _engineName + " engine.");
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final List<KeyValuePair> retval;
+        try {
+            retval = _executeTasks(actor, tasks, output);
+        } finally {
+            // any spill files not deleted here are deleted with the job directory.
+            for(Shuffle shuffle : shuffles) {
+                shuffle.close();
+            }
+        }
+        _log.debug(actor.getFullName() + " executed " + tasks.size() + " tasks in " +
+                (System.currentTimeMillis() - startTime) + " ms.");
+        return retval;
+    }
+
+    /** Create the shuffle to partition the key-value pairs read by an
+     *  input port of a pattern actor. Pairs beyond the shuffle buffer size
+     *  are spilled to files in the job directory.
+     *  @param actor the pattern actor.
+     *  @param port the input port.
+     *  @param keyComparator the comparator to sort each partition by key.
+     */
+    private Shuffle _createShuffle(SingleInputPatternActor actor, IOPort port,
+            Comparator<Token> keyComparator) throws IllegalActionException {
+        Shuffle.Partitioner partitioner = _getPartitioner(actor);
+        if(partitioner == null) {
+            _log.warn(actor.getFullName() + ": the grouping comparator does not implement " +
+                    Shuffle.Partitioner.class.getName() + ", so the input is read by a single task.");
+            partitioner = Shuffle.HASH_PARTITIONER;
+        }
+        return new Shuffle(_getNumPartitions(actor), _shuffleBufferSize,
+                new File(_jobDir, actor.getName() + "_" + port.getName()), keyComparator,
+                partitioner);
+    }
+
+    /** Log the number of key-value pairs spilled by a shuffle. */
+    private static void _logSpills(NamedObj actor, Shuffle shuffle) {
+        if(shuffle.getNumSpilledPairs() > 0) {
+            _log.debug(actor.getFullName() + " spilled " + shuffle.getNumSpilledPairs() +
+                    " of " + shuffle.getNumPairs() + " input pairs.");
+        }
+    }
+
+    /** Split a list into contiguous sub-lists. Empty sub-lists are not returned. */
+    private static List<List<KeyValuePair>> _split(List<KeyValuePair> data, int numPartitions) {
+        final List<List<KeyValuePair>> retval = new ArrayList<List<KeyValuePair>>(numPartitions);
+        final int size = data.size();
+        for(int i = 0; i < numPartitions; i++) {
+            final int start = (int) ((long) size * i / numPartitions);
+            final int end = (int) ((long) size * (i + 1) / numPartitions);
+            if(end > start) {
+                retval.add(data.subList(start, end));
+            }
+        }
+        return retval;
+    }
+
+    /** Write the key-value pairs for a DDPDataSink actor. */
+    private void _writeSink(DDPDataSink sink, List<KeyValuePair> data) throws IllegalActionException {
+
+        final String format = sink.formatType.stringValue();
+
+        if(format.equals("TokenOutputFormat")) {
+            // add the record tokens in batches so that, if the token store
+            // is enabled, they are not all held on the heap at once.
+            final List<Token> tokens = new ArrayList<Token>(Math.min(data.size(), BATCH_SIZE));
+            for(KeyValuePair pair : data) {
+                tokens.add(pair.toRecordToken());
+                if(tokens.size() == BATCH_SIZE) {
+                    DDPDataSink.addTokens(sink.getFullName(), tokens, getTokenStore());
+                    tokens.clear();
+                }
+            }
+            if(!tokens.isEmpty() || data.isEmpty()) {
+                DDPDataSink.addTokens(sink.getFullName(), tokens, getTokenStore());
+            }
+        } else if(format.equals("LineOutputFormat")) {
+            final File file = _getLocalFile(sink);
+            final File parent = file.getParentFile();
+            if(parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IllegalActionException(sink, "Could not create directory " + parent);
+            }
+            BufferedWriter writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(file));
+                for(KeyValuePair pair : data) {
+                    // write only the value if there is no key, otherwise
+                    // separate the key and value with a tab.
+                    if(pair.getKey() != Token.NIL) {
+                        writer.write(_toLineString(pair.getKey()));
+                        writer.write('\t');
+                    }
+                    writer.write(_toLineString(pair.getValue()));
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                throw new IllegalActionException(sink, e, "Error writing " + file);
+            } finally {
+                if(writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        throw new IllegalActionException(sink, e, "Error closing " + file);
+                    }
+                }
+            }
+        } else if(!format.equals("NullOutputFormat")) {
+            throw new IllegalActionException(sink, "Format " + format +
+                    " is not supported by the " + _engineName + " engine.");
+        }
+    }
+
+    /** Convert a token to a string for LineOutputFormat. */
+    private static String _toLineString(Token token) {
+        if(token instanceof StringToken) {
+            return ((StringToken)token).stringValue();
+        }
+        return token.toString();
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      inner classes                      //////
+
+    /** Reads the groups of values with equal keys from a partition of a
+     *  shuffle that is sorted by key.
+     */
+    private static class GroupReader {
+
+        /** Create a new GroupReader.
+         *  @param reader the partition.
+         *  @param comparator the comparator used to sort the partition.
+         */
+        GroupReader(Shuffle.PartitionReader reader, Comparator<Token> comparator)
+                throws IllegalActionException {
+            _reader = reader;
+            _comparator = comparator;
+            _next = reader.next();
+        }
+
+        /** Get the values of the group read by the last call to next(). */
+        List<Token> getValues() {
+            return _values;
+        }
+
+        /** Read the next group.
+         *  @return the key of the group, or null if all the groups have been read.
+         */
+        Token next() throws IllegalActionException {
+            _values.clear();
+            if(_next == null) {
+                return null;
+            }
+            final Token retval = _next.getKey();
+            do {
+                _values.add(_next.getValue());
+                _next = _reader.next();
+            } while(_next != null && _comparator.compare(retval, _next.getKey()) == 0);
+            return retval;
+        }
+
+        /** The comparator used to sort the partition. */
+        private final Comparator<Token> _comparator;
+
+        /** The first pair of the next group, or null if there are no more pairs. */
+        private KeyValuePair _next;
+
+        /** The partition. */
+        private final Shuffle.PartitionReader _reader;
+
+        /** The values of the current group. */
+        private final List<Token> _values = new ArrayList<Token>();
+    }
+
+    /** A read-only list of the key-value pairs for a DDPDataSource using
+     *  TokenInputFormat. Each pair has a nil key and an element of the
+     *  data token as the value, and is created when it is read.
+     */
+    private static class TokenSourceList extends AbstractList<KeyValuePair> implements RandomAccess {
+
+        TokenSourceList(DDPDataSource.ChunkedArray tokens) {
+            _tokens = tokens;
+        }
+
+        @Override
+        public KeyValuePair get(int index) {
+            return new KeyValuePair(Token.NIL, _tokens.get(index));
+        }
+
+        @Override
+        public int size() {
+            return _tokens.size();
+        }
+
+        /** The elements of the data token. */
+        private final DDPDataSource.ChunkedArray _tokens;
+    }
+
+    /** Executes the actors in the workflow as a graph of stages. Each
+     *  stage starts when all the stages writing to its input ports have
+     *  finished. If a stage fails, the job is stopped so that the other
+     *  stages finish quickly, and the first error is thrown by await().
+     *
+     *  <p>If the only reader of an actor's output is a port partitioned by
+     *  a shuffle, the actor's tasks add their output directly to the
+     *  shuffle instead of collecting it. The output of other actors is
+     *  kept until every stage reading it has finished.</p>
+     */
+    private class StageScheduler {
+
+        /** Create a new scheduler.
+         *  @param executor the executor for the stages.
+         */
+        public StageScheduler(Executor executor) {
+            _executor = executor;
+        }
+
+        /** Close the shuffles of the stages that did not execute. */
+        public void close() {
+            for(Shuffle shuffle : _inputShuffles.values()) {
+                shuffle.close();
+            }
+        }
+
+        /** Wait for all the scheduled stages to finish. */
+        public void await() throws IllegalActionException {
+            try {
+                CompletableFuture.allOf(_stages.values().toArray(
+                        new CompletableFuture<?>[_stages.size()])).get();
+            } catch(InterruptedException e) {
+                _stopStages();
+                throw new IllegalActionException(_director, e, "Interrupted while executing the job.");
+            } catch(ExecutionException e) {
+                // the first error is thrown below.
+            }
+
+            final Throwable error = _error.get();
+            if(error instanceof IllegalActionException) {
+                throw (IllegalActionException) error;
+            } else if(error != null) {
+                throw new IllegalActionException(_director, error, "Error executing the job.");
+            }
+        }
+
+        /** Schedule the stage for an actor and the stages upstream of it.
+         *  @return the future of the stage.
+         */
+        public CompletableFuture<Void> schedule(final NamedObj actor) throws IllegalActionException {
+
+            CompletableFuture<Void> retval = _stages.get(actor);
+            if(retval != null) {
+                return retval;
+            }
+
+            final List<IOPort> ports = new ArrayList<IOPort>();
+            if(actor instanceof DDPDataSink) {
+                ports.add(((DDPDataSink)actor).in);
+            } else if(actor instanceof SingleInputPatternActor) {
+                // the input of fused Map actors is read by the first one.
+                final List<org.kepler.ddp.actor.pattern.Map> fusedMaps = _fusedMaps.get(actor);
+                ports.add(fusedMaps.isEmpty() ? ((SingleInputPatternActor)actor).in :
+                    fusedMaps.get(0).in);
+                if(actor instanceof DualInputPatternActor) {
+                    ports.add(((DualInputPatternActor)actor).in2);
+                }
+            } else if(!(actor instanceof DDPDataSource)) {
+                throw new IllegalActionException(actor, "Unsupported actor for the " +
+                        _engineName + " engine.");
+            }
+
+            // a DDPDataSink whose input is in the result cache does not
+            // depend on any other stage. the entry is read here so that
+            // the stages are scheduled if it cannot be read.
+            final String fingerprint;
+            List<KeyValuePair> cachedData = null;
+            if(actor instanceof DDPDataSink && _resultCache != null) {
+                fingerprint = _getFingerprint(actor, _fingerprints);
+                try {
+                    cachedData = _resultCache.get(fingerprint);
+                } catch(IllegalActionException e) {
+                    _log.warn("Could not read the cached result for " + actor.getFullName() +
+                            "; computing it again.", e);
+                }
+                if(cachedData != null) {
+                    _log.info("Using cached result for " + actor.getFullName() + " from " +
+                            _resultCache.getDirectory() + ".");
+                    ports.clear();
+                }
+            } else {
+                fingerprint = null;
+            }
+            final List<KeyValuePair> cached = cachedData;
+
+            // an actor whose output is only read by a shuffled port of this
+            // actor streams its output to the shuffle.
+            for(IOPort port : _getShuffledPorts(actor)) {
+                final Shuffle shuffle = _createShuffle((SingleInputPatternActor) actor, port,
+                        _getKeyComparator((SingleInputPatternActor) actor));
+                _inputShuffles.put(port, shuffle);
+                for(Object object : port.sourcePortList()) {
+                    if(((IOPort)object).sinkPortList().size() == 1) {
+                        _outputTargets.put(((IOPort)object).getContainer(), shuffle);
+                    }
+                }
+            }
+
+            final List<CompletableFuture<Void>> upstream = new ArrayList<CompletableFuture<Void>>();
+            final List<NamedObj> readActors = new ArrayList<NamedObj>();
+            for(IOPort port : ports) {
+                final List<?> sourcePorts = port.sourcePortList();
+                if(sourcePorts.isEmpty()) {
+                    throw new IllegalActionException(port, "Port is not connected.");
+                }
+                for(Object object : sourcePorts) {
+                    final NamedObj source = ((IOPort)object).getContainer();
+                    upstream.add(schedule(source));
+                    readActors.add(source);
+                    AtomicInteger numReaders = _numReaders.get(source);
+                    if(numReaders == null) {
+                        numReaders = new AtomicInteger();
+                        _numReaders.put(source, numReaders);
+                    }
+                    numReaders.incrementAndGet();
+                }
+            }
+
+            retval = CompletableFuture.allOf(upstream.toArray(
+                    new CompletableFuture<?>[upstream.size()])).thenRunAsync(new Runnable() {
+                @Override
+                public void run() {
+                    if(_stopped) {
+                        return;
+                    }
+                    try {
+                        _run(actor, fingerprint, cached);
+                    } catch(Throwable t) {
+                        if(_error.compareAndSet(null, t)) {
+                            _stopStages();
+                        }
+                        throw new CompletionException(t);
+                    } finally {
+                        // release the output of the actors that have no more readers.
+                        for(NamedObj source : readActors) {
+                            if(_numReaders.get(source).decrementAndGet() == 0) {
+                                _outputs.remove(source);
+                            }
+                        }
+                    }
+                }
+            }, _executor);
+            _stages.put(actor, retval);
+            return retval;
+        }
+
+        /** Execute the stage for an actor.
+         *  @param actor the actor.
+         *  @param fingerprint the fingerprint of the input of a DDPDataSink
+         *  if the result cache is used, otherwise null.
+         *  @param cached the input of a DDPDataSink read from the result
+         *  cache, or null if it is not cached.
+         */
+        private void _run(NamedObj actor, String fingerprint, List<KeyValuePair> cached)
+                throws IllegalActionException {
+            final Shuffle target = _outputTargets.get(actor);
+            if(actor instanceof DDPDataSource) {
+                final List<KeyValuePair> output = _readSource((DDPDataSource) actor, target);
+                if(target == null) {
+                    _outputs.put((DDPPatternActor) actor, output);
+                }
+            } else if(actor instanceof SingleInputPatternActor) {
+                final List<KeyValuePair> output = _runPatternActor((SingleInputPatternActor) actor,
+                        _outputs, _inputShuffles, _outputTargets, target);
+                if(target == null) {
+                    _outputs.put((DDPPatternActor) actor, output);
+                }
+            } else {
+                final DDPDataSink sink = (DDPDataSink) actor;
+                final List<KeyValuePair> data;
+                if(cached != null) {
+                    data = cached;
+                } else {
+                    data = _getInputData(sink.in, _outputs);
+                }
+                if(!_stopped) {
+                    _writeSink(sink, data);
+                    if(fingerprint != null && cached == null) {
+                        try {
+                            _resultCache.put(fingerprint, data);
+                        } catch(IllegalActionException e) {
+                            _log.warn("Could not add the result for " + sink.getFullName() +
+                                    " to the cache.", e);
+                        }
+                    }
+                }
+            }
+        }
+
+        /** Stop the sub-workflows so that the running stages finish. */
+        private void _stopStages() {
+            _stopped = true;
+            for(SubWorkflowRunner runner : _activeRunners) {
+                runner.stop();
+            }
+        }
+
+        /** The first error thrown by a stage. */
+        private final AtomicReference<Throwable> _error = new AtomicReference<Throwable>();
+
+        /** The fingerprint of each actor. Only accessed by the director thread. */
+        private final Map<NamedObj,String> _fingerprints = new HashMap<NamedObj,String>();
+
+        /** The executor for the stages. */
+        private final Executor _executor;
+
+        /** The shuffle for each input port returned by _getShuffledPorts().
+         *  Only written by the director thread, before the stages writing
+         *  to the port are scheduled.
+         */
+        private final Map<IOPort,Shuffle> _inputShuffles = new ConcurrentHashMap<IOPort,Shuffle>();
+
+        /** The number of stages reading the output of each actor that have
+         *  not finished. Only added to by the director thread.
+         */
+        private final Map<NamedObj,AtomicInteger> _numReaders =
+                new ConcurrentHashMap<NamedObj,AtomicInteger>();
+
+        /** The key-value pairs written by each actor whose stage has finished,
+         *  and whose output is not added to a shuffle. Removed when the
+         *  stages reading them have finished.
+         */
+        private final Map<DDPPatternActor,List<KeyValuePair>> _outputs =
+                new ConcurrentHashMap<DDPPatternActor,List<KeyValuePair>>();
+
+        /** The shuffle that each actor adds its output to. Only written by
+         *  the director thread, before the stage for the actor is scheduled.
+         */
+        private final Map<NamedObj,Shuffle> _outputTargets = new ConcurrentHashMap<NamedObj,Shuffle>();
+
+        /** The stage for each actor. Only accessed by the director thread. */
+        private final Map<NamedObj,CompletableFuture<Void>> _stages =
+                new HashMap<NamedObj,CompletableFuture<Void>>();
+    }
+
+    /** A task that processes one partition of the input to a pattern
+     *  actor with a copy of its sub-workflow. Inputs are written to the
+     *  stub source actor in batches of up to BATCH_SIZE records, and the
+     *  output for each batch is collected at once.
+     */
+    private abstract class StubTask implements Callable<List<KeyValuePair>> {
+
+        /** Create a new task for a pattern actor.
+         *  @param actor the pattern actor.
+         *  @param numFields the number of fields in each input record.
+         */
+        public StubTask(SingleInputPatternActor actor, int numFields) throws IllegalActionException {
+            _modelName = actor.getName();
+            _runWorkflowLifecyclePerInput = actor.getRunWorkflowLifecyclePerInput();
+            _printExeSummary = actor.getPrintExeInfo();
+            _queueCapacity = actor.getStubQueueCapacity();
+            _lightLifecycleReset = actor.getLightLifecycleReset();
+            _numFields = numFields;
+        }
+
+        /** Get a sub-workflow from the pool for this task and each task fused
+         *  after it, process the partition, and return the output of the last task.
+         */
+        @Override
+        public List<KeyValuePair> call() throws Exception {
+
+            boolean processed = false;
+            try {
+                for(StubTask task = this; task != null; task = task._next) {
+                    task._runner = _runnerPool.borrow(task._modelName, task._runWorkflowLifecyclePerInput,
+                            task._printExeSummary, task._queueCapacity, task._lightLifecycleReset,
+                            _runInTaskThreads);
+                    // the sub-workflow may fail before the first output is collected.
+                    task._runner.setTaskThread(Thread.currentThread());
+                    _activeRunners.add(task._runner);
+                    task._output = new ArrayList<KeyValuePair>();
+                }
+                if(!_stopped && !_cancelled) {
+                    _process();
+                    for(StubTask task = this; task != null; task = task._next) {
+                        task._finish();
+                    }
+                }
+                processed = true;
+            } finally {
+                for(StubTask task = this; task != null; task = task._next) {
+                    if(task._runner != null) {
+                        _activeRunners.remove(task._runner);
+                        if(!processed) {
+                            _runnerPool.abort(task._runner);
+                        }
+                    }
+                }
+            }
+
+            StubTask last = this;
+            for(StubTask task = this; task != null; task = task._next) {
+                if(_log.isDebugEnabled()) {
+                    _log.debug(task._modelName + " stub queue high-water marks: source = " +
+                            task._runner.getSource().getQueueHighWaterMark() + " batches, sink = " +
+                            task._runner.getSink().getQueueHighWaterMark() + " outputs.");
+                }
+                try {
+                    _runnerPool.release(task._runner);
+                } catch(IllegalActionException e) {
+                    // do not leave the sub-workflows of the tasks fused after this one
+                    // borrowed from the pool.
+                    for(StubTask next = task._next; next != null; next = next._next) {
+                        _runnerPool.abort(next._runner);
+                    }
+                    throw e;
+                }
+                last = task;
+            }
+            return last._output;
+        }
+
+        /** Set the shuffle for the output of the last task fused after this one.
+         *  @param shuffle the shuffle. If null, the output is returned by call().
+         */
+        public void setOutput(Shuffle shuffle) {
+            StubTask last = this;
+            while(last._next != null) {
+                last = last._next;
+            }
+            last._shuffle = shuffle;
+        }
+
+        /** Stop the sub-workflows of this task and the tasks fused after it.
+         *  The task finishes without processing the rest of its partition.
+         */
+        public void stop() {
+            for(StubTask task = this; task != null; task = task._next) {
+                task._cancelled = true;
+                final SubWorkflowRunner runner = task._runner;
+                if(runner != null) {
+                    runner.stop();
+                }
+            }
+        }
+
+        /** Add a record to the current batch, and write the batch to the
+         *  sub-workflow if it is full.
+         *  @param fields the fields of the record.
+         */
+        protected void _addInput(Token... fields) throws IllegalActionException {
+            if(_columns == null) {
+                _columns = new Token[_numFields][BATCH_SIZE];
+            }
+            for(int i = 0; i < _numFields; i++) {
+                _columns[i][_batchSize] = fields[i];
+            }
+            _batchSize++;
+            if(_batchSize == BATCH_SIZE) {
+                _flush();
+            }
+        }
+
+        /** Write the last batch to the sub-workflow and collect the output
+         *  of the batches still being processed. Called after all the input
+         *  has been added, and after the tasks fused before this one have
+         *  finished.
+         */
+        protected void _finish() throws IllegalActionException {
+            _flush();
+            while(!_pendingBatches.isEmpty()) {
+                _collect();
+            }
+        }
+
+        /** Add the records in the partition with _addInput(). */
+        protected abstract void _process() throws IllegalActionException;
+
+        /** Add a key-value pair written by the task fused before this one.
+         *  By default, the pair is added as a record with _addInput().
+         */
+        protected void _receive(KeyValuePair pair) throws IllegalActionException {
+            _addInput(pair.getKey(), pair.getValue());
+        }
+
+        /** Write a batch of records to the stub source actor.
+         *  @param source the stub source actor.
+         *  @param columns the fields of the records; each array has the
+         *  same length.
+         */
+        protected abstract void _setInputs(StubSourceActor source, Token[][] columns)
+                throws IllegalActionException;
+
+        /** Collect the output of the oldest batch written to the sub-workflow. */
+        private void _collect() throws IllegalActionException {
+            _runner.collectOutput(_output, _pendingBatches.remove());
+            if(_next != null) {
+                // the output is written directly to the next sub-workflow.
+                for(KeyValuePair pair : _output) {
+                    _next._receive(pair);
+                }
+                _output.clear();
+            } else if(_shuffle != null) {
+                // the output is partitioned for the next stage as it is written.
+                _shuffle.addAll(_output);
+                _output.clear();
+            }
+        }
+
+        /** Write the current batch to the sub-workflow. If the maximum
+         *  number of batches are being processed, collect the output of
+         *  the oldest one.
+         */
+        private void _flush() throws IllegalActionException {
+            if(_batchSize == 0) {
+                return;
+            }
+            Token[][] columns = _columns;
+            if(_batchSize < BATCH_SIZE) {
+                columns = new Token[_numFields][];
+                for(int i = 0; i < _numFields; i++) {
+                    columns[i] = Arrays.copyOf(_columns[i], _batchSize);
+                }
+            }
+            final int count = _batchSize;
+            // the stub source actor keeps the arrays, so start a new batch.
+            _columns = null;
+            _batchSize = 0;
+            _setInputs(_runner.getSource(), columns);
+            _pendingBatches.add(count);
+            // the stub source actor holds the batches until the sub-workflow
+            // reads them, so it can process the next batches while the
+            // output of this one is collected.
+            if(_pendingBatches.size() >= _runner.getMaxPendingBatches()) {
+                _collect();
+            }
+        }
+
+        /** If true, the task was stopped because another task failed. */
+        private volatile boolean _cancelled;
+
+        /** The fields of the current batch. */
+        private Token[][] _columns;
+
+        /** The number of records in the current batch. */
+        private int _batchSize;
+
+        /** If true, only initialize and iterate the sub-workflow for each input. */
+        private final boolean _lightLifecycleReset;
+
+        /** The name of the sub-workflow. */
+        private final String _modelName;
+
+        /** The task fused after this one, or null. */
+        private StubTask _next;
+
+        /** The number of fields in each record. */
+        private final int _numFields;
+
+        /** The output collected from the sub-workflow. */
+        private List<KeyValuePair> _output;
+
+        /** The number of records in each batch written to the sub-workflow
+         *  whose output has not been collected.
+         */
+        private final Queue<Integer> _pendingBatches = new ArrayDeque<Integer>();
+
+        /** If true, print an execution summary each time the sub-workflow executes. */
+        private final boolean _printExeSummary;
+
+        /** The maximum number of inputs or outputs waiting in the stub actors. */
+        private final int _queueCapacity;
+
+        /** The sub-workflow executing the task. */
+        private volatile SubWorkflowRunner _runner;
+
+        /** The shuffle for the output, or null if the output is returned by call(). */
+        private Shuffle _shuffle;
+
+        /** If true, execute the full lifecycle of the sub-workflow for each input. */
+        private final boolean _runWorkflowLifecyclePerInput;
+    }
+
+    /** A task for a split of the input of a Map actor. */
+    private class MapTask extends StubTask {
+
+        /** Create a new task for a Map actor.
+         *  @param actor the Map actor.
+         *  @param split the key-value pairs in the split.
+         */
+        public MapTask(SingleInputPatternActor actor, List<KeyValuePair> split)
+                throws IllegalActionException {
+            super(actor, 2);
+            _split = split;
+        }
+
+        @Override
+        protected void _process() throws IllegalActionException {
+            for(KeyValuePair pair : _split) {
+                _addInput(pair.getKey(), pair.getValue());
+            }
+        }
+
+        @Override
+        protected void _setInputs(StubSourceActor source, Token[][] columns)
+                throws IllegalActionException {
+            ((MapInput) source).setInput(columns[0], columns[1]);
+        }
+
+        /** The key-value pairs in the split. */
+        private final List<KeyValuePair> _split;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The names of the attributes only used by Vergil or for documentation,
+     *  which are not added to fingerprints.
+     */
+    private static final Set<String> _FINGERPRINT_SKIPPED_NAMES = new HashSet<String>(Arrays.asList(
+            "_createdBy", "_hideAllParameters", "_hideName", "_iconDescription", "_showName",
+            "_smallIconDescription", "_vergilCenter", "_vergilSize", "_vergilZoomFactor",
+            "_windowProperties", "derivedFrom", "entityId", "KeplerDocumentation"));
+
+    /** The number of seconds to wait for the tasks still running when a job finishes. */
+    private static final long _TASK_TERMINATION_TIMEOUT = 60;
+
+    /** The sub-workflows currently executing. */
+    private Set<SubWorkflowRunner> _activeRunners = Collections.newSetFromMap(
+            new ConcurrentHashMap<SubWorkflowRunner,Boolean>());
+
+    /** The Map actors fused before each pattern actor in the current job. */
+    private Map<SingleInputPatternActor,List<org.kepler.ddp.actor.pattern.Map>> _fusedMaps;
+
+    /** The maximum number of stages executed at the same time. */
+    private int _maxConcurrentStages;
+
+    /** The pool executing the tasks for the current job. */
+    private ForkJoinPool _pool;
+
+    /** The cache of the results of previous jobs, or null if results are not cached. */
+    private ResultCache _resultCache;
+
+    /** The sub-workflows not being used by a task in the current job. */
+    private SubWorkflowPool _runnerPool;
+
+    /** The number of threads in the pool. */
+    private int _poolSize = 1;
+
+    /** If true, sub-workflows are iterated in the threads of the tasks. */
+    private boolean _runInTaskThreads;
+
+    /** The maximum encoded size in bytes of the key-value pairs held in
+     *  memory by a shuffle.
+     */
+    private int _shuffleBufferSize;
+
+    /** If true, the user requested the workflow to stop. */
+    private volatile boolean _stopped = false;
+
+    /** Logging. */
+    private final static Log _log = LogFactory.getLog(LocalEngine.class);
+}
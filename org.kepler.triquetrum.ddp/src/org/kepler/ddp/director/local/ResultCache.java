@@ -0,0 +1,326 @@
+/* A content-addressed cache of Local engine job results.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.kepler.ddp.TokenCodec;
+
+import ptolemy.data.Token;
+import ptolemy.kernel.util.IllegalActionException;
+
+/** A cache of the key-value pairs written to DDPDataSink actors, stored
+ *  in a directory and addressed by a fingerprint of everything the pairs
+ *  were computed from. Each entry is a file named by its fingerprint.
+ *  Entries are written to a temporary file and then renamed, so several
+ *  jobs may share the directory. If the cache has a maximum size, the
+ *  least recently used entries are deleted after an entry is added until
+ *  the entries fit in the maximum size. An entry is used when it is added
+ *  or read, and the modification time of its file is the time it was last
+ *  used.
+ *
+ *  @version $Id$
+ */
+public class ResultCache {
+
+    /** Create a new ResultCache without a maximum size.
+     *  @param directory the directory containing the entries. It is
+     *  created if it does not exist.
+     */
+    public ResultCache(File directory) throws IllegalActionException {
+        this(directory, 0);
+    }
+
+    /** Create a new ResultCache.
+     *  @param directory the directory containing the entries. It is
+     *  created if it does not exist.
+     *  @param maxSize the maximum size in bytes of the entries. If 0, the
+     *  size is not limited. The most recently added entry is kept even if
+     *  it is larger.
+     */
+    public ResultCache(File directory, long maxSize) throws IllegalActionException {
+        if(maxSize < 0) {
+            throw new IllegalActionException("The maximum size of the result cache cannot be negative.");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalActionException("Could not create result cache directory " + directory);
+        }
+        _directory = directory;
+        _maxSize = maxSize;
+    }
+
+    /** Get the key-value pairs for a fingerprint. An entry written in a
+     *  different format, e.g., by an older version, is deleted.
+     *  @return the pairs, or null if the cache does not contain the
+     *  fingerprint or the entry was written in a different format.
+     *  @exception IllegalActionException If the entry cannot be read.
+     *  The entry is deleted.
+     */
+    public List<KeyValuePair> get(String fingerprint) throws IllegalActionException {
+        final File file = _getFile(fingerprint);
+        if(!file.isFile()) {
+            return null;
+        }
+        try(DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            try {
+                TokenCodec.readHeader(input);
+            } catch(IOException e) {
+                // the entry was written in a different format, so compute
+                // the result again.
+                if(!file.delete()) {
+                    file.deleteOnExit();
+                }
+                return null;
+            }
+            final int size = input.readInt();
+            final List<KeyValuePair> retval = new ArrayList<KeyValuePair>(size);
+            for(int i = 0; i < size; i++) {
+                retval.add(new KeyValuePair(TokenCodec.read(input), TokenCodec.read(input)));
+            }
+            // mark the entry as used so that it is evicted last.
+            file.setLastModified(System.currentTimeMillis());
+            return retval;
+        } catch(IOException e) {
+            // delete the entry so that the result is computed in the next job.
+            if(!file.delete()) {
+                file.deleteOnExit();
+            }
+            throw new IllegalActionException(null, e, "Error reading result cache entry " + file);
+        }
+    }
+
+    /** Get the directory containing the entries. */
+    public File getDirectory() {
+        return _directory;
+    }
+
+    /** Get the maximum size in bytes of the entries, or 0 if the size
+     *  is not limited.
+     */
+    public long getMaxSize() {
+        return _maxSize;
+    }
+
+    /** Add the key-value pairs for a fingerprint. An existing entry for
+     *  the fingerprint is replaced. If the cache has a maximum size, the
+     *  least recently used entries are then evicted.
+     */
+    public void put(String fingerprint, List<KeyValuePair> pairs) throws IllegalActionException {
+        final File file = _getFile(fingerprint);
+        File temporary = null;
+        try {
+            temporary = File.createTempFile(fingerprint, ".tmp", _directory);
+            try(DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                TokenCodec.writeHeader(output);
+                output.writeInt(pairs.size());
+                for(KeyValuePair pair : pairs) {
+                    TokenCodec.write(pair.getKey(), output);
+                    TokenCodec.write(pair.getValue(), output);
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            if(temporary != null && !temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+            throw new IllegalActionException(null, e, "Error writing result cache entry " + file);
+        }
+        if(_maxSize > 0) {
+            _evict(file);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      public inner classes               //////
+
+    /** Computes a fingerprint from strings and tokens. Tokens are encoded
+     *  with TokenCodec directly into the digest, so large inputs are not
+     *  converted to strings or copied.
+     */
+    public static class Fingerprint {
+
+        /** Create a new Fingerprint. */
+        public Fingerprint() {
+            try {
+                _digest = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException e) {
+                throw new RuntimeException("Error computing fingerprint: " + e.getMessage());
+            }
+            _output = new DataOutputStream(new DigestOutputStream(_NULL_OUTPUT, _digest));
+        }
+
+        /** Add a string to the fingerprint. */
+        public void add(String value) throws IllegalActionException {
+            try {
+                // write the length so that consecutive values cannot run together.
+                _output.writeByte(_STRING);
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                _output.writeInt(bytes.length);
+                _output.write(bytes);
+            } catch(IOException e) {
+                throw new IllegalActionException(null, e, "Error computing fingerprint.");
+            }
+        }
+
+        /** Add a token to the fingerprint. */
+        public void add(Token token) throws IllegalActionException {
+            try {
+                _output.writeByte(_TOKEN);
+                TokenCodec.write(token, _output);
+            } catch(IOException e) {
+                throw new IllegalActionException(null, e, "Error computing fingerprint.");
+            }
+        }
+
+        /** Get the fingerprint. No more values can be added.
+         *  @return the hex-encoded SHA-256 hash of the values.
+         */
+        public String getValue() {
+            final StringBuilder buf = new StringBuilder();
+            for(byte b : _digest.digest()) {
+                buf.append(String.format("%02x", b));
+            }
+            return buf.toString();
+        }
+
+        /** The digest of the values. */
+        private final MessageDigest _digest;
+
+        /** The stream writing the values to the digest. */
+        private final DataOutputStream _output;
+
+        /** Marks a string value. */
+        private static final byte _STRING = 0;
+
+        /** Marks a token value. */
+        private static final byte _TOKEN = 1;
+
+        /** An output stream discarding the bytes after they are digested. */
+        private static final OutputStream _NULL_OUTPUT = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private methods                    //////
+
+    /** Delete the least recently used entries until the entries fit in
+     *  the maximum size. Another job sharing the directory may delete or
+     *  read the same entries, so entries that cannot be deleted are skipped.
+     *  @param added the entry just added, which is not deleted.
+     */
+    private void _evict(File added) {
+        final File[] entries = _directory.listFiles(_ENTRY_FILTER);
+        if(entries == null) {
+            return;
+        }
+        final long[] sizes = new long[entries.length];
+        long total = 0;
+        for(int i = 0; i < entries.length; i++) {
+            sizes[i] = entries[i].length();
+            total += sizes[i];
+        }
+        if(total <= _maxSize) {
+            return;
+        }
+        // read the modification times once so that the order does not
+        // change while sorting.
+        final long[] modified = new long[entries.length];
+        final Integer[] order = new Integer[entries.length];
+        for(int i = 0; i < entries.length; i++) {
+            modified[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for(int i = 0; i < order.length && total > _maxSize; i++) {
+            final File entry = entries[order[i]];
+            if(!entry.equals(added) && entry.delete()) {
+                total -= sizes[order[i]];
+            }
+        }
+    }
+
+    /** Get the file for a fingerprint. */
+    private File _getFile(String fingerprint) {
+        return new File(_directory, fingerprint + _SUFFIX);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** The directory containing the entries. */
+    private final File _directory;
+
+    /** The maximum size in bytes of the entries, or 0 if not limited. */
+    private final long _maxSize;
+
+    /** The suffix of the entry files. */
+    private static final String _SUFFIX = ".result";
+
+    /** Accepts the entry files, but not the temporary files. */
+    private static final FileFilter _ENTRY_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(_SUFFIX);
+        }
+    };
+}
@@ -0,0 +1,619 @@
+/* Hash-partition key-value pairs between stages of the Local engine.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.kepler.ddp.TokenCodec;
+
+import ptolemy.data.Token;
+import ptolemy.kernel.util.IllegalActionException;
+
+/** Hash-partition key-value pairs between stages of the Local engine.
+ *  Pairs are added to in-memory buffers, one per partition. The size of
+ *  a pair is the length of its TokenCodec encoding. When the size of the
+ *  buffered pairs exceeds the memory budget, the largest buffer is
+ *  encoded directly to the spill file for its partition. The tokens take
+ *  more memory than their encoding, so the budget is a lower bound on
+ *  the memory used by the buffers.
+ *  Each partition is then read back as a stream from memory-mapped
+ *  segments of the file, first the spilled pairs and then the buffered
+ *  pairs, in the order they were added.
+ *
+ *  <p>If a key comparator is given, each spill is sorted by key before it
+ *  is written, so every spilled segment is a sorted run. A partition is
+ *  then read back as a k-way merge of its runs and the sorted buffer,
+ *  so pairs with equal keys are adjacent. Pairs with equal keys are
+ *  read in the order they were added. Only one buffer of pairs is held
+ *  in memory for each partition, regardless of the size of the partition.</p>
+ *
+ *  <p>Pairs may be added by several threads, e.g., by the tasks of the
+ *  stages writing to the shuffle, but all the pairs must be added before
+ *  any partition is read. Pairs added by different threads are in the
+ *  order they were added to the shuffle. Different partitions may be
+ *  read concurrently, but each partition should be read by one reader
+ *  at a time. The merge of a partition is done by the thread reading it,
+ *  so merges run in parallel only across partitions.</p>
+ *
+ *  <p>Keys are assigned to partitions by their hash code unless a
+ *  Partitioner is given. If the key comparator treats keys with different
+ *  hash codes as equal, e.g., a grouping comparator that compares part of
+ *  the key, a Partitioner consistent with the comparator must be given,
+ *  or the shuffle must have a single partition, so that equal keys are
+ *  read from the same partition.</p>
+ *
+ *  @version $Id$
+ */
+public class Shuffle {
+
+    /** Create a new Shuffle.
+     *  @param numPartitions the number of partitions.
+     *  @param maxBufferedBytes the maximum encoded size in bytes of the
+     *  pairs buffered in memory for all partitions.
+     *  @param spillDirectory the directory for the spill files.
+     */
+    public Shuffle(int numPartitions, long maxBufferedBytes, File spillDirectory) {
+        this(numPartitions, maxBufferedBytes, spillDirectory, null);
+    }
+
+    /** Create a new Shuffle that reads each partition sorted by key.
+     *  @param numPartitions the number of partitions.
+     *  @param maxBufferedBytes the maximum encoded size in bytes of the
+     *  pairs buffered in memory for all partitions.
+     *  @param spillDirectory the directory for the spill files.
+     *  @param keyComparator the comparator to sort the keys in each partition.
+     *  If null, the partitions are not sorted. Partitions may be read
+     *  concurrently, so the comparator must be thread-safe.
+     */
+    public Shuffle(int numPartitions, long maxBufferedBytes, File spillDirectory,
+            Comparator<Token> keyComparator) {
+        this(numPartitions, maxBufferedBytes, spillDirectory, keyComparator, HASH_PARTITIONER);
+    }
+
+    /** Create a new Shuffle that reads each partition sorted by key and
+     *  assigns keys to partitions with a Partitioner.
+     *  @param numPartitions the number of partitions.
+     *  @param maxBufferedBytes the maximum encoded size in bytes of the
+     *  pairs buffered in memory for all partitions.
+     *  @param spillDirectory the directory for the spill files.
+     *  @param keyComparator the comparator to sort the keys in each partition.
+     *  If null, the partitions are not sorted. Partitions may be read
+     *  concurrently, so the comparator must be thread-safe.
+     *  @param partitioner assigns keys to partitions. Keys that are equal
+     *  according to keyComparator must be assigned to the same partition.
+     *  Pairs may be added by several threads, so the partitioner must be
+     *  thread-safe.
+     */
+    public Shuffle(int numPartitions, long maxBufferedBytes, File spillDirectory,
+            Comparator<Token> keyComparator, Partitioner partitioner) {
+        if(numPartitions < 1) {
+            throw new IllegalArgumentException("Number of partitions must be at least 1.");
+        }
+        _maxBufferedBytes = maxBufferedBytes;
+        _keyComparator = keyComparator;
+        _partitioner = partitioner;
+        _spillDirectory = spillDirectory;
+        _partitions = new Partition[numPartitions];
+        for(int i = 0; i < numPartitions; i++) {
+            _partitions[i] = new Partition(i);
+        }
+    }
+
+    /** Add a key-value pair to the partition for its key. */
+    public void add(KeyValuePair pair) throws IllegalActionException {
+        long length;
+        try {
+            length = TokenCodec.getEncodedLength(pair.getKey()) +
+                    TokenCodec.getEncodedLength(pair.getValue());
+        } catch(IOException e) {
+            throw new IllegalActionException(null, e, "Error getting the size of a pair for " +
+                    _spillDirectory);
+        }
+        synchronized(this) {
+            if(_closed) {
+                throw new IllegalActionException("Shuffle for " + _spillDirectory + " is closed.");
+            }
+            _numPairs++;
+            final Partition added = _partitions[_partitioner.partition(pair.getKey(), _partitions.length)];
+            added.buffer.add(pair);
+            added.bufferedBytes += length;
+            _numBufferedBytes += length;
+            if(_numBufferedBytes > _maxBufferedBytes) {
+                Partition largest = _partitions[0];
+                for(Partition partition : _partitions) {
+                    if(partition.bufferedBytes > largest.bufferedBytes) {
+                        largest = partition;
+                    }
+                }
+                _numBufferedBytes -= largest.bufferedBytes;
+                largest.spill();
+            }
+        }
+    }
+
+    /** Add a list of key-value pairs to the partitions for their keys. */
+    public synchronized void addAll(List<KeyValuePair> pairs) throws IllegalActionException {
+        for(KeyValuePair pair : pairs) {
+            add(pair);
+        }
+    }
+
+    /** Delete the spill files. No pairs may be added after the shuffle is closed. */
+    public synchronized void close() {
+        _closed = true;
+        for(Partition partition : _partitions) {
+            partition.close();
+        }
+    }
+
+    /** Get the number of pairs added to the shuffle. */
+    public synchronized long getNumPairs() {
+        return _numPairs;
+    }
+
+    /** Get the number of partitions. */
+    public int getNumPartitions() {
+        return _partitions.length;
+    }
+
+    /** Get the number of pairs that were spilled to files. */
+    public synchronized long getNumSpilledPairs() {
+        long retval = 0;
+        for(Partition partition : _partitions) {
+            retval += partition.numSpilledPairs;
+        }
+        return retval;
+    }
+
+    /** Get the comparator to sort the keys, or null if the partitions
+     *  are not sorted.
+     */
+    public Comparator<Token> getKeyComparator() {
+        return _keyComparator;
+    }
+
+    /** Open a partition for reading. */
+    public PartitionReader open(int partition) {
+        final Partition opened = _partitions[partition];
+        final List<Run> runs = new ArrayList<Run>(opened.segments.size() + 1);
+        for(Segment segment : opened.segments) {
+            runs.add(new SegmentRun(opened, segment, runs.size()));
+        }
+        synchronized(opened) {
+            if(_keyComparator != null && !opened.bufferSorted) {
+                Collections.sort(opened.buffer, opened.pairComparator);
+                opened.bufferSorted = true;
+            }
+        }
+        runs.add(new BufferRun(opened.buffer, runs.size()));
+        return new PartitionReader(runs, _keyComparator);
+    }
+
+    /** Get the partition for a key by its hash code.
+     *  @param key the key.
+     *  @param numPartitions the number of partitions.
+     */
+    public static int partition(Token key, int numPartitions) {
+        return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    /** The partitioner that assigns keys to partitions by their hash code. */
+    public static final Partitioner HASH_PARTITIONER = new Partitioner() {
+        @Override
+        public int partition(Token key, int numPartitions) {
+            return Shuffle.partition(key, numPartitions);
+        }
+    };
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      inner classes                      //////
+
+    /** Assigns keys to the partitions of a shuffle. A grouping comparator
+     *  class named in Reduce.groupingComparatorClass may implement this
+     *  interface so that the Local engine can partition the input of the
+     *  Reduce consistently with the comparator.
+     */
+    public interface Partitioner {
+
+        /** Get the partition for a key.
+         *  @param key the key.
+         *  @param numPartitions the number of partitions.
+         *  @return a partition between 0 and numPartitions - 1.
+         */
+        public int partition(Token key, int numPartitions);
+    }
+
+    /** Reads the key-value pairs in a partition. */
+    public static class PartitionReader {
+
+        /** Create a new reader for the runs in a partition.
+         *  @param runs the spilled segments followed by the in-memory buffer.
+         *  @param keyComparator if not null, the runs are sorted by key
+         *  and are merged.
+         */
+        private PartitionReader(List<Run> runs, final Comparator<Token> keyComparator) {
+            _runs = runs;
+            if(keyComparator != null) {
+                _heads = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+                    @Override
+                    public int compare(Run run1, Run run2) {
+                        final int retval = keyComparator.compare(run1.head.getKey(), run2.head.getKey());
+                        // pairs with equal keys are read from the earlier run first
+                        // so that they are in the order they were added.
+                        return retval != 0 ? retval : Integer.compare(run1.index, run2.index);
+                    }
+                });
+            } else {
+                _heads = null;
+            }
+        }
+
+        /** Get the next key-value pair in the partition, or null if
+         *  all the pairs have been read.
+         */
+        public KeyValuePair next() throws IllegalActionException {
+
+            if(_heads == null) {
+                // read the spilled segments first, since they were added first.
+                while(_runIndex < _runs.size()) {
+                    final KeyValuePair pair = _runs.get(_runIndex).read();
+                    if(pair != null) {
+                        return pair;
+                    }
+                    _runIndex++;
+                }
+                return null;
+            }
+
+            // k-way merge of the sorted runs.
+            if(!_merging) {
+                for(Run run : _runs) {
+                    if(run.advance()) {
+                        _heads.add(run);
+                    }
+                }
+                _merging = true;
+            }
+            final Run run = _heads.poll();
+            if(run == null) {
+                return null;
+            }
+            final KeyValuePair retval = run.head;
+            if(run.advance()) {
+                _heads.add(run);
+            }
+            return retval;
+        }
+
+        /** The runs ordered by their next pair when merging, or null if
+         *  the runs are read one after the other.
+         */
+        private final PriorityQueue<Run> _heads;
+
+        /** True after the first pair of each run was read for merging. */
+        private boolean _merging;
+
+        /** The index of the current run when not merging. */
+        private int _runIndex;
+
+        /** The runs in the partition. */
+        private final List<Run> _runs;
+    }
+
+    /** One partition of the shuffle. */
+    private class Partition {
+
+        /** Create a new partition. */
+        Partition(int index) {
+            this.index = index;
+        }
+
+        /** Delete the spill file. */
+        void close() {
+            if(_channel != null) {
+                try {
+                    _channel.close();
+                } catch(IOException e) {
+                    // ignore since the file is deleted.
+                }
+                _channel = null;
+                // NOTE: the file cannot be deleted on some platforms while
+                // mapped buffers are reachable.
+                if(!_file.delete()) {
+                    _file.deleteOnExit();
+                }
+            }
+        }
+
+        /** Map a spilled segment for reading. */
+        ByteBuffer map(Segment segment) throws IOException {
+            synchronized(this) {
+                return _channel.map(FileChannel.MapMode.READ_ONLY,
+                        segment.offset, segment.length);
+            }
+        }
+
+        /** Append the buffered pairs to the spill file and clear the buffer.
+         *  The pairs are encoded directly to the file in one or more segments.
+         */
+        void spill() throws IllegalActionException {
+
+            if(buffer.isEmpty()) {
+                return;
+            }
+
+            if(_keyComparator != null) {
+                // the sort is stable, so pairs with equal keys stay in order.
+                Collections.sort(buffer, pairComparator);
+            }
+
+            try {
+                if(_channel == null) {
+                    if(!_spillDirectory.exists() && !_spillDirectory.mkdirs()) {
+                        throw new IOException("Could not create directory " + _spillDirectory);
+                    }
+                    _file = new File(_spillDirectory, "shuffle-" + index + ".spill");
+                    _channel = new RandomAccessFile(_file, "rw").getChannel();
+                }
+
+                long offset = _channel.size();
+                _channel.position(offset);
+                // NOTE: the streams are not closed since that closes the channel.
+                final BufferedOutputStream bufferedOutput = new BufferedOutputStream(
+                        Channels.newOutputStream(_channel), _SPILL_WRITE_BUFFER_SIZE);
+                DataOutputStream output = new DataOutputStream(bufferedOutput);
+                TokenCodec.writeHeader(output);
+                int numPairs = 0;
+                for(KeyValuePair pair : buffer) {
+                    TokenCodec.write(pair.getKey(), output);
+                    TokenCodec.write(pair.getValue(), output);
+                    numPairs++;
+                    // each segment is mapped as one buffer when it is read,
+                    // so start a new segment before it gets too large. a sorted
+                    // spill is still read correctly since each segment is sorted.
+                    if(output.size() >= _MAX_SEGMENT_LENGTH) {
+                        output.flush();
+                        segments.add(new Segment(offset, output.size(), numPairs));
+                        offset += output.size();
+                        output = new DataOutputStream(bufferedOutput);
+                        TokenCodec.writeHeader(output);
+                        numPairs = 0;
+                    }
+                }
+                output.flush();
+                if(numPairs > 0) {
+                    segments.add(new Segment(offset, output.size(), numPairs));
+                } else {
+                    // remove the header of the empty segment.
+                    _channel.truncate(offset);
+                }
+            } catch(IOException e) {
+                throw new IllegalActionException(null, e, "Error spilling shuffle partition " +
+                        index + " to " + _spillDirectory);
+            }
+
+            numSpilledPairs += buffer.size();
+            buffer = new ArrayList<KeyValuePair>();
+            bufferedBytes = 0;
+        }
+
+        /** The pairs buffered in memory. */
+        List<KeyValuePair> buffer = new ArrayList<KeyValuePair>();
+
+        /** The encoded size of the pairs in the buffer. */
+        long bufferedBytes;
+
+        /** True if the buffer has been sorted for reading. */
+        boolean bufferSorted;
+
+        /** The index of the partition. */
+        final int index;
+
+        /** Compares the keys of two pairs. */
+        final Comparator<KeyValuePair> pairComparator = new Comparator<KeyValuePair>() {
+            @Override
+            public int compare(KeyValuePair pair1, KeyValuePair pair2) {
+                return _keyComparator.compare(pair1.getKey(), pair2.getKey());
+            }
+        };
+
+        /** The number of pairs spilled to the file. */
+        long numSpilledPairs;
+
+        /** The spilled segments in the file. */
+        final List<Segment> segments = new ArrayList<Segment>();
+
+        /** The channel for the spill file. */
+        private FileChannel _channel;
+
+        /** The spill file. */
+        private File _file;
+    }
+
+    /** A sequence of key-value pairs in a partition. */
+    private static abstract class Run {
+
+        Run(int index) {
+            this.index = index;
+        }
+
+        /** Read the next pair into head.
+         *  @return false if there are no more pairs.
+         */
+        boolean advance() throws IllegalActionException {
+            head = read();
+            return head != null;
+        }
+
+        /** Read the next pair, or return null if there are no more pairs. */
+        abstract KeyValuePair read() throws IllegalActionException;
+
+        /** The last pair read by advance(). */
+        KeyValuePair head;
+
+        /** The position of the run in the partition. */
+        final int index;
+    }
+
+    /** A run of the pairs buffered in memory. */
+    private static class BufferRun extends Run {
+
+        BufferRun(List<KeyValuePair> buffer, int index) {
+            super(index);
+            _buffer = buffer;
+        }
+
+        @Override
+        KeyValuePair read() {
+            if(_position < _buffer.size()) {
+                return _buffer.get(_position++);
+            }
+            return null;
+        }
+
+        /** The buffer. */
+        private final List<KeyValuePair> _buffer;
+
+        /** The index of the next pair in the buffer. */
+        private int _position;
+    }
+
+    /** A run of the pairs in a spilled segment. */
+    private static class SegmentRun extends Run {
+
+        SegmentRun(Partition partition, Segment segment, int index) {
+            super(index);
+            _partition = partition;
+            _segment = segment;
+        }
+
+        @Override
+        KeyValuePair read() throws IllegalActionException {
+            if(_numRead == _segment.numPairs) {
+                return null;
+            }
+            try {
+                if(_input == null) {
+                    _input = _partition.map(_segment);
+                    TokenCodec.readHeader(_input);
+                }
+                // the tokens are decoded directly from the mapped buffer.
+                final KeyValuePair retval = new KeyValuePair(TokenCodec.read(_input),
+                        TokenCodec.read(_input));
+                _numRead++;
+                if(_numRead == _segment.numPairs) {
+                    _input = null;
+                }
+                return retval;
+            } catch(IOException e) {
+                throw new IllegalActionException(null, e, "Error reading shuffle partition " +
+                        _partition.index + ".");
+            }
+        }
+
+        /** The mapped segment, or null if it is not open. */
+        private ByteBuffer _input;
+
+        /** The number of pairs read from the segment. */
+        private int _numRead;
+
+        /** The partition containing the segment. */
+        private final Partition _partition;
+
+        /** The segment. */
+        private final Segment _segment;
+    }
+
+    /** A range of a spill file written by one spill. */
+    private static class Segment {
+
+        Segment(long offset, int length, int numPairs) {
+            this.offset = offset;
+            this.length = length;
+            this.numPairs = numPairs;
+        }
+
+        /** The position of the segment in the file. */
+        final long offset;
+
+        /** The number of bytes in the segment. */
+        final int length;
+
+        /** The number of pairs in the segment. */
+        final int numPairs;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                      private fields                     //////
+
+    /** If true, the shuffle has been closed. */
+    private boolean _closed;
+
+    /** The comparator to sort the keys, or null if the partitions are not sorted. */
+    private final Comparator<Token> _keyComparator;
+
+    /** The maximum encoded size of the pairs buffered in memory. */
+    private final long _maxBufferedBytes;
+
+    /** The encoded size of the pairs buffered in memory. */
+    private long _numBufferedBytes;
+
+    /** The number of pairs added to the shuffle. */
+    private long _numPairs;
+
+    /** Assigns keys to partitions. */
+    private final Partitioner _partitioner;
+
+    /** The partitions. */
+    private final Partition[] _partitions;
+
+    /** The directory for the spill files. */
+    private final File _spillDirectory;
+
+    /** The maximum number of bytes in a spilled segment, after which a new
+     *  segment is started.
+     */
+    private static final int _MAX_SEGMENT_LENGTH = 1 << 30;
+
+    /** The size of the buffer for writing a spill. */
+    private static final int _SPILL_WRITE_BUFFER_SIZE = 1 << 16;
+}
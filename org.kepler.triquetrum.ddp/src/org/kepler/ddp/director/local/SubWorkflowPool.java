@@ -0,0 +1,172 @@
+/* A pool of sub-workflows for the tasks of the Local engine.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ptolemy.kernel.util.IllegalActionException;
+
+/** A pool of sub-workflows for the tasks of the Local engine. Loading a
+ *  sub-workflow clones the model, creates an effigy, and starts a Manager,
+ *  which can take longer than processing a small partition. Instead of
+ *  closing the sub-workflow when a task finishes, the task returns it to
+ *  the pool, and the next task for the same pattern actor uses it without
+ *  any setup. Sub-workflows in the pool continue executing and wait for
+ *  their next inputs.
+ *
+ *  <p>Since a sub-workflow may process several partitions, its actors
+ *  are initialized once per job instead of once per partition.</p>
+ *
+ *  @version $Id$
+ */
+public class SubWorkflowPool {
+
+    /** Create a new SubWorkflowPool.
+     *  @param redirectDir the directory to redirect display actors.
+     */
+    public SubWorkflowPool(String redirectDir) {
+        _redirectDir = redirectDir;
+    }
+
+    /** Stop a sub-workflow borrowed from the pool without returning it,
+     *  e.g., when its task fails or is cancelled.
+     */
+    public void abort(SubWorkflowRunner runner) {
+        _runnerKeys.remove(runner);
+        runner.abort();
+    }
+
+    /** Get a sub-workflow from the pool, or load a new one if none are
+     *  available. A sub-workflow in the pool is only used if it was loaded
+     *  with the same settings.
+     *  @param modelName the name of the sub-workflow registered with the engine.
+     *  @param runWorkflowLifecyclePerInput if true, execute the full lifecycle
+     *  of the sub-workflow for each input.
+     *  @param printExeSummary if true, print an execution summary each time the
+     *  sub-workflow executes.
+     *  @param queueCapacity the maximum number of inputs or outputs waiting
+     *  in the stub actors. If 0, the default capacity is used.
+     *  @param lightLifecycleReset if true and the full lifecycle is executed
+     *  for each input, only initialize and iterate the sub-workflow for each
+     *  input after the first.
+     *  @param runInTaskThread if true and the full lifecycle is not executed
+     *  for each input, iterate the sub-workflow in the task's thread.
+     */
+    public SubWorkflowRunner borrow(String modelName, boolean runWorkflowLifecyclePerInput,
+            boolean printExeSummary, int queueCapacity, boolean lightLifecycleReset,
+            boolean runInTaskThread) throws IllegalActionException {
+        final List<Object> key = Arrays.<Object>asList(modelName, runWorkflowLifecyclePerInput,
+                printExeSummary, queueCapacity, lightLifecycleReset, runInTaskThread);
+        final Queue<SubWorkflowRunner> idle = _idleRunners.get(key);
+        if(idle != null) {
+            final SubWorkflowRunner runner = idle.poll();
+            if(runner != null) {
+                return runner;
+            }
+        }
+        final SubWorkflowRunner runner = new SubWorkflowRunner(modelName,
+                runWorkflowLifecyclePerInput, printExeSummary, _redirectDir,
+                queueCapacity, lightLifecycleReset, runInTaskThread);
+        _runnerKeys.put(runner, key);
+        return runner;
+    }
+
+    /** Finish executing all the sub-workflows in the pool and wait for
+     *  them to complete.
+     */
+    public void close() throws IllegalActionException {
+        IllegalActionException error = null;
+        for(Queue<SubWorkflowRunner> idle : _idleRunners.values()) {
+            SubWorkflowRunner runner;
+            while((runner = idle.poll()) != null) {
+                _runnerKeys.remove(runner);
+                try {
+                    runner.close();
+                } catch(IllegalActionException e) {
+                    if(error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+        if(error != null) {
+            throw error;
+        }
+    }
+
+    /** Return a sub-workflow to the pool after a task has successfully
+     *  processed its partition. If the sub-workflow reported an error,
+     *  it is aborted instead.
+     */
+    public void release(SubWorkflowRunner runner) throws IllegalActionException {
+        try {
+            runner.reset();
+        } catch(IllegalActionException e) {
+            abort(runner);
+            throw e;
+        }
+
+        final List<Object> key = _runnerKeys.get(runner);
+        if(key == null) {
+            throw new IllegalArgumentException("Sub-workflow " + runner.getModelName() +
+                    " was not borrowed from this pool.");
+        }
+        Queue<SubWorkflowRunner> idle = _idleRunners.get(key);
+        if(idle == null) {
+            idle = new ConcurrentLinkedQueue<SubWorkflowRunner>();
+            final Queue<SubWorkflowRunner> existing =
+                    _idleRunners.putIfAbsent(key, idle);
+            if(existing != null) {
+                idle = existing;
+            }
+        }
+        idle.add(runner);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** The sub-workflows not being used by a task, by the name and the
+     *  settings used to load them.
+     */
+    private final ConcurrentHashMap<List<Object>,Queue<SubWorkflowRunner>> _idleRunners =
+            new ConcurrentHashMap<List<Object>,Queue<SubWorkflowRunner>>();
+
+    /** The name and settings used to load each sub-workflow created by the pool. */
+    private final ConcurrentHashMap<SubWorkflowRunner,List<Object>> _runnerKeys =
+            new ConcurrentHashMap<SubWorkflowRunner,List<Object>>();
+
+    /** The directory to redirect display actors. */
+    private final String _redirectDir;
+}
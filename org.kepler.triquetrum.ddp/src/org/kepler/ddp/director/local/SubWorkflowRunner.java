@@ -0,0 +1,391 @@
+/* Execute a pattern actor sub-workflow for one task of the Local engine.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import java.util.List;
+
+import org.kepler.ddp.Utilities;
+import org.kepler.ddp.actor.pattern.stub.StubSinkActor;
+import org.kepler.ddp.actor.pattern.stub.StubSourceActor;
+
+import ptolemy.actor.CompositeActor;
+import ptolemy.actor.ExecutionListener;
+import ptolemy.actor.Manager;
+import ptolemy.data.ArrayToken;
+import ptolemy.data.RecordToken;
+import ptolemy.data.Token;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.KernelException;
+import ptolemy.kernel.util.NamedObj;
+
+/** Execute a pattern actor sub-workflow for one task of the Local engine.
+ *  The sub-workflow is loaded from the models registered by the engine,
+ *  and the stub source and sink actors inside it are used to transfer
+ *  key-value pairs to and from the sub-workflow.
+ *
+ *  <p>A task sets a batch of inputs in the stub source actor returned by
+ *  getSource(), and then calls collectOutput() to wait for the
+ *  sub-workflow to process them. Up to getMaxPendingBatches() batches
+ *  may be set before collecting their output, in the order they were set. When all the inputs have been processed,
+ *  the task must call close(), or reset() to use the sub-workflow for
+ *  another task.</p>
+ *
+ *  @version $Id$
+ */
+public class SubWorkflowRunner implements ExecutionListener {
+
+    /** Create a new SubWorkflowRunner for a sub-workflow.
+     *  @param modelName the name of the sub-workflow registered with the engine.
+     *  @param runWorkflowLifecyclePerInput if true, execute the full lifecycle
+     *  of the sub-workflow for each input.
+     *  @param printExeSummary if true, print an execution summary each time the
+     *  sub-workflow executes.
+     *  @param redirectDir the directory to redirect display actors.
+     *  @param queueCapacity the maximum number of inputs or outputs waiting
+     *  in the stub actors. If 0, the default capacity is used.
+     *  @param lightLifecycleReset if true and the full lifecycle is executed
+     *  for each input, only initialize and iterate the sub-workflow for each
+     *  input after the first.
+     *  @param runInTaskThread if true and the full lifecycle is not executed
+     *  for each input, iterate the sub-workflow in the thread calling
+     *  collectOutput() instead of in a separate Manager thread.
+     */
+    public SubWorkflowRunner(String modelName, boolean runWorkflowLifecyclePerInput,
+            boolean printExeSummary, String redirectDir, int queueCapacity,
+            boolean lightLifecycleReset, boolean runInTaskThread) throws IllegalActionException {
+
+        _modelName = modelName;
+        _model = Utilities.getModel(modelName, null, null, true, redirectDir);
+        _runWorkflowLifecyclePerInput = Utilities.checkDirectorIterations(_model,
+                runWorkflowLifecyclePerInput);
+
+        final List<StubSourceActor> sources = _model.entityList(StubSourceActor.class);
+        if(sources.size() != 1) {
+            throw new IllegalActionException(_model,
+                    "Sub-workflow must contain exactly one stub source actor.");
+        }
+        _source = sources.get(0);
+
+        final List<StubSinkActor> sinks = _model.entityList(StubSinkActor.class);
+        if(sinks.size() != 1) {
+            throw new IllegalActionException(_model,
+                    "Sub-workflow must contain exactly one stub sink actor.");
+        }
+        _sink = sinks.get(0);
+
+        _source.setQueueCapacity(queueCapacity);
+        _sink.setQueueCapacity(queueCapacity);
+
+        _runInTaskThread = runInTaskThread && !_runWorkflowLifecyclePerInput;
+
+        // when running in the task thread, the stubs do not block, and the
+        // manager must not start a thread, as with executing the full lifecycle
+        // for each input.
+        _manager = Utilities.createManagerForModel(_model, this, _source, _sink,
+                _runWorkflowLifecyclePerInput || _runInTaskThread, printExeSummary);
+        // the stub source actor must not stop the sub-workflow after
+        // each input, since collectOutput() iterates it for every input.
+        _source.setIterateInInputThread(_runInTaskThread);
+
+        _lightLifecycleReset = _runWorkflowLifecyclePerInput && lightLifecycleReset &&
+                !_requiresFullLifecycle();
+    }
+
+    /** Stop the sub-workflow without waiting for the pending inputs.
+     *  Must be called from the thread setting the inputs. Does not wait
+     *  for the sub-workflow, which may have failed.
+     */
+    public void abort() {
+        _manager.stop();
+        if(_managerInitialized) {
+            _managerInitialized = false;
+            try {
+                _manager.wrapup();
+            } catch (KernelException e) {
+                // ignore since we are stopping.
+            }
+        }
+        if(!_runWorkflowLifecyclePerInput && !_runInTaskThread) {
+            // do not wait for space in the source actor since the
+            // sub-workflow may no longer be reading it.
+            _source.tryFinish();
+        }
+        _manager.removeExecutionListener(this);
+    }
+
+    /** Finish executing the sub-workflow and wait for it to complete. */
+    public void close() throws IllegalActionException {
+        if(!_runWorkflowLifecyclePerInput && !_runInTaskThread) {
+            try {
+                _source.finish();
+            } catch (InterruptedException e) {
+                throw new IllegalActionException(_model, e,
+                        "Interrupted while finishing sub-workflow.");
+            }
+            _manager.waitForCompletion();
+        } else if(_managerInitialized) {
+            _managerInitialized = false;
+            try {
+                _manager.wrapup();
+            } catch (KernelException e) {
+                throw new IllegalActionException(_model, e, "Error executing sub-workflow.");
+            }
+        }
+        _manager.removeExecutionListener(this);
+        // clear the interrupted flag in case the sub-workflow was stopped
+        // after the last output was read.
+        Thread.interrupted();
+        _checkError();
+    }
+
+    /** Wait for the sub-workflow to process the inputs set in the source
+     *  actor and add the key-value pairs written to the stub sink actor to
+     *  a list.
+     *  @param output the list to add the key-value pairs.
+     *  @param count the number of inputs set in the source actor.
+     */
+    public void collectOutput(List<KeyValuePair> output, int count) throws IllegalActionException {
+
+        _checkError();
+
+        if(_runWorkflowLifecyclePerInput) {
+            try {
+                for(int i = 0; i < count; i++) {
+                    if(_lightLifecycleReset) {
+                        _executeLight();
+                    } else {
+                        _manager.execute();
+                    }
+                }
+            } catch (KernelException e) {
+                throw new IllegalActionException(_model, e, "Error executing sub-workflow.");
+            }
+        } else if(_runInTaskThread) {
+            try {
+                if(!_managerInitialized) {
+                    _manager.initialize();
+                    _managerInitialized = true;
+                }
+                // each iteration reads one input from the stub source actor.
+                for(int i = 0; i < count; i++) {
+                    _manager.iterate();
+                }
+            } catch (KernelException e) {
+                throw new IllegalActionException(_model, e, "Error executing sub-workflow.");
+            }
+        }
+
+        final List<Token> tokens = _sink.getOutput(count);
+        _checkError();
+        if(tokens == null) {
+            throw new IllegalActionException(_model, "Sub-workflow was stopped.");
+        }
+
+        for(Token token : tokens) {
+            if(token != null) {
+                final ArrayToken array = (ArrayToken) token;
+                for(int i = 0; i < array.length(); i++) {
+                    output.add(KeyValuePair.fromRecordToken((RecordToken) array.getElement(i)));
+                }
+            }
+        }
+    }
+
+    /** Report an execution failure in the sub-workflow. The sink actor
+     *  is stopped so that it does not wait for more output, and the task
+     *  thread is interrupted if it is waiting.
+     */
+    @Override
+    public void executionError(Manager manager, Throwable throwable) {
+        _error = throwable;
+        _sink.stop();
+        final Thread thread = _taskThread;
+        if(thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /** Report that the sub-workflow finished executing. Does nothing. */
+    @Override
+    public void executionFinished(Manager manager) {
+    }
+
+    /** Get the maximum number of batches of inputs that may be set in the
+     *  source actor before collecting the output of the first one. If the
+     *  sub-workflow is executed in collectOutput(), this is 1. Otherwise,
+     *  it is the capacity of the source actor, so that setting a batch
+     *  never waits for the sub-workflow while it waits for its output
+     *  to be collected.
+     */
+    public int getMaxPendingBatches() {
+        if(_runWorkflowLifecyclePerInput || _runInTaskThread) {
+            return 1;
+        }
+        return _source.getQueueCapacity();
+    }
+
+    /** Get the name of the sub-workflow. */
+    public String getModelName() {
+        return _modelName;
+    }
+
+    /** Get the stub sink actor in the sub-workflow. */
+    public StubSinkActor getSink() {
+        return _sink;
+    }
+
+    /** Get the stub source actor in the sub-workflow. */
+    public StubSourceActor getSource() {
+        return _source;
+    }
+
+    /** Report that the sub-workflow manager changed state. Does nothing. */
+    @Override
+    public void managerStateChanged(Manager manager) {
+    }
+
+    /** Prepare the sub-workflow to be used by another task. The sub-workflow
+     *  continues executing and waits for the next inputs. Throws an exception
+     *  if the sub-workflow reported an error, in which case the sub-workflow
+     *  cannot be reused and should be aborted.
+     */
+    public void reset() throws IllegalActionException {
+        _taskThread = null;
+        // clear the interrupted flag in case the sub-workflow was stopped
+        // after the last output was read.
+        Thread.interrupted();
+        _checkError();
+    }
+
+    /** Set the thread that sets the inputs and collects the output. The
+     *  thread is interrupted if the sub-workflow fails or is stopped. This
+     *  must be called before the first input is set, since the sub-workflow
+     *  may fail before collectOutput() is called.
+     */
+    public void setTaskThread(Thread thread) {
+        _taskThread = thread;
+    }
+
+    /** Stop the sub-workflow and interrupt the task waiting for output. */
+    public void stop() {
+        _manager.stop();
+        final Thread thread = _taskThread;
+        if(thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /** The name of the attribute that an actor can contain to require the
+     *  full lifecycle of the sub-workflow to be executed for each input.
+     */
+    public static final String FULL_LIFECYCLE_ATTRIBUTE_NAME = "_fullLifecyclePerInput";
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private methods                   ////
+
+    /** Throw an exception if the sub-workflow reported an error. */
+    private void _checkError() throws IllegalActionException {
+        if(_error != null) {
+            throw new IllegalActionException(_model, _error, "Error executing sub-workflow.");
+        }
+    }
+
+    /** Execute the sub-workflow for one input without repeating type
+     *  resolution and preinitialize. For the first input, the manager
+     *  initializes the sub-workflow; for later inputs, only the actors
+     *  are initialized. The sub-workflow is then iterated until it
+     *  finishes, but is not wrapped up until close() is called.
+     */
+    private void _executeLight() throws KernelException {
+        if(_managerInitialized) {
+            _model.initialize();
+        } else {
+            _manager.initialize();
+            _managerInitialized = true;
+        }
+        while(_manager.iterate()) {
+            // keep iterating until the stub source actor or director
+            // returns false from postfire().
+        }
+    }
+
+    /** Returns true if any actor in the sub-workflow contains an attribute
+     *  named FULL_LIFECYCLE_ATTRIBUTE_NAME.
+     */
+    private boolean _requiresFullLifecycle() {
+        if(_model.getAttribute(FULL_LIFECYCLE_ATTRIBUTE_NAME) != null) {
+            return true;
+        }
+        for(Object entity : _model.deepEntityList()) {
+            if(((NamedObj)entity).getAttribute(FULL_LIFECYCLE_ATTRIBUTE_NAME) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    ////                         private fields                    ////
+
+    /** The sub-workflow. */
+    private final CompositeActor _model;
+
+    /** The name of the sub-workflow. */
+    private final String _modelName;
+
+    /** If true, only initialize and iterate the sub-workflow for each input. */
+    private final boolean _lightLifecycleReset;
+
+    /** If true, the manager has been initialized in the task thread for
+     *  the light lifecycle or runInTaskThread, and must be wrapped up.
+     */
+    private boolean _managerInitialized;
+
+    /** The manager executing the sub-workflow. */
+    private final Manager _manager;
+
+    /** If true, the sub-workflow is iterated in the thread calling collectOutput(). */
+    private final boolean _runInTaskThread;
+
+    /** If true, the full lifecycle of the sub-workflow is executed for each input. */
+    private final boolean _runWorkflowLifecyclePerInput;
+
+    /** The stub source actor in the sub-workflow. */
+    private final StubSourceActor _source;
+
+    /** The stub sink actor in the sub-workflow. */
+    private final StubSinkActor _sink;
+
+    /** The thread setting the inputs and waiting for output. */
+    private volatile Thread _taskThread;
+
+    /** An error reported by the sub-workflow. */
+    private volatile Throwable _error;
+}
@@ -0,0 +1,72 @@
+/* The natural ordering of tokens used by the Local engine.
+ *
+ * Copyright (c) 2016 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * '$Author$'
+ * '$Date$'
+ * '$Revision$'
+ *
+ * Permission is hereby granted, without written agreement and without
+ * license or royalty fees, to use, copy, modify, and distribute this
+ * software and its documentation for any purpose, provided that the above
+ * copyright notice and the following two paragraphs appear in all copies
+ * of this software.
+ *
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY
+ * FOR DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF
+ * THE UNIVERSITY OF CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE SOFTWARE
+ * PROVIDED HEREUNDER IS ON AN "AS IS" BASIS, AND THE UNIVERSITY OF
+ * CALIFORNIA HAS NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES,
+ * ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+package org.kepler.ddp.director.local;
+
+import java.util.Comparator;
+
+import ptolemy.data.BooleanToken;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.LongToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+
+/** The natural ordering of tokens used by the Local engine to sort keys.
+ *  Tokens of different classes are ordered by class name. Int, long,
+ *  double, boolean, and string tokens are ordered by value, and all other
+ *  tokens are ordered by their string representation.
+ *
+ *  <p>This comparator is stateless and may be used by several threads.</p>
+ *
+ *  @version $Id$
+ */
+public class TokenComparator implements Comparator<Token> {
+
+    @Override
+    public int compare(Token token1, Token token2) {
+
+        if(token1.getClass() != token2.getClass()) {
+            return token1.getClass().getName().compareTo(token2.getClass().getName());
+        }
+
+        if(token1 instanceof StringToken) {
+            return ((StringToken)token1).stringValue().compareTo(((StringToken)token2).stringValue());
+        } else if(token1 instanceof IntToken) {
+            return Integer.compare(((IntToken)token1).intValue(), ((IntToken)token2).intValue());
+        } else if(token1 instanceof LongToken) {
+            return Long.compare(((LongToken)token1).longValue(), ((LongToken)token2).longValue());
+        } else if(token1 instanceof DoubleToken) {
+            return Double.compare(((DoubleToken)token1).doubleValue(), ((DoubleToken)token2).doubleValue());
+        } else if(token1 instanceof BooleanToken) {
+            return Boolean.compare(((BooleanToken)token1).booleanValue(), ((BooleanToken)token2).booleanValue());
+        }
+        return token1.toString().compareTo(token2.toString());
+    }
+}
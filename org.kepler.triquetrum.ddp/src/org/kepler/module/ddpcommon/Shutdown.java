@@ -29,6 +29,7 @@
 package org.kepler.module.ddpcommon;
 
 import org.kepler.ddp.director.DDPEngine;
+import org.kepler.ddp.director.WarmServers;
 import org.kepler.module.ModuleShutdownable;
 
 import ptolemy.kernel.util.IllegalActionException;
@@ -51,5 +52,8 @@ public class Shutdown implements ModuleShutdownable
         } catch (IllegalActionException e) {
             MessageHandler.error("Error closing effigies from replayed workflows.", e);
         }
+        
+        // stop any DDP servers kept running between workflow executions.
+        WarmServers.stopAll();
     }
 }
\ No newline at end of file